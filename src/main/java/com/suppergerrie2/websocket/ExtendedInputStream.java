@@ -20,15 +20,36 @@ public class ExtendedInputStream extends InputStream {
         return r;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return base.read(b, off, len);
+    }
+
     @Override
     public int read(byte[] b) throws IOException {
-        int r = super.read(b);
+        readFully(b, 0, b.length);
+        return b.length;
+    }
 
-        if(r != b.length) {
-            throw new IOException("Could not read all data, possibly end of stream");
+    /**
+     * Read exactly len bytes into the array, blocking until they are all read.
+     *
+     * @param b   The array to read into
+     * @param off The index in the array to start at
+     * @param len The amount of bytes to read
+     * @throws IOException When the end of the stream is reached before all bytes are read
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = base.read(b, off, len);
+
+            if (r == -1) {
+                throw new IOException("Could not read all data, possibly end of stream");
+            }
+
+            off += r;
+            len -= r;
         }
-
-        return r;
     }
 
     public byte readByte() throws IOException {
@@ -0,0 +1,70 @@
+package com.suppergerrie2.websocket.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares byte arrays of one size between clients that only hold their buffers while they are reading or writing, see
+ * {@link ClientOptions.Builder#leaseBuffers(boolean)}.
+ * <p>
+ * Returned arrays are kept for the next lease, up to {@link #MAX_RETAINED} of them, the rest is left to the garbage
+ * collector. Arrays are not cleared, users only read the bytes they wrote themselves. Direct buffers of the same size are
+ * pooled the same way.
+ */
+final class BufferPool {
+
+    static final int MAX_RETAINED = 256;
+
+    private static final ConcurrentHashMap<Integer, BufferPool> POOLS = new ConcurrentHashMap<>();
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<>(MAX_RETAINED);
+    private final ArrayBlockingQueue<ByteBuffer> freeDirect = new ArrayBlockingQueue<>(MAX_RETAINED);
+
+    private BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param bufferSize The size of the arrays
+     * @return The pool shared by everything that uses arrays of this size
+     */
+    static BufferPool forSize(int bufferSize) {
+        return POOLS.computeIfAbsent(bufferSize, BufferPool::new);
+    }
+
+    /**
+     * @return An array of the size of this pool, with undefined contents
+     */
+    byte[] lease() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * @param buffer An array leased from this pool, it should not be used anymore after this
+     */
+    void release(byte[] buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * @return A direct buffer of the size of this pool, with undefined contents, position and limit
+     */
+    ByteBuffer leaseDirect() {
+        ByteBuffer buffer = freeDirect.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * @param buffer A direct buffer leased from this pool, it should not be used anymore after this
+     */
+    void releaseDirect(ByteBuffer buffer) {
+        freeDirect.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -6,88 +6,255 @@ import com.suppergerrie2.websocket.common.Helpers;
 import com.suppergerrie2.websocket.common.State;
 import com.suppergerrie2.websocket.common.messages.Fragment;
 import com.suppergerrie2.websocket.common.messages.Message;
+import com.suppergerrie2.websocket.transport.Transport;
+import com.suppergerrie2.websocket.transport.UnixSocketTransport;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.ProtocolException;
-import java.net.Socket;
 import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 public class Client {
 
+    //Amount of bytes buffered by the streams of openBinaryStream and openTextWriter before they are sent as a frame
+    public static final int STREAM_FRAME_SIZE = 16 * 1024;
+    //Amount of bytes of a file that sendFile maps at a time, every window is sent as its own frame
+    static final int FILE_WINDOW_SIZE = 4 * 1024 * 1024;
+
+    private static final AtomicLong CONNECTION_IDS = new AtomicLong();
+
+    private final long connectionId = CONNECTION_IDS.incrementAndGet();
     private final URI host;
-    private final HashMap<String, List<Consumer<Message>>> messageHandlers = new HashMap<>();
-    private final List<Consumer<Client>> closeHandlers = new ArrayList<>();
-    private Socket socket;
-    private State state = State.CLOSED;
+    private final HandlerRegistry messageHandlers = new HandlerRegistry();
+    private final List<Consumer<Client>> closeHandlers = new CopyOnWriteArrayList<>();
+    private final ClientOptions options;
+    private final MessageDispatcher dispatcher;
+    private final DispatchMetrics dispatchMetrics = new DispatchMetrics();
+    private final MessagePublisher publisher = new MessagePublisher(this);
+    //Null when the options have no rate limit for every client
+    private final RateLimiter rateLimiter;
+    private final FragmentSizer fragmentSizer;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    //Only one data message can be sent at a time, so the frames of streamed messages don't get mixed up
+    private final Semaphore messageChannel = new Semaphore(1);
+    private final Transport transport;
+    private volatile FrameWriter frameWriter;
     private byte[] randomBytes;
-    private String activeProtocol;
+    private volatile String activeProtocol = "";
 
     public Client(URI host) throws ProtocolException {
-        if (!(host.getScheme().equals("ws") || host.getScheme().equals("wss"))) {
-            throw new ProtocolException("Only supports ws and wss protocols");
+        this(host, MessageDispatcher.inline());
+    }
+
+    /**
+     * Create a client that passes messages to its handlers using the given dispatcher.
+     *
+     * @param host       The uri to connect to
+     * @param dispatcher Decides on which thread the message handlers run
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     * @see MessageDispatcher
+     */
+    public Client(URI host, MessageDispatcher dispatcher) throws ProtocolException {
+        this(host, ClientOptions.builder().dispatcher(dispatcher).build());
+    }
+
+    /**
+     * Create a client with the given options, the transport for the scheme of the uri is created with the same options.
+     *
+     * @param host    The uri to connect to
+     * @param options The settings of the client and its socket
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     * @see ClientOptions#builder()
+     */
+    public Client(URI host, ClientOptions options) throws ProtocolException {
+        this(host, options, Transport.forUri(host, options));
+    }
+
+    /**
+     * Create a client that connects over the given transport, for example a {@link com.suppergerrie2.websocket.transport.MemoryPipe}.
+     * The uri is still used for the handshake.
+     *
+     * @param host       The uri to connect to
+     * @param dispatcher Decides on which thread the message handlers run
+     * @param transport  The transport to connect with
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     */
+    public Client(URI host, MessageDispatcher dispatcher, Transport transport) throws ProtocolException {
+        this(host, ClientOptions.builder().dispatcher(dispatcher).build(), transport);
+    }
+
+    /**
+     * Create a client with the given options that connects over the given transport.
+     * The socket settings of the options are not applied to the transport, it should be created with them itself.
+     *
+     * @param host      The uri to connect to
+     * @param options   The settings of the client
+     * @param transport The transport to connect with
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     */
+    public Client(URI host, ClientOptions options, Transport transport) throws ProtocolException {
+        if (!(host.getScheme().equals("ws") || host.getScheme().equals("wss") || host.getScheme().equals(UnixSocketTransport.SCHEME))) {
+            throw new ProtocolException("Only supports ws, wss and ws+unix protocols");
         }
 
         this.host = host;
+        this.options = options;
+        this.dispatcher = options.newDispatcher();
+        this.rateLimiter = options.newRateLimiter();
+        this.fragmentSizer = options.newFragmentSizer();
+        this.transport = transport;
     }
 
+    /**
+     * Register a handler for messages of the given protocol.
+     * Handlers can be registered at any time, also while the client is running.
+     *
+     * @param protocol The protocol the handler is for, or an empty string for when no protocol is agreed on
+     * @param handler  The handler
+     */
     public void registerMessageHandler(String protocol, Consumer<Message> handler) {
-        if (!messageHandlers.containsKey(protocol)) {
-            messageHandlers.put(protocol, new ArrayList<>());
-        }
+        messageHandlers.register(protocol, handler);
+    }
+
+    /**
+     * Register a handler that gets the messages of the protocol decoded by the codec.
+     * The message is decoded on the thread the dispatcher runs the handlers on. A message of the wrong type, or one the
+     * codec can't decode, closes the connection.
+     *
+     * @param protocol The protocol the handler is for, or an empty string for when no protocol is agreed on
+     * @param codec    The codec to decode the messages with
+     * @param handler  The handler
+     * @param <T>      The type of the decoded messages
+     */
+    public <T> void registerMessageHandler(String protocol, Codec<T> codec, Consumer<T> handler) {
+        messageHandlers.register(protocol, message -> {
+            T value;
+            try {
+                if (message.getMessageType() != codec.messageType()) {
+                    throw new ProtocolErrorException(
+                            String.format("Expected a %s but received a %s", codec.messageType(), message.getMessageType()),
+                            Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+                }
+
+                value = codec.decode(message.getPayloadBuffers());
+            } catch (ProtocolErrorException e) {
+                e.printStackTrace();
+                abort(e.statusCode);
+                return;
+            }
 
-        messageHandlers.get(protocol).add(handler);
+            handler.accept(value);
+        });
     }
 
+    /**
+     * Get the data messages this client receives as a {@link Flow.Publisher}, for consumers that want to control how fast
+     * messages come in. The messages are still passed to the registered handlers as well.
+     * <p>
+     * The demand of the subscriber is the backpressure: when the subscriber has received all the messages it requested,
+     * the client stops reading from the connection until it requests more. The unread data then fills the socket buffers,
+     * so tcp flow control slows the remote host down instead of messages piling up in memory. While reading is paused
+     * pings are not answered either. Once the client is closing it keeps reading to finish the close handshake, messages
+     * that arrive then without demand are not delivered to the subscriber.
+     * <p>
+     * The publisher has one subscriber at a time, a second subscriber gets an {@link IllegalStateException} until the first
+     * one cancels. onNext, onComplete and onError are called on the read thread of the client, so a subscriber that blocks
+     * blocks reading. The subscriber is completed when the client closes.
+     *
+     * @return The publisher of the received data messages
+     */
+    public Flow.Publisher<Message> messages() {
+        return publisher;
+    }
+
+    /**
+     * Register a handler that is called once when the client has closed.
+     *
+     * @param handler The handler
+     */
     public void registerCloseHandler(Consumer<Client> handler) {
         closeHandlers.add(handler);
     }
 
     public void start() throws IOException {
+        //The read threads only run while the handshake is going on, so the state has to be set before starting them
+        if (!state.compareAndSet(State.CLOSED, State.HANDSHAKE)) {
+            throw new IllegalStateException(
+                    String.format("Can only start a closed client, but client is in %s state", getState()));
+        }
 
-        int port = host.getPort();
-
-        //If we use secure websocket create a SSL socket
-        if (host.getScheme().equals("wss")) {
-            SSLSocketFactory socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(host.getHost(), port == -1 ? 443 : port);
-            sslSocket.startHandshake();
-            socket = sslSocket;
-        } else {
-            socket = new Socket(host.getHost(), port == -1 ? 80 : port);
+        try {
+            transport.connect(host);
+        } catch (IOException e) {
+            transitionTo(State.CLOSED);
+            throw e;
         }
 
+        frameWriter = new FrameWriter(transport, STREAM_FRAME_SIZE + FrameWriter.MAX_HEADER_SIZE, options.getMaskGenerator(),
+                                      options.isLeaseBuffers(), fragmentSizer.isAdaptive() ? fragmentSizer : null);
+        publisher.start();
+
         startReading();
         doInitializeWebsocketUpgrade();
     }
 
     private void doInitializeWebsocketUpgrade() throws IOException {
-        setState(State.HANDSHAKE);
 
-        int port = host.getPort();
-        if(port == -1) {
-            port = host.getScheme().equals("ws") ? 80 : 433;
+        String target = host.toASCIIString();
+        String hostHeader;
+        if (host.getScheme().equals(UnixSocketTransport.SCHEME)) {
+            //A unix socket has no host name, the path of the uri holds both the socket and the request path
+            target = UnixSocketTransport.requestPath(host);
+            hostHeader = "localhost";
+        } else {
+            int port = host.getPort();
+            if(port == -1) {
+                port = host.getScheme().equals("ws") ? 80 : 433;
+            }
+            hostHeader = String.format("%s:%s", host.getHost(), port);
         }
 
-        String[] headers = new String[]{
-                String.format("GET %s HTTP/1.1", host.toASCIIString()),
+        List<String> headers = new ArrayList<>(Arrays.asList(
+                String.format("GET %s HTTP/1.1", target),
                 "Connection: Upgrade",
                 String.format("Sec-WebSocket-Key: %s", getNonce()),
-                String.format("Host: %s:%s", host.getHost(), port),
+                String.format("Host: %s", hostHeader),
                 "Upgrade: websocket",
-                "Sec-WebSocket-Version: 13",
-                String.format("Sec-WebSocket-Protocol: %s", String.join(",", messageHandlers.keySet()))
-        };
+                "Sec-WebSocket-Version: 13"
+        ));
+
+        //The handlers for no protocol are registered under the empty string, which is not a protocol to offer
+        List<String> protocols = new ArrayList<>(messageHandlers.protocols());
+        protocols.remove("");
+        if (!protocols.isEmpty()) {
+            headers.add(String.format("Sec-WebSocket-Protocol: %s", String.join(",", protocols)));
+        }
 
         String header = String.join("\r\n", headers) + "\r\n\r\n";
 
         byte[] bytes = header.getBytes(StandardCharsets.UTF_8);
 
-        socket.getOutputStream().write(bytes);
+        transport.write(ByteBuffer.wrap(bytes));
     }
 
     /**
@@ -105,15 +272,52 @@ public class Client {
         return Base64.getEncoder().encodeToString(randomBytes);
     }
 
-    void startReading() throws IOException {
+    /**
+     * Called by the read thread before every frame, waits while the subscriber of {@link #messages()} has no demand.
+     *
+     * @throws InterruptedIOException When the read thread was interrupted while waiting
+     */
+    void awaitDemand() throws InterruptedIOException {
         try {
-            new MessageReadThread(this, socket.getInputStream()).start();
-        } catch (IOException e) {
-            e.printStackTrace();
-            stop(Constants.StatusCode.INTERNAL_ERROR, true);
+            publisher.awaitDemand();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for demand");
         }
+    }
+
+    /**
+     * Called by the read thread when it stops, after which no more messages are received.
+     */
+    void readingStopped() {
+        publisher.complete();
+    }
 
-        new HTTPReadThread(this, socket.getInputStream()).start();
+    void startReading() {
+        new MessageReadThread(this, transport, options.getReadBufferSize(), options.getFrameTap(), options.isLeaseBuffers())
+                .start();
+    }
+
+    /**
+     * @return The id of this client, unique within the jvm. Used to tell the frames of clients apart, for example in a
+     * {@link com.suppergerrie2.websocket.journal.FrameJournal}
+     */
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return The settings this client was created with
+     */
+    public ClientOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return The subprotocol the server agreed on during the last handshake, or an empty string if there is none
+     */
+    public String getProtocol() {
+        return activeProtocol;
     }
 
     /**
@@ -127,53 +331,96 @@ public class Client {
         return getState() != State.CLOSED;
     }
 
+    /**
+     * Get the metrics of the message dispatching, like how long messages wait before the handlers get them.
+     *
+     * @return The dispatch metrics of this client
+     */
+    public DispatchMetrics getDispatchMetrics() {
+        return dispatchMetrics;
+    }
+
+    /**
+     * Get the fragment size the client picks for the messages it sends, and the throughput and round trip time it is
+     * picked from when the size is adaptive.
+     *
+     * @return The fragment sizer of this client
+     * @see ClientOptions.Builder#adaptiveFragmentSize(int, int)
+     */
+    public FragmentSizer getFragmentSizer() {
+        return fragmentSizer;
+    }
+
     /**
      * Get the current {@link State} of the client.
      *
      * @return The current {@link State}
      */
     public State getState() {
-        return state;
+        return state.get();
     }
 
-    void setState(State state) {
-        this.state = state;
-
-        if (state == State.CLOSED) {
+    /**
+     * Move to the given state if that is allowed from the current state, see {@link State#canTransitionTo(State)}.
+     * The transition is atomic, so when multiple threads try to close the client only one of them succeeds and the
+     * close handlers are called exactly once.
+     *
+     * @param next The state to move to
+     * @return true if this call made the transition
+     */
+    boolean transitionTo(State next) {
+        State current;
+        do {
+            current = state.get();
+            if (!current.canTransitionTo(next)) return false;
+        } while (!state.compareAndSet(current, next));
+
+        if (next == State.CLOSED) {
             for (Consumer<Client> handler : closeHandlers) {
                 handler.accept(this);
             }
 
             try {
-                socket.close();
+                transport.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        return true;
     }
 
-    void handleCloseMessage(final Message message) throws ProtocolErrorException {
-        byte[] payloadData = message.getPayloadData();
+    void handleCloseMessage(final ByteBuffer payload) throws ProtocolErrorException {
+        int length = payload.remaining();
+        int start = payload.position();
 
-        //If the client is not closing already and it receives a connection_close message, send one back
-        if (getState() != State.CLOSING) {
-            Constants.StatusCode statusCode = Constants.StatusCode.EXPECTS_STATUS_CODE;
-            String closeReason = "";
+        Constants.StatusCode statusCode = Constants.StatusCode.EXPECTS_STATUS_CODE;
+        String closeReason = "";
+
+        //The payload only matters when the close is answered, a client that is closing already doesn't check it
+        if (getState() == State.OPEN) {
+            //A close payload starts with a 2 byte status code, so a single byte can never be valid
+            if (length == 1) {
+                throw new ProtocolErrorException("Received close frame with a payload of 1 byte. (RFC-6455 Section 5.5.1.)");
+            }
 
             //If there is payload data read it to determine the reason
-            if (payloadData.length >= 2) {
-                statusCode = Constants.StatusCode
-                        .fromInteger((((payloadData[0] & 0xFF) << 8) | (payloadData[1] & 0xFF)));
+            if (length >= 2) {
+                int code = payload.getShort(start) & 0xFFFF;
+                statusCode = Constants.StatusCode.fromInteger(code);
 
                 //@formatter:off
-                if(statusCode == Constants.StatusCode.INVALID_STATUS_CODE) throw new ProtocolErrorException(String.format("Received close frame with invalid status code %d", ((payloadData[0] & 0xFF) << 8) | (payloadData[1] & 0xFF)));
+                if(statusCode == Constants.StatusCode.INVALID_STATUS_CODE) throw new ProtocolErrorException(String.format("Received close frame with invalid status code %d", code));
                 if(statusCode == Constants.StatusCode.EXPECTS_STATUS_CODE) throw new ProtocolErrorException("Received close frame with status code " + statusCode);
                 if(statusCode == Constants.StatusCode.ABNORMAL_CLOSURE) throw new ProtocolErrorException("Received close frame with status code " + statusCode);
                 if(statusCode == Constants.StatusCode.RESERVED) throw new ProtocolErrorException("Received close frame with status code " + statusCode);
                 //@formatter:on
 
-                if (payloadData.length > 2) {
-                    byte[] reasonBytes = Arrays.copyOfRange(payloadData, 2, payloadData.length);
+                if (length > 2) {
+                    byte[] reasonBytes = new byte[length - 2];
+                    ByteBuffer reason = payload.duplicate();
+                    reason.position(start + 2);
+                    reason.get(reasonBytes);
 
                     if (!Helpers.isValidUTF8(reasonBytes, false)) {
                         throw new ProtocolErrorException("Received non UTF-8 data in close reason",
@@ -183,77 +430,190 @@ public class Client {
                     closeReason = new String(reasonBytes, StandardCharsets.UTF_8);
                 }
             }
+        }
 
+        //Only the thread that moves the client to closing sends a close message, so a stop at the same time doesn't
+        //send a second one
+        if (state.compareAndSet(State.OPEN, State.CLOSING)) {
             System.out.printf("Received close connection message with status code %s (%s)%n", statusCode.name(),
                               statusCode.value);
             if (!closeReason.isEmpty()) System.out.println(closeReason);
 
-            //Send a close message back
-            sendMessage(new Message(Fragment.OpCode.CONNECTION_CLOSE, payloadData));
+            //Send a close message back. Queued like a pong so the read thread never waits for a data frame that is
+            //being sent, the connection is closed once it is written
+            frameWriter.queueClose(copyOf(payload), () -> transitionTo(State.CLOSED));
         } else {
             System.out.println("Closed connection!");
-        }
 
-        //Connection has been closed, so update the client's state
-        setState(State.CLOSED);
+            //Connection has been closed, so update the client's state once the own close message is written
+            frameWriter.afterClose(() -> transitionTo(State.CLOSED));
+        }
     }
 
-    void handleMessage(final Message message) {
-        try {
-            //If the message is a control message the client needs to handle it
-            if (message.isControlMessage()) {
-                byte[] payloadData = message.getPayloadData();
-
-                if (payloadData.length > 125 || message.isFragmented()) {
-                    //@formatter:off
-                    throw new ProtocolErrorException(
-                            message.isFragmented() ? "Control message cannot be fragmented. (RFC-6455 Section 5.5.)" :
-                                    String.format("Control message cannot have a payload size of 126 or more but has %d. (RFC-6455 Section 5.5.)", payloadData.length));
-                    //@formatter:on
-                }
+    /**
+     * Handle a control frame. The payload is only valid during this call, as it can be a view on the read buffer.
+     *
+     * @param opCode  The opcode of the frame
+     * @param payload The unmasked payload, between position and limit
+     * @throws ProtocolErrorException When the frame is not valid
+     */
+    void handleControlFrame(Fragment.OpCode opCode, ByteBuffer payload) throws ProtocolErrorException {
+        switch (opCode) {
+            case CONNECTION_CLOSE:
+                handleCloseMessage(payload);
+                break;
+            case PING:
+                //Queued instead of written, so the read thread never waits for a data frame that is being sent
+                if (getState() == State.OPEN) frameWriter.queuePong(copyOf(payload));
+                break;
+            case PONG:
+                //Pongs keep the connection alive, and answer the pings that measure the round trip time
+                fragmentSizer.onPong(payload, System.nanoTime());
+                break;
+            default:
+                throw new UnsupportedOperationException(
+                        String.format("Don't now how to handle unknown control opcode %s", opCode));
+        }
+    }
 
-                switch (message.getMessageType()) {
-                    case CONNECTION_CLOSE:
-                        handleCloseMessage(message);
-                        break;
-                    case PING:
-
-                        System.out.println("Received ping!");
-                        Message response = new Message(Fragment.OpCode.PONG, payloadData);
-                        sendMessage(response);
-
-                        break;
-                    case PONG:
-                        System.out.println("Received pong!");
-                        break;
-                    default:
-                        throw new UnsupportedOperationException(
-                                String.format("Don't now how to handle unknown control opcode %s",
-                                              message.getMessageType()));
-                }
+    private static byte[] copyOf(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
 
-            } else {
-                //Pass it to the user
-                for (Consumer<Message> h : messageHandlers.get(activeProtocol)) {
-                    h.accept(message);
-                }
+    /**
+     * Pass a data message to the handlers and the publisher. Control frames don't get here, the read thread handles
+     * them with {@link #handleControlFrame(Fragment.OpCode, ByteBuffer)}.
+     *
+     * @param message The received data message
+     */
+    void handleMessage(final Message message) {
+        Consumer<Message>[] handlers = messageHandlers.active();
+        long dispatchedAt = System.nanoTime();
+        dispatchMetrics.onDispatched();
+
+        dispatcher.dispatch(() -> {
+            dispatchMetrics.onStarted(System.nanoTime() - dispatchedAt);
+            for (Consumer<Message> h : handlers) {
+                h.accept(message);
             }
-        } catch (ProtocolErrorException e) {
-            e.printStackTrace();
-            this.stop(e.statusCode, true);
-        }
+        });
+
+        publisher.offer(message);
     }
 
     /**
      * Send a byte array over the network.
-     * This will be encoded in a {@link Fragment} of type {@link com.suppergerrie2.websocket.common.messages.Fragment.OpCode#TEXT_FRAME}
+     * This will be encoded in a {@link Fragment} of type {@link com.suppergerrie2.websocket.common.messages.Fragment.OpCode#BINARY_FRAME}
      *
      * @param bytes The bytes to send
+     * @throws UncheckedIOException When writing to the connection fails, the client is then closed
      * @see Client#send(String)
      */
     public void send(byte[] bytes) {
-        Message message = new Message(bytes);
-        sendMessage(message);
+        ensureOpen();
+        acquireMessageChannel();
+
+        //Written from the array itself, a buffer wrapping it would be allocated for every message
+        try {
+            Fragment.OpCode opCode = Fragment.OpCode.BINARY_FRAME;
+            int offset = 0;
+            do {
+                int length = Math.min(bytes.length - offset, fragmentSizer.getFragmentSize());
+                if (!awaitSendPermit(opCode, length)) return;
+                frameWriter.writeFrame(offset + length == bytes.length, opCode, bytes, offset, length);
+                offset += length;
+                opCode = Fragment.OpCode.CONTINUATION;
+            } while (offset < bytes.length);
+        } catch (IOException e) {
+            throw writeFailed(e);
+        } finally {
+            releaseMessageChannel();
+        }
+    }
+
+    /**
+     * Send the bytes between position and limit of the buffer as a binary message, the position is advanced to the limit.
+     * Direct buffers are masked straight into the frame buffer, without copying them to a heap array first.
+     *
+     * @param buffer The bytes to send
+     * @throws UncheckedIOException When writing to the connection fails, the client is then closed
+     * @see Client#send(byte[])
+     */
+    public void send(ByteBuffer buffer) {
+        ensureOpen();
+        acquireMessageChannel();
+
+        try {
+            Fragment.OpCode opCode = Fragment.OpCode.BINARY_FRAME;
+            do {
+                int length = Math.min(buffer.remaining(), fragmentSizer.getFragmentSize());
+                if (!awaitSendPermit(opCode, length)) return;
+                frameWriter.writeFrame(length == buffer.remaining(), opCode, buffer, length);
+                opCode = Fragment.OpCode.CONTINUATION;
+            } while (buffer.hasRemaining());
+        } catch (IOException e) {
+            throw writeFailed(e);
+        } finally {
+            releaseMessageChannel();
+        }
+    }
+
+    /**
+     * Send a file as a binary message. The file is memory mapped a window at a time and every window is masked straight
+     * from the mapping into the frame buffer, so the heap used stays the same whatever the size of the file.
+     *
+     * @param path The file to send
+     * @throws IOException           When the file can't be read or writing to the connection fails
+     * @throws IllegalStateException When the client is not open
+     * @see #sendFile(FileChannel, long, long)
+     */
+    public void sendFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            sendFile(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Send a range of a file as a binary message, see {@link #sendFile(Path)}. The first frame is a binary frame and
+     * every next window of 4 MiB is sent as a continuation frame, or as multiple when the max
+     * fragment payload size is smaller. The channel is not closed and its position is not changed.
+     *
+     * @param channel  The channel of the file, has to be readable
+     * @param position The index in the file of the first byte to send
+     * @param count    The amount of bytes to send
+     * @throws IOException           When the file can't be mapped or writing to the connection fails
+     * @throws IllegalStateException When the client is not open
+     */
+    public void sendFile(FileChannel channel, long position, long count) throws IOException {
+        if (position < 0 || count < 0 || position + count > channel.size()) {
+            throw new IllegalArgumentException(
+                    String.format("Range of %d bytes at %d is not in the file of %d bytes", count, position, channel.size()));
+        }
+
+        ensureOpen();
+        acquireMessageChannel();
+
+        try {
+            Fragment.OpCode opCode = Fragment.OpCode.BINARY_FRAME;
+            long end = position + count;
+            do {
+                long windowSize = Math.min(end - position, FILE_WINDOW_SIZE);
+                //The mapping is released when the buffer is garbage collected, only the address space is used until then
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                position += windowSize;
+
+                do {
+                    int length = Math.min(window.remaining(), fragmentSizer.getFragmentSize());
+                    if (!awaitSendPermit(opCode, length)) return;
+                    frameWriter.writeFrame(position == end && length == window.remaining(), opCode, window, length);
+                    opCode = Fragment.OpCode.CONTINUATION;
+                } while (window.hasRemaining());
+            } while (position < end);
+        } finally {
+            releaseMessageChannel();
+        }
     }
 
     /**
@@ -261,31 +621,252 @@ public class Client {
      * this will be encoded in a {@link Fragment} of type {@link com.suppergerrie2.websocket.common.messages.Fragment.OpCode#TEXT_FRAME}.
      *
      * @param s The string to send
+     * @throws UncheckedIOException When writing to the connection fails, the client is then closed
      * @see Client#send(byte[])
      */
     public void send(String s) {
-        Message message = new Message(s);
-        sendMessage(message);
+        send((CharSequence) s);
+    }
+
+    /**
+     * Send text as a text message. The text is encoded as UTF-8 straight into the frame buffer, so no byte array
+     * with the encoded text is created. Text longer than a fragment is encoded a frame at a time, every frame ends at
+     * the last whole character that fits.
+     *
+     * @param text The text to send
+     * @throws UncheckedIOException When writing to the connection fails, the client is then closed
+     * @see Client#send(String)
+     */
+    public void send(CharSequence text) {
+        long length = FrameWriter.encodedLength(text);
+
+        ensureOpen();
+        acquireMessageChannel();
+
+        try {
+            if (length <= fragmentSizer.getFragmentSize()) {
+                if (!awaitSendPermit(Fragment.OpCode.TEXT_FRAME, length)) return;
+                frameWriter.writeTextFrame(text, (int) length);
+                return;
+            }
+
+            Fragment.OpCode opCode = Fragment.OpCode.TEXT_FRAME;
+            int start = 0;
+            do {
+                int end = FrameWriter.fragmentEnd(text, start, fragmentSizer.getFragmentSize());
+                int frameLength = (int) FrameWriter.encodedLength(text, start, end);
+                if (!awaitSendPermit(opCode, frameLength)) return;
+                frameWriter.writeTextFrame(end == text.length(), opCode, text, start, end, frameLength);
+                opCode = Fragment.OpCode.CONTINUATION;
+                start = end;
+            } while (start < text.length());
+        } catch (IOException e) {
+            throw writeFailed(e);
+        } finally {
+            releaseMessageChannel();
+        }
+    }
+
+    /**
+     * Send a value encoded by the codec. Values that fit in a frame are encoded straight into the frame buffer, bigger
+     * values are encoded into a buffer of their own first. A rate limited client also encodes into a buffer of its own,
+     * so the size of the value is known and charged before anything is written.
+     *
+     * @param codec The codec to encode the value with
+     * @param value The value to send
+     * @param <T>   The type of the value
+     * @throws UncheckedIOException When writing to the connection fails, the client is then closed
+     */
+    public <T> void send(Codec<T> codec, T value) {
+        ensureOpen();
+        acquireMessageChannel();
+
+        try {
+            //The size of a value is only known once it is encoded, which is too late to wait for the limits
+            if (!isRateLimited() && frameWriter.writeEncoded(codec, value, fragmentSizer.getFragmentSize()) >= 0) return;
+
+            ByteBuffer encoded = ByteBuffer.allocate(STREAM_FRAME_SIZE * 2);
+            while (true) {
+                try {
+                    codec.encode(value, encoded);
+                    break;
+                } catch (BufferOverflowException e) {
+                    if (encoded.capacity() > Integer.MAX_VALUE / 2) throw new IllegalArgumentException("Encoded value is too big", e);
+                    encoded = ByteBuffer.allocate(encoded.capacity() * 2);
+                }
+            }
+            encoded.flip();
+
+            Fragment.OpCode opCode = codec.messageType();
+            do {
+                int length = Math.min(encoded.remaining(), fragmentSizer.getFragmentSize());
+                if (!awaitSendPermit(opCode, length)) return;
+                frameWriter.writeFrame(length == encoded.remaining(), opCode, encoded, length);
+                opCode = Fragment.OpCode.CONTINUATION;
+            } while (encoded.hasRemaining());
+        } catch (IOException e) {
+            throw writeFailed(e);
+        } finally {
+            releaseMessageChannel();
+        }
+    }
+
+    /**
+     * Open a stream to send a binary message while it is being produced.
+     * Every {@link #STREAM_FRAME_SIZE} bytes, or the max fragment payload size if that is smaller, a frame is sent, and closing the stream sends the last frame and ends the message.
+     * Until the stream is closed other messages wait, so don't send other messages from the thread writing to the stream.
+     *
+     * @return The stream to write the message to, has to be closed to end the message
+     * @throws IllegalStateException When the client is not open
+     * @see #openTextWriter()
+     */
+    public OutputStream openBinaryStream() {
+        return openStream(Fragment.OpCode.BINARY_FRAME);
     }
 
-    private void sendMessage(Message message) {
-        //Make sure the message can be send.
-        //Can only send messages in the open state or a close message in the connection close state.
-        if (getState() != State.OPEN && !(message
-                .getMessageType() == Fragment.OpCode.CONNECTION_CLOSE && getState() == State.CLOSING)) {
+    /**
+     * Open a writer to send a text message while it is being produced, the text is encoded as UTF-8.
+     * Works the same as {@link #openBinaryStream()}, the writer has to be closed to end the message.
+     *
+     * @return The writer to write the message to
+     * @throws IllegalStateException When the client is not open
+     */
+    public Writer openTextWriter() {
+        return new OutputStreamWriter(openStream(Fragment.OpCode.TEXT_FRAME), StandardCharsets.UTF_8);
+    }
+
+    private OutputStream openStream(Fragment.OpCode opCode) {
+        ensureOpen();
+        acquireMessageChannel();
+        return new MessageOutputStream(this, frameWriter, opCode, streamFrameSize());
+    }
+
+    private int streamFrameSize() {
+        return Math.min(STREAM_FRAME_SIZE, fragmentSizer.getFragmentSize());
+    }
+
+    /**
+     * Writing a data message failed. The connection can't be used anymore, so it is closed.
+     *
+     * @param e The exception writing threw
+     * @return The exception to throw to the sender
+     */
+    private RuntimeException writeFailed(IOException e) {
+        //The close frame was written in between the frames of the message, the message is cut off by closing
+        if (getState() != State.OPEN) {
+            return new IllegalStateException(
+                    String.format("Can only send messages in open state, but client is in %s state", getState()), e);
+        }
+
+        abort(Constants.StatusCode.GOING_AWAY);
+        return new UncheckedIOException("Writing to the connection failed", e);
+    }
+
+    private void ensureOpen() {
+        if (getState() != State.OPEN) {
             throw new IllegalStateException(
                     String.format("Can only send messages in open state, but client is in %s state", getState()));
         }
+    }
 
-        //Send the fragments
-        for (Fragment fragment : message.getFragments()) {
-            //TODO: Make it async
-            try {
-                socket.getOutputStream().write(fragment.toBytes());
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Wait until no other data message is being sent.
+     *
+     * @throws IllegalStateException When the client is no longer open while waiting
+     */
+    private void acquireMessageChannel() {
+        try {
+            while (!messageChannel.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (getState() != State.OPEN) {
+                    throw new IllegalStateException(
+                            String.format("Can only send messages in open state, but client is in %s state", getState()));
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to send", e);
         }
+
+        //Measure the round trip time now and then while there is data to send, the fragment size depends on it
+        sendPingIfDue();
+    }
+
+    /**
+     * Send a ping to measure the round trip time when the fragment size is adaptive and the last ping was long enough
+     * ago. The payload is the time it was sent, so the pong can't be mistaken for the answer to another ping.
+     */
+    private void sendPingIfDue() {
+        long now = System.nanoTime();
+        if (!fragmentSizer.startPing(now)) return;
+
+        byte[] payload = new byte[Long.BYTES];
+        ByteBuffer.wrap(payload).putLong(now);
+        try {
+            frameWriter.writeFrame(true, Fragment.OpCode.PING, payload, 0, payload.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void releaseMessageChannel() {
+        messageChannel.release();
+    }
+
+    /**
+     * Wait until the rate limits allow the next frame of a data message, and take its tokens. Called while holding the
+     * message channel, so senders that are over the limit wait in line behind it.
+     * The first frame can be rejected when the options have a rejection handler, the frames after it always wait as part
+     * of the message has already been written.
+     *
+     * @param opCode The opcode of the frame, {@link Fragment.OpCode#CONTINUATION} for all but the first frame
+     * @param bytes  The payload bytes of the frame
+     * @return false if the message was rejected, then nothing should be written
+     * @throws IllegalStateException When the client is no longer open or interrupted while waiting
+     */
+    private boolean awaitSendPermit(Fragment.OpCode opCode, long bytes) {
+        boolean firstFrame = opCode != Fragment.OpCode.CONTINUATION;
+        return awaitSendPermit(firstFrame, bytes, firstFrame);
+    }
+
+    /**
+     * @param firstFrame Whether the frame starts a message, which counts as a message for the limits
+     * @param bytes      The payload bytes of the frame
+     * @param mayReject  Whether the message can be rejected instead of waiting
+     * @return false if the message was rejected
+     * @see #awaitSendPermit(Fragment.OpCode, long)
+     */
+    boolean awaitSendPermit(boolean firstFrame, long bytes, boolean mayReject) {
+        if (!isRateLimited()) return true;
+
+        RateLimiter group = options.getRateLimitGroup();
+
+        long messages = firstFrame ? 1 : 0;
+        while (true) {
+            long wait = rateLimiter == null ? 0 : rateLimiter.tryAcquire(messages, bytes);
+            if (wait == 0 && group != null) {
+                wait = group.tryAcquire(messages, bytes);
+                if (wait > 0 && rateLimiter != null) rateLimiter.refund(messages, bytes);
+            }
+            if (wait == 0) return true;
+
+            RateLimiter.RejectionHandler handler = options.getRejectionHandler();
+            if (mayReject && handler != null) {
+                handler.rejected(this, bytes, wait);
+                return false;
+            }
+
+            ensureOpen();
+            //Wait in steps, so a client that closes in the meantime is noticed
+            LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the rate limit");
+            }
+        }
+    }
+
+    private boolean isRateLimited() {
+        return rateLimiter != null || options.getRateLimitGroup() != null;
     }
 
     void parseHandshakeHeader(String headerString) throws ProtocolErrorException {
@@ -334,16 +915,17 @@ public class Client {
                 throw new ProtocolErrorException("Header had an invalid value");
             }
 
-            activeProtocol = headerFields.getOrDefault("Sec-WebSocket-Protocol", "");
+            activeProtocol = headerFields.getOrDefault("sec-websocket-protocol", "");
 
-            if (!activeProtocol.isEmpty() && !messageHandlers.containsKey(activeProtocol)) {
+            if (!activeProtocol.isEmpty() && !messageHandlers.hasProtocol(activeProtocol)) {
                 throw new ProtocolErrorException(String.format(
                         "Server requested protocol %s but client did not request that. (Client protocols: %s)",
-                        activeProtocol, String.join(",", messageHandlers.keySet())));
+                        activeProtocol, String.join(",", messageHandlers.protocols())));
             }
 
             //handshake is done, state is open now
-            setState(State.OPEN);
+            messageHandlers.activate(activeProtocol);
+            transitionTo(State.OPEN);
         } else {
             throw new ProtocolErrorException(
                     String.format("Should have received a HTTP response but it is %s", headerString));
@@ -352,9 +934,9 @@ public class Client {
 
     /**
      * Stop the client, sends a connection close message when state is open.
-     * Can only be called when state is {@link State#OPEN}
+     * When the client is still in the handshake the connection is closed directly.
      *
-     * @throws IllegalStateException when state is not {@link State#OPEN}
+     * @throws IllegalStateException when the client is already closed
      */
     public void stop() {
         stop(1000, false);
@@ -365,38 +947,45 @@ public class Client {
     }
 
     public void stop(int statusCode, boolean forceStop) {
-        if (getState() == State.OPEN) {
-            setState(State.CLOSING);
-            try {
-                sendMessage(new Message(Fragment.withData(Fragment.OpCode.CONNECTION_CLOSE, new byte[]{
-                        (byte) ((statusCode >> 8) & 0xFF),
-                        (byte) ((statusCode) & 0xFF)
-                }).get(0)));
+        if (!close(statusCode, forceStop)) {
+            throw new IllegalStateException("Cannot stop client that hasn't started yet");
+        }
+    }
 
-            } catch (ProtocolErrorException e) {
-                e.printStackTrace();
-                // We failed while failing, only the force can stop us now.
-                forceStop = true;
-            }
+    /**
+     * Fail the connection because of an error, without throwing when the client has already been closed.
+     * Used by the read threads, which can race with the remote host closing the connection.
+     *
+     * @param statusCode The status code to send in the close message
+     */
+    void abort(Constants.StatusCode statusCode) {
+        close(statusCode.value, true);
+    }
 
-            if (forceStop) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Start closing the client.
+     *
+     * @param statusCode The status code to send in the close message
+     * @param forceStop  Whether to close the connection without waiting for the close message of the remote host
+     * @return false if the client was already closed
+     */
+    private boolean close(int statusCode, boolean forceStop) {
+        if (state.compareAndSet(State.OPEN, State.CLOSING)) {
+            //The read thread can be waiting for demand, but now has to read the close message of the remote host
+            publisher.wake();
+
+            //Queued like a pong, so closing never waits for a data frame that is being sent. A forced close closes the
+            //connection once the close frame is written
+            byte[] payload = {(byte) ((statusCode >> 8) & 0xFF), (byte) ((statusCode) & 0xFF)};
+            frameWriter.queueClose(payload, forceStop ? () -> transitionTo(State.CLOSED) : null);
+            return true;
+        }
 
-                setState(State.CLOSED);
-            }
-        } else {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        State current = getState();
+        if (current == State.CLOSED) return false;
 
-            setState(State.CLOSED);
-            throw new IllegalStateException("Cannot stop client that hasn't started yet");
-        }
+        //When closing without force the close message of the remote host is still expected, else close right away
+        if (current != State.CLOSING || forceStop) transitionTo(State.CLOSED);
+        return true;
     }
 }
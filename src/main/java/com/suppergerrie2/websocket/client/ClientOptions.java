@@ -0,0 +1,477 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.MaskGenerator;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Settings of a {@link Client} and the socket it connects with. Create them with {@link #builder()}, every setting has a
+ * default so only the ones that matter have to be set.
+ * <p>
+ * The socket settings are applied to tcp and tls sockets alike, unix domain sockets only use the buffer sizes.
+ */
+public final class ClientOptions {
+
+    public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+
+    //The read buffer has to fit the handshake response and every control frame
+    private static final int MIN_READ_BUFFER_SIZE = 1024;
+
+    private static final ClientOptions DEFAULTS = builder().build();
+
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean keepAlive;
+    private final int connectTimeoutMillis;
+    private final int readBufferSize;
+    private final int maxFragmentPayloadSize;
+    private final boolean adaptiveFragmentSize;
+    private final int minFragmentPayloadSize;
+    private final Supplier<MessageDispatcher> dispatchers;
+    private final FrameTap frameTap;
+    private final MaskGenerator maskGenerator;
+    private final boolean leaseBuffers;
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final long rateLimitBurstNanos;
+    private final RateLimiter rateLimitGroup;
+    private final RateLimiter.RejectionHandler rejectionHandler;
+
+    private ClientOptions(Builder builder) {
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.keepAlive = builder.keepAlive;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readBufferSize = builder.readBufferSize;
+        this.maxFragmentPayloadSize = builder.maxFragmentPayloadSize;
+        this.adaptiveFragmentSize = builder.adaptiveFragmentSize;
+        this.minFragmentPayloadSize = builder.minFragmentPayloadSize;
+        this.dispatchers = builder.dispatchers;
+        this.frameTap = builder.frameTap;
+        this.maskGenerator = builder.maskGenerator;
+        this.leaseBuffers = builder.leaseBuffers;
+        this.messagesPerSecond = builder.messagesPerSecond;
+        this.bytesPerSecond = builder.bytesPerSecond;
+        this.rateLimitBurstNanos = builder.rateLimitBurstNanos;
+        this.rateLimitGroup = builder.rateLimitGroup;
+        this.rejectionHandler = builder.rejectionHandler;
+    }
+
+    /**
+     * @return The options used when none are given
+     */
+    public static ClientOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return true if small frames are sent right away instead of waiting for the ack of earlier data (Nagle's algorithm off)
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return The size of the socket send buffer (SO_SNDBUF), or 0 to use the size of the operating system
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return The size of the socket receive buffer (SO_RCVBUF), or 0 to use the size of the operating system
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return true if the operating system should probe idle connections (SO_KEEPALIVE)
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return The amount of milliseconds to wait for the connection to be made, or 0 to wait forever
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * @return The size of the buffer the client reads into, frames that fit are decoded without copying them
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * @return The maximum payload size of a sent frame, bigger messages are split into multiple frames
+     */
+    public int getMaxFragmentPayloadSize() {
+        return maxFragmentPayloadSize;
+    }
+
+    /**
+     * @return true if every client picks its fragment size from its measured throughput and round trip time, see
+     * {@link Builder#adaptiveFragmentSize(int, int)}
+     */
+    public boolean isAdaptiveFragmentSize() {
+        return adaptiveFragmentSize;
+    }
+
+    /**
+     * @return The smallest fragment size an adaptive client picks
+     */
+    public int getMinFragmentPayloadSize() {
+        return minFragmentPayloadSize;
+    }
+
+    /**
+     * @return Decides on which thread the message handlers of a client run, a new one for every client when the options
+     * were built with {@link Builder#dispatcherPerClient(Supplier)}
+     */
+    MessageDispatcher newDispatcher() {
+        return dispatchers.get();
+    }
+
+    /**
+     * @return true if every client that uses these options gets the same {@link MessageDispatcher#ordered ordered}
+     * dispatcher, so the messages of all of them are handled one at a time
+     */
+    boolean isSharedOrderedDispatcher() {
+        return dispatchers instanceof SharedDispatcher
+                && ((SharedDispatcher) dispatchers).dispatcher instanceof OrderedDispatcher;
+    }
+
+    /**
+     * @return The tap that sees every received frame, or null if there is none
+     */
+    public FrameTap getFrameTap() {
+        return frameTap;
+    }
+
+    /**
+     * @return Makes the masking keys of the frames the client sends
+     */
+    public MaskGenerator getMaskGenerator() {
+        return maskGenerator;
+    }
+
+    /**
+     * @return true if the read and frame buffers are only held while there is data, see {@link Builder#leaseBuffers(boolean)}
+     */
+    public boolean isLeaseBuffers() {
+        return leaseBuffers;
+    }
+
+    /**
+     * @return The messages every client can send per second, or 0 if there is no limit
+     */
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * @return The payload bytes every client can send per second, or 0 if there is no limit
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return How long in nanoseconds a client can exceed its own rates after being idle
+     */
+    public long getRateLimitBurstNanos() {
+        return rateLimitBurstNanos;
+    }
+
+    /**
+     * @return The limiter shared by a group of clients, or null if there is none
+     */
+    public RateLimiter getRateLimitGroup() {
+        return rateLimitGroup;
+    }
+
+    /**
+     * @return The handler called for messages over the rate limits, or null if sends wait for the limits
+     */
+    public RateLimiter.RejectionHandler getRejectionHandler() {
+        return rejectionHandler;
+    }
+
+    /**
+     * @return A new sizer that picks the fragment size of a client
+     */
+    FragmentSizer newFragmentSizer() {
+        if (!adaptiveFragmentSize) return new FragmentSizer(maxFragmentPayloadSize);
+
+        return new FragmentSizer(Math.min(minFragmentPayloadSize, maxFragmentPayloadSize), maxFragmentPayloadSize);
+    }
+
+    /**
+     * @return A new limiter with the rates every client has on its own, or null if it has none
+     */
+    RateLimiter newRateLimiter() {
+        if (messagesPerSecond == 0 && bytesPerSecond == 0) return null;
+
+        return new RateLimiter(messagesPerSecond, bytesPerSecond, rateLimitBurstNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static final class Builder {
+
+        private boolean tcpNoDelay = true;
+        private int sendBufferSize = 0;
+        private int receiveBufferSize = 0;
+        private boolean keepAlive = false;
+        private int connectTimeoutMillis = 0;
+        private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+        private int maxFragmentPayloadSize = Client.STREAM_FRAME_SIZE;
+        private boolean adaptiveFragmentSize = false;
+        private int minFragmentPayloadSize = 1;
+        private Supplier<MessageDispatcher> dispatchers = new SharedDispatcher(MessageDispatcher.inline());
+        private FrameTap frameTap;
+        private MaskGenerator maskGenerator = MaskGenerator.secure();
+        private boolean leaseBuffers = false;
+        private double messagesPerSecond = 0;
+        private double bytesPerSecond = 0;
+        private long rateLimitBurstNanos = TimeUnit.SECONDS.toNanos(1);
+        private RateLimiter rateLimitGroup;
+        private RateLimiter.RejectionHandler rejectionHandler;
+
+        private Builder() {
+        }
+
+        /**
+         * @param tcpNoDelay Whether to turn off Nagle's algorithm, on by default so small frames are not delayed
+         * @return This builder
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * @param sendBufferSize The size of the socket send buffer, or 0 to use the size of the operating system
+         * @return This builder
+         */
+        public Builder sendBufferSize(int sendBufferSize) {
+            if (sendBufferSize < 0) throw new IllegalArgumentException("Send buffer size cannot be negative");
+
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * @param receiveBufferSize The size of the socket receive buffer, or 0 to use the size of the operating system
+         * @return This builder
+         */
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            if (receiveBufferSize < 0) throw new IllegalArgumentException("Receive buffer size cannot be negative");
+
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * @param keepAlive Whether the operating system should probe idle connections, off by default
+         * @return This builder
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * @param timeout The time to wait for the connection to be made, or 0 to wait forever which is the default
+         * @param unit    The unit of the timeout
+         * @return This builder
+         */
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) throw new IllegalArgumentException("Connect timeout cannot be negative");
+
+            this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * @param readBufferSize The size of the buffer the client reads into, at least 1024 bytes. Defaults to
+         *                       {@link ClientOptions#DEFAULT_READ_BUFFER_SIZE}
+         * @return This builder
+         */
+        public Builder readBufferSize(int readBufferSize) {
+            if (readBufferSize < MIN_READ_BUFFER_SIZE) {
+                throw new IllegalArgumentException(
+                        String.format("Read buffer size should be at least %d but is %d", MIN_READ_BUFFER_SIZE, readBufferSize));
+            }
+
+            this.readBufferSize = readBufferSize;
+            return this;
+        }
+
+        /**
+         * Pongs are written between frames, so this also limits how long a pong can wait behind a big message.
+         *
+         * @param maxFragmentPayloadSize The maximum payload size of a sent frame, defaults to {@link Client#STREAM_FRAME_SIZE}
+         * @return This builder
+         */
+        public Builder maxFragmentPayloadSize(int maxFragmentPayloadSize) {
+            if (maxFragmentPayloadSize < 1) throw new IllegalArgumentException("Max fragment payload size should be at least 1");
+
+            this.maxFragmentPayloadSize = maxFragmentPayloadSize;
+            return this;
+        }
+
+        /**
+         * Let every client pick its fragment size between the bounds, so a fragment takes about half a round trip to
+         * write. The client measures how fast its writes go and sends a ping before a data message at most once a
+         * second to measure the round trip time. Off by default, then messages are split at the max fragment payload
+         * size. See {@link FragmentSizer}.
+         *
+         * @param minFragmentPayloadSize The smallest fragment size, the per frame overhead makes very small ones wasteful
+         * @param maxFragmentPayloadSize The biggest fragment size, replaces {@link #maxFragmentPayloadSize(int)}
+         * @return This builder
+         */
+        public Builder adaptiveFragmentSize(int minFragmentPayloadSize, int maxFragmentPayloadSize) {
+            if (minFragmentPayloadSize < 1) throw new IllegalArgumentException("Min fragment payload size should be at least 1");
+            if (maxFragmentPayloadSize < minFragmentPayloadSize) {
+                throw new IllegalArgumentException(
+                        String.format("Max fragment payload size %d is smaller than the min %d", maxFragmentPayloadSize, minFragmentPayloadSize));
+            }
+
+            this.adaptiveFragmentSize = true;
+            this.minFragmentPayloadSize = minFragmentPayloadSize;
+            this.maxFragmentPayloadSize = maxFragmentPayloadSize;
+            return this;
+        }
+
+        /**
+         * Every client created with the options uses this dispatcher. An {@link MessageDispatcher#ordered ordered}
+         * dispatcher then handles the messages of all those clients one at a time, use
+         * {@link #dispatcherPerClient(Supplier)} to keep only the messages of each client in order.
+         *
+         * @param dispatcher Decides on which thread the message handlers run, {@link MessageDispatcher#inline()} by default
+         * @return This builder
+         */
+        public Builder dispatcher(MessageDispatcher dispatcher) {
+            this.dispatchers = new SharedDispatcher(Objects.requireNonNull(dispatcher, "dispatcher"));
+            return this;
+        }
+
+        /**
+         * @param dispatchers Makes the dispatcher of every client created with the options, for example
+         *                    {@code () -> MessageDispatcher.ordered(executor)}
+         * @return This builder
+         */
+        public Builder dispatcherPerClient(Supplier<MessageDispatcher> dispatchers) {
+            this.dispatchers = Objects.requireNonNull(dispatchers, "dispatchers");
+            return this;
+        }
+
+        /**
+         * @param frameTap Sees every received frame on the read thread, or null for none which is the default
+         * @return This builder
+         */
+        public Builder frameTap(FrameTap frameTap) {
+            this.frameTap = frameTap;
+            return this;
+        }
+
+        /**
+         * @param maskGenerator Makes the masking keys of sent frames, {@link MaskGenerator#secure()} by default
+         * @return This builder
+         */
+        public Builder maskGenerator(MaskGenerator maskGenerator) {
+            this.maskGenerator = Objects.requireNonNull(maskGenerator, "maskGenerator");
+            return this;
+        }
+
+        /**
+         * Lean idle mode for many mostly idle connections. Read and frame buffers are leased from a pool shared by all
+         * clients while data is being read or written, and are given back afterwards. An idle client then only holds a
+         * 128 byte buffer to wait for data with. Receiving data costs an extra copy of the first bytes and a few pool
+         * operations, so busy clients are better off without it. Off by default.
+         * <p>
+         * Measured with idle loopback tcp connections on JDK 17, a connection takes about 3.4 KB of heap with this on and
+         * about 40 KB with it off, including its socket. Every client still has its own read thread.
+         *
+         * @param leaseBuffers Whether to only hold buffers while there is data
+         * @return This builder
+         */
+        public Builder leaseBuffers(boolean leaseBuffers) {
+            this.leaseBuffers = leaseBuffers;
+            return this;
+        }
+
+        /**
+         * Limit the data messages and payload bytes every client sends. Each client gets its own limits, also when
+         * the options are shared. Sends over the limit wait in line until the limit allows them, unless
+         * {@link #rejectWhenRateLimited(RateLimiter.RejectionHandler)} is set. Control frames are never limited.
+         * Off by default.
+         *
+         * @param messagesPerSecond The amount of messages per second, or 0 for no limit
+         * @param bytesPerSecond    The amount of payload bytes per second, or 0 for no limit
+         * @param burst             How long the rates can be exceeded after being idle
+         * @param unit              The unit of the burst
+         * @return This builder
+         * @see RateLimiter
+         */
+        public Builder rateLimit(double messagesPerSecond, double bytesPerSecond, long burst, TimeUnit unit) {
+            if (!(messagesPerSecond >= 0) || !(bytesPerSecond >= 0)) throw new IllegalArgumentException("Rates cannot be negative");
+            if (burst <= 0) throw new IllegalArgumentException("Burst should be positive but is " + burst);
+
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.rateLimitBurstNanos = unit.toNanos(burst);
+            return this;
+        }
+
+        /**
+         * @param rateLimitGroup A limiter shared by all clients created with it, on top of their own limits. Null for
+         *                       none which is the default
+         * @return This builder
+         */
+        public Builder rateLimitGroup(RateLimiter rateLimitGroup) {
+            this.rateLimitGroup = rateLimitGroup;
+            return this;
+        }
+
+        /**
+         * Reject messages that are over the rate limits instead of waiting. A message is only rejected before any of it
+         * is written, the later frames of streamed messages, files and split messages wait for the limits.
+         *
+         * @param rejectionHandler Called for every rejected message, or null to wait which is the default
+         * @return This builder
+         */
+        public Builder rejectWhenRateLimited(RateLimiter.RejectionHandler rejectionHandler) {
+            this.rejectionHandler = rejectionHandler;
+            return this;
+        }
+
+        public ClientOptions build() {
+            return new ClientOptions(this);
+        }
+    }
+
+    private static final class SharedDispatcher implements Supplier<MessageDispatcher> {
+        final MessageDispatcher dispatcher;
+
+        SharedDispatcher(MessageDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public MessageDispatcher get() {
+            return dispatcher;
+        }
+    }
+}
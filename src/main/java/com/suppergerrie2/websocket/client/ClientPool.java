@@ -0,0 +1,382 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Opens multiple connections to the same uri and spreads sends over them, so the throughput is not limited by a single
+ * socket and writer. The messages received on all connections are passed to the handlers registered on the pool.
+ * <p>
+ * Sends without a key go to the connection picked by the {@link Balancing} of the pool. Sends with a key always go to the
+ * same connection, so messages with the same key stay in order. There is no ordering between different connections.
+ * <p>
+ * When a connection closes it is replaced in the background, waiting longer between attempts while the replacements
+ * keep failing. Until then sends go to the other connections, except for the keys of the closed connection.
+ */
+public class ClientPool implements Closeable {
+
+    public enum Balancing {
+        //Use the connections in turn
+        ROUND_ROBIN,
+        //Use the connection with the least bytes in sends that haven't returned yet
+        LEAST_OUTSTANDING
+    }
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    private final URI host;
+    private final ClientOptions options;
+    private final Balancing balancing;
+    private final Member[] members;
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService reconnector;
+    private volatile boolean closed;
+
+    /**
+     * Create a round robin pool with the default options.
+     *
+     * @param host The uri to connect to
+     * @param size The amount of connections
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     */
+    public ClientPool(URI host, int size) throws ProtocolException {
+        this(host, size, ClientOptions.defaults(), Balancing.ROUND_ROBIN);
+    }
+
+    /**
+     * @param host      The uri to connect to
+     * @param size      The amount of connections
+     * @param options   The options every connection is created with
+     * @param balancing How sends without a key pick a connection
+     * @throws ProtocolException        When the scheme of the uri is not ws, wss or ws+unix
+     * @throws IllegalArgumentException When the options give all connections the same ordered dispatcher, use
+     *                                  {@link ClientOptions.Builder#dispatcherPerClient} instead
+     */
+    public ClientPool(URI host, int size, ClientOptions options, Balancing balancing) throws ProtocolException {
+        if (size < 1) throw new IllegalArgumentException("A pool needs at least 1 connection, but size is " + size);
+        //One ordered dispatcher would handle the messages of all connections one at a time
+        if (options.isSharedOrderedDispatcher()) {
+            throw new IllegalArgumentException("The connections of a pool need their own ordered dispatcher, use dispatcherPerClient");
+        }
+
+        this.host = host;
+        this.options = options;
+        this.balancing = balancing;
+
+        members = new Member[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = new Member();
+            members[i].client = createClient(members[i]);
+        }
+
+        int id = POOL_IDS.incrementAndGet();
+        reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-pool-" + id + "-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Register a handler for the messages of the given protocol on every connection, including the ones that replace
+     * closed connections later.
+     *
+     * @param protocol The protocol the handler is for, or an empty string for when no protocol is agreed on
+     * @param handler  The handler, called for the messages of all connections at once. A connection with an ordered
+     *                 dispatcher only passes its own messages one at a time
+     */
+    public void registerMessageHandler(String protocol, Consumer<Message> handler) {
+        synchronized (members) {
+            registrations.add(new Registration(protocol, handler));
+            for (Member member : members) {
+                member.client.registerMessageHandler(protocol, handler);
+            }
+        }
+    }
+
+    /**
+     * Start connecting all connections. Use {@link #awaitOpen(long, TimeUnit)} to wait for the handshakes.
+     *
+     * @throws IOException When none of the connections could connect, the others are replaced in the background
+     */
+    public void start() throws IOException {
+        IOException failure = null;
+        int started = 0;
+
+        for (Member member : members) {
+            try {
+                member.client.start();
+                started++;
+            } catch (IOException e) {
+                //The close handler schedules the replacement
+                failure = e;
+            }
+        }
+
+        if (started == 0) throw failure;
+    }
+
+    /**
+     * Wait until all connections are open.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     * @return true if all connections are open, false if the timeout passed first
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitOpen(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (getOpenConnections() < members.length) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The amount of connections in the pool, open or not
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * @return The amount of connections that are open
+     */
+    public int getOpenConnections() {
+        int open = 0;
+        for (Member member : members) {
+            if (member.client.getState() == State.OPEN) open++;
+        }
+        return open;
+    }
+
+    /**
+     * Send a binary message over the connection picked by the balancing of the pool.
+     *
+     * @param buffer The bytes to send, between position and limit
+     * @throws IllegalStateException When no connection is open
+     * @throws UncheckedIOException  When writing to the connection fails, the message is not sent again
+     * @see Client#send(ByteBuffer)
+     */
+    public void send(ByteBuffer buffer) {
+        int position = buffer.position();
+        int length = buffer.remaining();
+        //A connection that closes during the send can have taken part of the buffer, the next one sends all of it
+        sendBalanced(length, client -> client.send(buffer.position(position)));
+    }
+
+    /**
+     * Send a text message over the connection picked by the balancing of the pool.
+     *
+     * @param text The text to send
+     * @throws IllegalStateException When no connection is open
+     * @throws UncheckedIOException  When writing to the connection fails, the message is not sent again
+     * @see Client#send(CharSequence)
+     */
+    public void send(CharSequence text) {
+        sendBalanced(FrameWriter.encodedLength(text), client -> client.send(text));
+    }
+
+    /**
+     * Send a binary message over the connection of the key. Messages with the same key are received in the order they are
+     * sent in.
+     *
+     * @param key    The key, its hash code picks the connection
+     * @param buffer The bytes to send, between position and limit
+     * @throws IllegalStateException When the connection of the key is not open
+     * @throws UncheckedIOException  When writing to the connection fails, the message is not sent again
+     */
+    public void send(Object key, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        sendTo(memberFor(key), length, client -> client.send(buffer));
+    }
+
+    /**
+     * Send a text message over the connection of the key. Messages with the same key are received in the order they are
+     * sent in.
+     *
+     * @param key  The key, its hash code picks the connection
+     * @param text The text to send
+     * @throws IllegalStateException When the connection of the key is not open
+     * @throws UncheckedIOException  When writing to the connection fails, the message is not sent again
+     */
+    public void send(Object key, CharSequence text) {
+        sendTo(memberFor(key), FrameWriter.encodedLength(text), client -> client.send(text));
+    }
+
+    /**
+     * Stop all connections and stop replacing them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        reconnector.shutdownNow();
+
+        for (Member member : members) {
+            Client client = member.client;
+            if (client.isConnected()) client.abort(Constants.StatusCode.GOING_AWAY);
+        }
+    }
+
+    private Member memberFor(Object key) {
+        return members[Math.floorMod(key.hashCode(), members.length)];
+    }
+
+    private void sendBalanced(long length, Consumer<Client> send) {
+        //A connection can close between picking it and sending, then the next one is tried. A failed write is thrown,
+        //how much of the message the server got is not known
+        for (int attempt = 0; attempt < members.length; attempt++) {
+            Member member = pick();
+            if (member == null) break;
+
+            try {
+                sendTo(member, length, send);
+                return;
+            } catch (IllegalStateException e) {
+                if (member.client.getState() == State.OPEN) throw e;
+            }
+        }
+
+        throw new IllegalStateException("None of the connections in the pool are open");
+    }
+
+    private void sendTo(Member member, long length, Consumer<Client> send) {
+        member.outstanding.addAndGet(length);
+        try {
+            send.accept(member.client);
+        } finally {
+            member.outstanding.addAndGet(-length);
+        }
+    }
+
+    /**
+     * @return An open member picked by the balancing, or null if none are open
+     */
+    private Member pick() {
+        int start = Math.floorMod(next.getAndIncrement(), members.length);
+
+        if (balancing == Balancing.ROUND_ROBIN) {
+            for (int i = 0; i < members.length; i++) {
+                Member member = members[(start + i) % members.length];
+                if (member.client.getState() == State.OPEN) return member;
+            }
+            return null;
+        }
+
+        //Start at a different member every time, so ties are spread over the connections
+        Member best = null;
+        long bestOutstanding = Long.MAX_VALUE;
+        for (int i = 0; i < members.length; i++) {
+            Member member = members[(start + i) % members.length];
+            long outstanding = member.outstanding.get();
+            if (outstanding < bestOutstanding && member.client.getState() == State.OPEN) {
+                best = member;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+
+    private Client createClient(Member member) throws ProtocolException {
+        Client client = new Client(host, options);
+        for (Registration registration : registrations) {
+            client.registerMessageHandler(registration.protocol, registration.handler);
+        }
+        client.registerCloseHandler(closedClient -> onClosed(member, closedClient));
+        return client;
+    }
+
+    private void onClosed(Member member, Client client) {
+        if (closed || member.client != client) return;
+
+        //A connection that stayed up for a while starts over with the shortest delay
+        if (System.nanoTime() - member.startedAt > TimeUnit.MILLISECONDS.toNanos(MAX_RECONNECT_DELAY_MILLIS)) {
+            member.failures = 0;
+        }
+
+        long delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, MIN_RECONNECT_DELAY_MILLIS << Math.min(member.failures, 6));
+        member.failures++;
+
+        try {
+            reconnector.schedule(() -> replace(member), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //The pool was closed in the meantime
+        }
+    }
+
+    private void replace(Member member) {
+        if (closed) return;
+
+        Client client;
+        synchronized (members) {
+            try {
+                client = createClient(member);
+            } catch (ProtocolException e) {
+                //The uri was valid for the first clients, so it is for this one
+                throw new IllegalStateException(e);
+            }
+            member.client = client;
+        }
+
+        //The pool can close while the client is made or started, it then missed this client in its members
+        if (abortIfClosed(client)) return;
+
+        member.startedAt = System.nanoTime();
+        try {
+            client.start();
+        } catch (IOException e) {
+            //Starting closed the client, which scheduled the next attempt
+            System.out.printf("Could not replace connection to %s: %s%n", host, e.getMessage());
+        }
+
+        abortIfClosed(client);
+    }
+
+    private boolean abortIfClosed(Client client) {
+        if (!closed) return false;
+
+        if (client.isConnected()) client.abort(Constants.StatusCode.GOING_AWAY);
+        return true;
+    }
+
+    private static final class Member {
+        volatile Client client;
+        final AtomicLong outstanding = new AtomicLong();
+        //Only used by the close handlers and the reconnect thread, one at a time
+        volatile long startedAt = System.nanoTime();
+        volatile int failures;
+    }
+
+    private static final class Registration {
+        final String protocol;
+        final Consumer<Message> handler;
+
+        Registration(String protocol, Consumer<Message> handler) {
+            this.protocol = protocol;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.ProtocolErrorException;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the messages of a subprotocol into values and back, so handlers get typed values instead of raw messages.
+ * Register one with {@link Client#registerMessageHandler(String, Codec, java.util.function.Consumer)} and send values with
+ * {@link Client#send(Codec, Object)}.
+ * <p>
+ * Codecs work on buffers: a message is decoded straight from its payload and a value is encoded straight into the frame
+ * buffer of the client. Codecs are used from multiple threads at once, so they should not keep state between calls.
+ *
+ * @param <T> The type of the values
+ */
+public interface Codec<T> {
+
+    /**
+     * @return The type of the messages of this codec, {@link Fragment.OpCode#TEXT_FRAME} or {@link Fragment.OpCode#BINARY_FRAME}
+     */
+    Fragment.OpCode messageType();
+
+    /**
+     * Decode the payload of a message. The buffer is a read only view on the payload, it is only valid during this call.
+     *
+     * @param payload The payload between position and limit
+     * @return The decoded value
+     * @throws ProtocolErrorException When the payload is not a valid value, the connection is closed with its status code
+     */
+    T decode(ByteBuffer payload) throws ProtocolErrorException;
+
+    /**
+     * Decode the payload of a message that is split over buffers, one for every fragment. The client decodes every
+     * message with this. The default decodes a single buffer directly and copies more buffers into one, codecs that can
+     * decode across the buffers should override it to skip that copy.
+     *
+     * @param payload The read only buffers that together form the payload, only valid during this call
+     * @return The decoded value
+     * @throws ProtocolErrorException When the payload is not a valid value, the connection is closed with its status code
+     */
+    default T decode(ByteBuffer[] payload) throws ProtocolErrorException {
+        if (payload.length == 1) return decode(payload[0]);
+
+        int length = 0;
+        for (ByteBuffer buffer : payload) length += buffer.remaining();
+
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : payload) joined.put(buffer);
+        return decode(joined.flip());
+    }
+
+    /**
+     * Encode a value into the buffer, starting at its position and advancing it with relative puts.
+     * The buffer can be too small for the value, then a {@link BufferOverflowException} should be thrown and the value
+     * is encoded again into a bigger buffer.
+     *
+     * @param value       The value to encode
+     * @param destination The buffer to write to
+     * @throws BufferOverflowException When the value does not fit in the remaining bytes of the buffer
+     */
+    void encode(T value, ByteBuffer destination);
+
+    /**
+     * A codec for text messages that are decoded to strings.
+     *
+     * @return The text codec
+     */
+    static Codec<String> text() {
+        return TextCodec.INSTANCE;
+    }
+}
@@ -0,0 +1,61 @@
+package com.suppergerrie2.websocket.client;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of how long messages wait between being read and being passed to the handlers.
+ * The delay is measured for every {@link MessageDispatcher}, for inline dispatching it is close to 0.
+ */
+public class DispatchMetrics {
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder totalDelayNanos = new LongAdder();
+    private final LongAccumulator maxDelayNanos = new LongAccumulator(Math::max, 0);
+
+    void onDispatched() {
+        dispatched.increment();
+    }
+
+    void onStarted(long delayNanos) {
+        started.increment();
+        totalDelayNanos.add(delayNanos);
+        maxDelayNanos.accumulate(delayNanos);
+    }
+
+    /**
+     * @return The amount of messages that have been passed to the handlers
+     */
+    public long getHandledCount() {
+        return started.sum();
+    }
+
+    /**
+     * @return The amount of messages that are waiting to be passed to the handlers
+     */
+    public long getQueuedCount() {
+        return Math.max(0, dispatched.sum() - started.sum());
+    }
+
+    /**
+     * @return The average time in nanoseconds messages waited before their handlers started
+     */
+    public double getMeanDelayNanos() {
+        long count = started.sum();
+        return count == 0 ? 0 : (double) totalDelayNanos.sum() / count;
+    }
+
+    /**
+     * @return The longest time in nanoseconds a message waited before its handlers started
+     */
+    public long getMaxDelayNanos() {
+        return maxDelayNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("handled %d, queued %d, mean delay %.1f us, max delay %.1f us", getHandledCount(),
+                             getQueuedCount(), getMeanDelayNanos() / 1000, getMaxDelayNanos() / 1000.0);
+    }
+}
@@ -0,0 +1,174 @@
+package com.suppergerrie2.websocket.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the payload size of the frames a client sends, and keeps the measurements the size is based on.
+ * <p>
+ * Without adaptive sizing the size is always {@link ClientOptions#getMaxFragmentPayloadSize()}. With adaptive sizing,
+ * see {@link ClientOptions.Builder#adaptiveFragmentSize(int, int)}, a fragment is made as big as the connection writes
+ * in half a round trip. Pongs and the next message wait at most one fragment, so they are delayed by less than a round
+ * trip on a slow connection, while a fast connection with a long round trip gets big fragments with little overhead.
+ * <p>
+ * The write throughput is measured from every write of the frame buffer to the transport of at least 1 KB. The round
+ * trip time is measured with a ping the client sends before a data message, at most once a second. Both are smoothed,
+ * so a single slow write or late pong only moves the size a bit. Until the round trip time is known a fragment is sized
+ * to take 10 milliseconds.
+ */
+public class FragmentSizer {
+
+    //Smaller writes are mostly the cost of the write call itself
+    static final int MIN_SAMPLE_BYTES = 1024;
+    static final long PING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    //A ping without a pong for this long is given up on, so a server that doesn't answer doesn't stop the pings
+    static final long PING_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    static final long DEFAULT_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    static final long MIN_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long MAX_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //Size of the first fragments, before anything is measured
+    static final int INITIAL_FRAGMENT_SIZE = 64 * 1024;
+
+    //Weight of a new sample, the round trip time is smoothed like tcp does
+    private static final double THROUGHPUT_WEIGHT = 0.25;
+    private static final double ROUND_TRIP_WEIGHT = 0.125;
+
+    private final boolean adaptive;
+    private final int minFragmentSize;
+    private final int maxFragmentSize;
+    private volatile int fragmentSize;
+
+    //Updated while holding this, read without
+    private volatile double bytesPerSecond;
+    private volatile long roundTripNanos = -1;
+
+    //The time the outstanding ping was sent, which is also its payload. 0 when there is none
+    private final AtomicLong pingSentAt = new AtomicLong();
+    private volatile long lastPingAt;
+
+    /**
+     * A sizer that always picks the given size.
+     */
+    FragmentSizer(int fragmentSize) {
+        this.adaptive = false;
+        this.minFragmentSize = fragmentSize;
+        this.maxFragmentSize = fragmentSize;
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * A sizer that picks sizes between the bounds from the measurements.
+     */
+    FragmentSizer(int minFragmentSize, int maxFragmentSize) {
+        this.adaptive = true;
+        this.minFragmentSize = minFragmentSize;
+        this.maxFragmentSize = maxFragmentSize;
+        this.fragmentSize = clamp(INITIAL_FRAGMENT_SIZE);
+        this.lastPingAt = System.nanoTime() - PING_INTERVAL_NANOS;
+    }
+
+    /**
+     * @return The maximum payload size of the next frame, bigger messages are split into multiple frames
+     */
+    public int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    /**
+     * @return true if the size is picked from the measurements, false if it is fixed
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return The smoothed amount of bytes per second written to the transport, or 0 if nothing was measured yet
+     */
+    public double getWriteThroughput() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return The smoothed round trip time of a ping in nanoseconds, or -1 if no pong was received yet
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    /**
+     * Called after the frame writer wrote to the transport.
+     *
+     * @param bytes The amount of bytes written
+     * @param nanos How long the write took
+     */
+    void onWrite(int bytes, long nanos) {
+        if (!adaptive || bytes < MIN_SAMPLE_BYTES) return;
+
+        double sample = bytes * 1e9 / Math.max(nanos, 1);
+        synchronized (this) {
+            double current = bytesPerSecond;
+            bytesPerSecond = current == 0 ? sample : current + (sample - current) * THROUGHPUT_WEIGHT;
+            resize();
+        }
+    }
+
+    /**
+     * Claim the next ping, at most one ping is outstanding and they are sent at most once every second.
+     *
+     * @param now The current {@link System#nanoTime()}, sent as the payload of the ping
+     * @return true if the caller should send a ping with now as payload
+     */
+    boolean startPing(long now) {
+        if (!adaptive || now == 0) return false;
+
+        long sent = pingSentAt.get();
+        if (sent != 0 ? now - sent < PING_TIMEOUT_NANOS : now - lastPingAt < PING_INTERVAL_NANOS) return false;
+        if (!pingSentAt.compareAndSet(sent, now)) return false;
+
+        lastPingAt = now;
+        return true;
+    }
+
+    /**
+     * Called for every received pong, pongs that don't answer the outstanding ping are ignored.
+     *
+     * @param payload The payload of the pong, between position and limit
+     * @param now     The current {@link System#nanoTime()}
+     */
+    void onPong(ByteBuffer payload, long now) {
+        if (payload.remaining() != Long.BYTES) return;
+
+        long sent = payload.getLong(payload.position());
+        if (sent == 0 || !pingSentAt.compareAndSet(sent, 0)) return;
+
+        long sample = now - sent;
+        synchronized (this) {
+            long current = roundTripNanos;
+            roundTripNanos = current < 0 ? sample : current + (long) ((sample - current) * ROUND_TRIP_WEIGHT);
+            resize();
+        }
+    }
+
+    /**
+     * Size a fragment to take half a round trip to write, called while holding this.
+     */
+    private void resize() {
+        if (bytesPerSecond == 0) return;
+
+        long rtt = roundTripNanos;
+        long target = rtt < 0 ? DEFAULT_TARGET_NANOS : Math.max(MIN_TARGET_NANOS, Math.min(MAX_TARGET_NANOS, rtt / 2));
+        fragmentSize = clamp((long) (bytesPerSecond * target / 1e9));
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(minFragmentSize, Math.min(maxFragmentSize, size));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fragment size %d, write throughput %.1f MB/s, rtt %s", fragmentSize, bytesPerSecond / 1e6,
+                             roundTripNanos < 0 ? "unknown" : String.format("%.1f ms", roundTripNanos / 1e6));
+    }
+}
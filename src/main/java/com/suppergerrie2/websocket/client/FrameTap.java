@@ -0,0 +1,26 @@
+package com.suppergerrie2.websocket.client;
+
+/**
+ * Sees every frame a client receives, right after it has been decoded and before the client handles it.
+ * Set it with {@link ClientOptions.Builder#frameTap(FrameTap)}, for example to record the frames in a
+ * {@link com.suppergerrie2.websocket.journal.FrameJournal}.
+ * <p>
+ * The tap is called on the read thread of the client, so it should never block. One tap can be shared by many clients,
+ * in which case it is called from multiple threads at the same time.
+ */
+public interface FrameTap {
+
+    /**
+     * Called for every received frame. The payload is only valid during this call, as it can be a view on the read buffer.
+     *
+     * @param connectionId The id of the client that received the frame, see {@link Client#getConnectionId()}
+     * @param timestamp    The {@link System#nanoTime()} at which the frame was decoded
+     * @param fin          Whether the fin bit was set
+     * @param rsv          The 3 reserved bits
+     * @param opcode       The opcode bits
+     * @param payload      The array holding the unmasked payload
+     * @param offset       The index of the payload in the array
+     * @param length       The length of the payload
+     */
+    void onFrame(long connectionId, long timestamp, boolean fin, int rsv, int opcode, byte[] payload, int offset, int length);
+}
@@ -0,0 +1,578 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.MaskGenerator;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.FrameView;
+import com.suppergerrie2.websocket.transport.Transport;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes frames to the connection. Every frame is written while holding a lock, so frames sent from different threads
+ * never end up mixed on the wire.
+ * <p>
+ * Frames are encoded and masked into a reusable buffer, so writing a frame does not allocate.
+ * <p>
+ * Pongs and the close frame have a priority lane: {@link #queuePong(byte[])} and {@link #queueClose(byte[], Runnable)}
+ * never block, they are written by the next thread that takes the lock, before its own frame. So it goes in between the fragments of a message that is being sent, and when
+ * nothing is being sent a shared background thread writes it. That thread never waits for the lock, when a frame is
+ * being written the thread writing it also writes the pong when it is done. So only a full socket can hold up one of
+ * the few shared threads, and not a big frame. Once the close frame is written no other frames follow it.
+ * <p>
+ * When buffers are leased the frame buffer is only held while a frame is being written, idle writers hold no buffer.
+ */
+class FrameWriter {
+
+    //2 bytes, 8 bytes extended payload length and 4 bytes masking key
+    static final int MAX_HEADER_SIZE = 14;
+
+    private static final AtomicInteger CONTROL_WRITER_IDS = new AtomicInteger();
+    private static final int CONTROL_WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    //Writes pongs for idle connections. A fixed amount of threads, so thousands of stalled connections don't each hold one
+    private static final ExecutorService CONTROL_WRITER = Executors.newFixedThreadPool(CONTROL_WRITER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "websocket-control-writer-" + CONTROL_WRITER_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Transport transport;
+    private final ReentrantLock lock = new ReentrantLock();
+    //Null when the frame buffer is always held
+    private final BufferPool pool;
+    //The frame buffer and its views, only set while the lock is held when buffers are leased
+    private byte[] buffer;
+    private ByteBuffer bufferView;
+    //Separate view for writing, as bufferView is still in use by the encoder while writing
+    private ByteBuffer writeView;
+    private final MaskGenerator masks;
+    //Gets the duration of every write, null when nothing is measured
+    private final FragmentSizer sizer;
+    //Payload of the pong to write, only the latest one is kept as a pong only has to answer the most recent ping
+    private final AtomicReference<byte[]> pendingPong = new AtomicReference<>();
+    //Payload of the close frame to write after the pong, only the first one is kept
+    private final AtomicReference<byte[]> pendingClose = new AtomicReference<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    //Guarded by lock. Set once the close frame is written, and whether the callbacks still have to run
+    private boolean closeWritten;
+    private boolean closeCallbacksDue;
+    //Run once the close frame is written, each exactly once by whichever thread polls it
+    private final Queue<Runnable> closeCallbacks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closeDone;
+
+    FrameWriter(Transport transport, int bufferSize) {
+        this(transport, bufferSize, MaskGenerator.secure(), false);
+    }
+
+    /**
+     * @param transport  The transport to write to
+     * @param bufferSize The size of the frame buffer, frames with bigger payloads are written in pieces
+     * @param masks      Makes the masking key of every frame
+     */
+    FrameWriter(Transport transport, int bufferSize, MaskGenerator masks) {
+        this(transport, bufferSize, masks, false);
+    }
+
+    /**
+     * @param transport    The transport to write to
+     * @param bufferSize   The size of the frame buffer, frames with bigger payloads are written in pieces
+     * @param masks        Makes the masking key of every frame
+     * @param leaseBuffers Whether to only hold the frame buffer while writing, see {@link ClientOptions#isLeaseBuffers()}
+     */
+    FrameWriter(Transport transport, int bufferSize, MaskGenerator masks, boolean leaseBuffers) {
+        this(transport, bufferSize, masks, leaseBuffers, null);
+    }
+
+    /**
+     * @param transport    The transport to write to
+     * @param bufferSize   The size of the frame buffer, frames with bigger payloads are written in pieces
+     * @param masks        Makes the masking key of every frame
+     * @param leaseBuffers Whether to only hold the frame buffer while writing, see {@link ClientOptions#isLeaseBuffers()}
+     * @param sizer        Measures the write throughput from the writes of the frame buffer, or null
+     */
+    FrameWriter(Transport transport, int bufferSize, MaskGenerator masks, boolean leaseBuffers, FragmentSizer sizer) {
+        this.transport = transport;
+        this.masks = masks;
+        this.sizer = sizer;
+
+        int size = Math.max(bufferSize, MAX_HEADER_SIZE + 1);
+        if (leaseBuffers) {
+            pool = BufferPool.forSize(size);
+        } else {
+            pool = null;
+            useBuffer(new byte[size]);
+        }
+    }
+
+    private void useBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.bufferView = buffer == null ? null : ByteBuffer.wrap(buffer);
+        this.writeView = buffer == null ? null : ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Take the lock, and lease the frame buffer when buffers are leased.
+     */
+    private void lock() {
+        lock.lock();
+        if (pool != null && buffer == null) useBuffer(pool.lease());
+    }
+
+    /**
+     * Take the lock if no other thread holds it, and lease the frame buffer when buffers are leased.
+     *
+     * @return true if the lock was taken
+     */
+    private boolean tryLock() {
+        if (!lock.tryLock()) return false;
+        if (pool != null && buffer == null) useBuffer(pool.lease());
+        return true;
+    }
+
+    /**
+     * Give the frame buffer back when buffers are leased and release the lock. A pong that was queued while the lock was
+     * held is then written by the control writer.
+     */
+    private void unlock() {
+        boolean outermost = lock.getHoldCount() == 1;
+        boolean closed = false;
+        if (outermost) {
+            if (pool != null) {
+                pool.release(buffer);
+                useBuffer(null);
+            }
+
+            closed = closeCallbacksDue;
+            closeCallbacksDue = false;
+        }
+        lock.unlock();
+
+        if (!outermost) return;
+        if (closed) {
+            closeDone = true;
+            runCloseCallbacks();
+        } else if (pendingPong.get() != null || pendingClose.get() != null) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Write a masked frame with the given payload.
+     *
+     * @param fin     Whether this is the last frame of the message
+     * @param opCode  The opcode of the frame
+     * @param payload The array containing the payload, this is not changed
+     * @param offset  The index of the first payload byte
+     * @param length  The amount of payload bytes
+     * @throws IOException When writing to the connection fails
+     */
+    void writeFrame(boolean fin, Fragment.OpCode opCode, byte[] payload, int offset, int length) throws IOException {
+        lock();
+        try {
+            writePendingControl();
+            ensureCloseNotWritten();
+            writeFrameLocked(fin, opCode, payload, offset, length);
+        } finally {
+            unlock();
+        }
+    }
+
+    private void writeFrameLocked(boolean fin, Fragment.OpCode opCode, byte[] payload, int offset, int length) throws IOException {
+        int maskKey = masks.nextMask();
+        int position = writeHeader(fin, opCode, length, maskKey);
+
+        int written = 0;
+        do {
+            int chunk = Math.min(length - written, buffer.length - position);
+            System.arraycopy(payload, offset + written, buffer, position, chunk);
+
+            //Masking is the same xor as unmasking
+            FrameView.unmask(bufferView, position, position + chunk, maskKey, written);
+
+            flush(position + chunk);
+            position = 0;
+            written += chunk;
+        } while (written < length);
+    }
+
+    /**
+     * Queue a pong to be written as soon as possible, without waiting for the frame that is being written.
+     * When a pong is still queued its payload is replaced, a pong only has to answer the most recent ping. (RFC-6455 Section 5.5.3.)
+     *
+     * @param payload The payload of the ping to answer, at most 125 bytes
+     */
+    void queuePong(byte[] payload) {
+        pendingPong.set(payload);
+        scheduleFlush();
+    }
+
+    /**
+     * Queue the close frame to be written as soon as possible, without waiting for the frame that is being written.
+     * Only the first close frame is written, frames written after it fail.
+     *
+     * @param payload    The payload of the close frame, at most 125 bytes
+     * @param afterWrite Run once the close frame is written or writing it failed, see {@link #afterClose(Runnable)}.
+     *                   Can be null
+     */
+    void queueClose(byte[] payload, Runnable afterWrite) {
+        pendingClose.compareAndSet(null, payload);
+        if (afterWrite != null) afterClose(afterWrite);
+        scheduleFlush();
+    }
+
+    /**
+     * Run the callback once the queued close frame is written or writing it failed, for example to close the transport.
+     * Runs right away when that already happened.
+     *
+     * @param callback The callback
+     */
+    void afterClose(Runnable callback) {
+        closeCallbacks.add(callback);
+        if (closeDone) runCloseCallbacks();
+    }
+
+    private void runCloseCallbacks() {
+        Runnable callback;
+        while ((callback = closeCallbacks.poll()) != null) callback.run();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            CONTROL_WRITER.execute(this::flushControl);
+        }
+    }
+
+    private void flushControl() {
+        //Cleared before taking the lock, a pong queued after this schedules a new flush and is not missed
+        flushScheduled.set(false);
+
+        //The thread that holds the lock writes the pong, either before its next frame or by scheduling a flush after
+        //releasing the lock. Waiting for it would hold up a shared thread for as long as its frame takes
+        if (!tryLock()) return;
+        try {
+            writePendingControl();
+        } catch (IOException e) {
+            //The read thread notices the broken connection and closes the client
+            e.printStackTrace();
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Write the queued pong and close frame, called while holding the lock before writing anything else.
+     */
+    private void writePendingControl() throws IOException {
+        if (closeWritten) {
+            //Nothing follows the close frame
+            pendingPong.set(null);
+            return;
+        }
+
+        byte[] pong = pendingPong.getAndSet(null);
+        if (pong != null) writeFrameLocked(true, Fragment.OpCode.PONG, pong, 0, pong.length);
+
+        byte[] close = pendingClose.getAndSet(null);
+        if (close != null) {
+            //Set first, so the callbacks also run when writing fails
+            closeWritten = true;
+            closeCallbacksDue = true;
+            writeFrameLocked(true, Fragment.OpCode.CONNECTION_CLOSE, close, 0, close.length);
+        }
+    }
+
+    private void ensureCloseNotWritten() throws IOException {
+        if (closeWritten) throw new IOException("The close frame was written, no frames can follow it");
+    }
+
+    /**
+     * Write a masked frame with the next length bytes of the buffer as payload, the position of the buffer is advanced by length.
+     * Direct buffers are copied and masked in pieces into the frame buffer, they are never copied to a heap array as a whole.
+     *
+     * @param fin     Whether this is the last frame of the message
+     * @param opCode  The opcode of the frame
+     * @param payload The buffer containing the payload at its position
+     * @param length  The amount of payload bytes
+     * @throws IOException When writing to the connection fails
+     */
+    void writeFrame(boolean fin, Fragment.OpCode opCode, ByteBuffer payload, int length) throws IOException {
+        if (payload.hasArray()) {
+            writeFrame(fin, opCode, payload.array(), payload.arrayOffset() + payload.position(), length);
+            payload.position(payload.position() + length);
+            return;
+        }
+
+        lock();
+        try {
+            writePendingControl();
+            ensureCloseNotWritten();
+            int maskKey = masks.nextMask();
+            int position = writeHeader(fin, opCode, length, maskKey);
+
+            int written = 0;
+            do {
+                int chunk = Math.min(length - written, buffer.length - position);
+                payload.get(buffer, position, chunk);
+
+                FrameView.unmask(bufferView, position, position + chunk, maskKey, written);
+
+                flush(position + chunk);
+                position = 0;
+                written += chunk;
+            } while (written < length);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Write a text message as one frame. The text is encoded straight into the frame buffer, piece by piece.
+     * The characters are encoded here instead of by a {@link java.nio.charset.CharsetEncoder}, which needs a
+     * {@link java.nio.CharBuffer} wrapping the text for every message.
+     *
+     * @param text          The text to send
+     * @param encodedLength The amount of bytes of the encoded text, see {@link #encodedLength(CharSequence)}
+     * @throws IOException When writing to the connection fails
+     */
+    void writeTextFrame(CharSequence text, int encodedLength) throws IOException {
+        writeTextFrame(true, Fragment.OpCode.TEXT_FRAME, text, 0, text.length(), encodedLength);
+    }
+
+    /**
+     * Write the characters in a range of the text as one frame, encoded like {@link #writeTextFrame(CharSequence, int)}.
+     * A surrogate pair split by the ends of the range is not a pair, so use {@link #fragmentEnd} to find the ends.
+     *
+     * @param fin           Whether this is the last frame of the message
+     * @param opCode        The opcode of the frame, {@link Fragment.OpCode#CONTINUATION} for all but the first frame
+     * @param text          The text to send
+     * @param from          The index of the first character of the frame
+     * @param to            The index after the last character of the frame
+     * @param encodedLength The amount of bytes of the encoded range, see {@link #encodedLength(CharSequence, int, int)}
+     * @throws IOException When writing to the connection fails
+     */
+    void writeTextFrame(boolean fin, Fragment.OpCode opCode, CharSequence text, int from, int to, int encodedLength) throws IOException {
+        lock();
+        try {
+            writePendingControl();
+            ensureCloseNotWritten();
+            int maskKey = masks.nextMask();
+            int start = writeHeader(fin, opCode, encodedLength, maskKey);
+            int position = start;
+
+            long written = 0;
+            for (int i = from; i < to; i++) {
+                //Room for the longest encoding, so a character is never split over two writes
+                if (buffer.length - position < 4) {
+                    FrameView.unmask(bufferView, start, position, maskKey, written);
+                    flush(position);
+                    written += position - start;
+                    start = position = 0;
+                }
+
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    //Not part of a pair, replaced just like String.getBytes does
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | c >> 12);
+                    buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+
+            FrameView.unmask(bufferView, start, position, maskKey, written);
+            flush(position);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Calculate how many bytes the text is when encoded as UTF-8 by {@link #writeTextFrame(CharSequence, int)}, without encoding it.
+     * Surrogates that are not part of a pair are replaced with a '?', just like {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @param text The text
+     * @return The amount of bytes
+     */
+    static long encodedLength(CharSequence text) {
+        return encodedLength(text, 0, text.length());
+    }
+
+    /**
+     * @param text The text
+     * @param from The index of the first character
+     * @param to   The index after the last character
+     * @return The amount of bytes of the characters in the range when encoded, see {@link #encodedLength(CharSequence)}
+     */
+    static long encodedLength(CharSequence text, int from, int to) {
+        long length = 0;
+
+        for (int i = from; i < to; ) {
+            int characterLength = encodedCharacterLength(text, i, to);
+            length += characterLength;
+            //A surrogate pair is the only 4 byte encoding
+            i += characterLength == 4 ? 2 : 1;
+        }
+
+        return length;
+    }
+
+    /**
+     * Find where a frame of text that starts at an index should end, so its encoding fits in the max payload size
+     * without splitting a character or surrogate pair. A frame has at least one character, so with a max below 4
+     * bytes a frame can be bigger than the max.
+     *
+     * @param text           The text
+     * @param from           The index of the first character of the frame
+     * @param maxPayloadSize The maximum payload size of a frame
+     * @return The index after the last character of the frame
+     */
+    static int fragmentEnd(CharSequence text, int from, long maxPayloadSize) {
+        long length = 0;
+
+        int i = from;
+        while (i < text.length()) {
+            int characterLength = encodedCharacterLength(text, i, text.length());
+            if (length + characterLength > maxPayloadSize && i > from) break;
+
+            length += characterLength;
+            i += characterLength == 4 ? 2 : 1;
+        }
+
+        return i;
+    }
+
+    private static int encodedCharacterLength(CharSequence text, int i, int to) {
+        char c = text.charAt(i);
+
+        if (c < 0x80) return 1;
+        if (c < 0x800) return 2;
+        if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) return 4;
+        if (Character.isSurrogate(c)) return 1;
+        return 3;
+    }
+
+    /**
+     * Encode a value with the codec straight into the frame buffer and write it as one frame.
+     * The payload is encoded after room for the biggest header, once its length is known the header is written right
+     * before it.
+     *
+     * @param codec          The codec to encode the value with
+     * @param value          The value to encode
+     * @param maxPayloadSize The maximum payload size of a frame
+     * @param <T>            The type of the value
+     * @return The payload size of the written frame, or -1 if nothing was written because the encoded value does not fit
+     * in the frame buffer or in one frame
+     * @throws IOException When writing to the connection fails
+     */
+    <T> int writeEncoded(Codec<T> codec, T value, int maxPayloadSize) throws IOException {
+        lock();
+        try {
+            writePendingControl();
+            ensureCloseNotWritten();
+            bufferView.clear();
+            bufferView.position(MAX_HEADER_SIZE);
+            bufferView.limit((int) Math.min(buffer.length, (long) MAX_HEADER_SIZE + maxPayloadSize));
+
+            try {
+                codec.encode(value, bufferView);
+            } catch (BufferOverflowException e) {
+                return -1;
+            }
+
+            int end = bufferView.position();
+            int length = end - MAX_HEADER_SIZE;
+            int maskKey = masks.nextMask();
+            int start = MAX_HEADER_SIZE - headerSize(length);
+
+            writeHeader(start, true, codec.messageType(), length, maskKey);
+            FrameView.unmask(bufferView, MAX_HEADER_SIZE, end, maskKey, 0);
+
+            writeView.limit(end);
+            writeView.position(start);
+            write(writeView);
+            return length;
+        } finally {
+            bufferView.clear();
+            unlock();
+        }
+    }
+
+    /**
+     * Write the first bytes of the frame buffer to the transport.
+     */
+    private void flush(int length) throws IOException {
+        writeView.limit(length);
+        writeView.position(0);
+        write(writeView);
+    }
+
+    private void write(ByteBuffer source) throws IOException {
+        if (sizer == null) {
+            transport.write(source);
+            return;
+        }
+
+        int bytes = source.remaining();
+        long start = System.nanoTime();
+        transport.write(source);
+        sizer.onWrite(bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * @return The size of the header of a masked frame with a payload of the given length
+     */
+    private static int headerSize(int length) {
+        return length > 65535 ? MAX_HEADER_SIZE : length > 125 ? 8 : 6;
+    }
+
+    private int writeHeader(boolean fin, Fragment.OpCode opCode, int length, int maskKey) {
+        return writeHeader(0, fin, opCode, length, maskKey);
+    }
+
+    /**
+     * Write the header of a masked frame.
+     *
+     * @param start The index in the frame buffer to write the header at
+     * @return The index after the header, where the payload starts
+     */
+    private int writeHeader(int start, boolean fin, Fragment.OpCode opCode, int length, int maskKey) {
+        int position = start;
+        buffer[position++] = (byte) ((fin ? 0b10000000 : 0) | opCode.bits);
+
+        if (length > 65535) {
+            buffer[position++] = (byte) (0b10000000 | 127);
+            bufferView.putLong(position, length);
+            position += 8;
+        } else if (length > 125) {
+            buffer[position++] = (byte) (0b10000000 | 126);
+            bufferView.putShort(position, (short) length);
+            position += 2;
+        } else {
+            buffer[position++] = (byte) (0b10000000 | length);
+        }
+
+        bufferView.putInt(position, maskKey);
+        return position + 4;
+    }
+}
@@ -0,0 +1,64 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The message handlers of a {@link Client}, grouped by protocol.
+ * <p>
+ * Registering copies the handlers and publishes the new copy, so reading never needs a lock. The handlers of the
+ * active protocol are kept in a separate array so the read thread gets them with a single volatile read.
+ */
+class HandlerRegistry {
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Consumer<Message>[] NO_HANDLERS = new Consumer[0];
+
+    private volatile Map<String, Consumer<Message>[]> handlers = Collections.emptyMap();
+    private volatile Consumer<Message>[] active = NO_HANDLERS;
+    private String activeProtocol;
+
+    synchronized void register(String protocol, Consumer<Message> handler) {
+        Map<String, Consumer<Message>[]> copy = new HashMap<>(handlers);
+
+        Consumer<Message>[] current = copy.getOrDefault(protocol, NO_HANDLERS);
+        Consumer<Message>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = handler;
+        copy.put(protocol, updated);
+
+        handlers = Collections.unmodifiableMap(copy);
+
+        if (protocol.equals(activeProtocol)) active = updated;
+    }
+
+    /**
+     * Select the handlers of the protocol that was agreed on during the handshake.
+     *
+     * @param protocol The active protocol
+     */
+    synchronized void activate(String protocol) {
+        activeProtocol = protocol;
+        active = handlers.getOrDefault(protocol, NO_HANDLERS);
+    }
+
+    /**
+     * @return The handlers of the active protocol. The array should not be modified.
+     */
+    Consumer<Message>[] active() {
+        return active;
+    }
+
+    boolean hasProtocol(String protocol) {
+        return handlers.containsKey(protocol);
+    }
+
+    Set<String> protocols() {
+        return handlers.keySet();
+    }
+}
@@ -0,0 +1,52 @@
+package com.suppergerrie2.websocket.client;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides on which thread the message handlers of a {@link Client} run.
+ * <p>
+ * Control messages are always handled by the read thread itself, only the handlers registered with
+ * {@link Client#registerMessageHandler(String, java.util.function.Consumer)} are dispatched.
+ */
+public interface MessageDispatcher {
+
+    /**
+     * Run the task that passes a single message to the handlers.
+     *
+     * @param task The task to run
+     */
+    void dispatch(Runnable task);
+
+    /**
+     * Run the handlers directly on the read thread.
+     * A slow handler stops the client from reading the socket until it is done.
+     *
+     * @return A dispatcher that runs the handlers inline
+     */
+    static MessageDispatcher inline() {
+        return Runnable::run;
+    }
+
+    /**
+     * Run the handlers on the given executor, one message at a time and in the order they were received.
+     * A new dispatcher should be created for every client, so messages of different clients can be handled in parallel
+     * while the messages of a single client keep their order, see {@link ClientOptions.Builder#dispatcherPerClient}.
+     *
+     * @param executor The (shared) executor to run the handlers on
+     * @return A dispatcher that keeps the order of the messages
+     */
+    static MessageDispatcher ordered(Executor executor) {
+        return new OrderedDispatcher(executor);
+    }
+
+    /**
+     * Run the handlers on the given executor without any ordering, multiple messages of the same client can be handled
+     * at the same time.
+     *
+     * @param executor The executor to run the handlers on
+     * @return A dispatcher that handles messages in parallel
+     */
+    static MessageDispatcher parallel(Executor executor) {
+        return executor::execute;
+    }
+}
@@ -0,0 +1,108 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a message while it is being written. Every time the buffer is full it is sent as a frame, and closing the stream
+ * sends the last frame with the fin bit set. Only the buffer is kept in memory, however big the message gets.
+ * <p>
+ * While the stream is open no other data messages can be sent by the client, they wait until this stream is closed.
+ * Control frames can still be sent in between the frames of this message.
+ */
+class MessageOutputStream extends OutputStream {
+
+    private final Client client;
+    private final FrameWriter writer;
+    private final byte[] buffer;
+    private Fragment.OpCode opCode;
+    private int count;
+    private boolean closed;
+
+    MessageOutputStream(Client client, FrameWriter writer, Fragment.OpCode opCode, int frameSize) {
+        this.client = client;
+        this.writer = writer;
+        this.opCode = opCode;
+        this.buffer = new byte[frameSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) sendFrame(false);
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            if (count == buffer.length) sendFrame(false);
+
+            //Big writes are sent straight from the given array instead of copying them into the buffer first
+            if (count == 0 && len >= buffer.length) {
+                writeFrame(false, b, off, buffer.length);
+                off += buffer.length;
+                len -= buffer.length;
+                continue;
+            }
+
+            int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    /**
+     * Send the buffered bytes as a frame, without ending the message.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) sendFrame(false);
+    }
+
+    /**
+     * Send the last frame of the message. After this other messages can be sent again.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (client.getState() == State.OPEN) sendFrame(true);
+        } finally {
+            client.releaseMessageChannel();
+        }
+    }
+
+    private void sendFrame(boolean fin) throws IOException {
+        writeFrame(fin, buffer, 0, count);
+        count = 0;
+    }
+
+    private void writeFrame(boolean fin, byte[] bytes, int offset, int length) throws IOException {
+        //The stream is already handed out, so it waits for the rate limits instead of rejecting the message
+        client.awaitSendPermit(opCode != Fragment.OpCode.CONTINUATION, length, false);
+        writer.writeFrame(fin, opCode, bytes, offset, length);
+
+        //The next frames continue this message
+        opCode = Fragment.OpCode.CONTINUATION;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream is closed");
+
+        if (client.getState() != State.OPEN) {
+            throw new IOException(String.format("Client is in %s state, can't send more data", client.getState()));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the data messages a client receives to one subscriber at a time, see {@link Client#messages()}.
+ * <p>
+ * The demand of the subscriber decides if the read thread keeps reading: when all requested messages have been
+ * delivered the read thread waits before reading the next frame, so received data stays in the socket buffers and tcp
+ * flow control slows down the remote host. All signals after onSubscribe are sent from the read thread, which makes them
+ * serial without extra locking.
+ */
+final class MessagePublisher implements Flow.Publisher<Message> {
+
+    private final Client client;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    //The subscription the read thread delivers to, only set after onSubscribe returned
+    private volatile MessageSubscription subscription;
+    //The subscription that is being subscribed or is active, guarded by lock
+    private MessageSubscription claimed;
+    //Whether the read thread stopped, guarded by lock
+    private boolean finished;
+
+    MessagePublisher(Client client) {
+        this.client = client;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        MessageSubscription s = new MessageSubscription(subscriber);
+
+        boolean rejected;
+        lock.lock();
+        try {
+            rejected = claimed != null && !claimed.cancelled;
+            if (!rejected) claimed = s;
+        } finally {
+            lock.unlock();
+        }
+
+        subscriber.onSubscribe(s);
+        if (rejected) {
+            s.cancelled = true;
+            subscriber.onError(new IllegalStateException("The messages of a client can only have one subscriber at a time"));
+            return;
+        }
+
+        boolean complete;
+        lock.lock();
+        try {
+            complete = finished;
+            if (complete) {
+                claimed = null;
+            } else {
+                subscription = s;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        //The read thread already stopped, so it can't signal anymore
+        if (complete && !s.cancelled) subscriber.onComplete();
+    }
+
+    /**
+     * Called when the client starts, so subscribers are completed again when it closes after a restart.
+     */
+    void start() {
+        lock.lock();
+        try {
+            finished = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the subscriber requests more messages. Returns right away when there is no subscriber or it has demand
+     * left, and also when the client is no longer open so the close handshake can still be read.
+     *
+     * @throws InterruptedException When the read thread was interrupted while waiting
+     */
+    void awaitDemand() throws InterruptedException {
+        MessageSubscription s = subscription;
+        if (s == null || (s.demand.get() > 0 && !s.invalid)) return;
+
+        lock.lock();
+        try {
+            while (s == subscription && !s.cancelled && !s.invalid && s.demand.get() == 0 && client.getState() == State.OPEN) {
+                //The state is checked again after the timeout, it can change without a signal
+                changed.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        terminateIfNeeded(s);
+    }
+
+    /**
+     * Deliver a message to the subscriber, if it requested one. Only called by the read thread.
+     * Without demand the message is dropped, which only happens while the client is closing.
+     *
+     * @param message The data message
+     */
+    void offer(Message message) {
+        MessageSubscription s = subscription;
+        if (s == null || terminateIfNeeded(s)) return;
+        if (s.demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : Math.max(0, d - 1)) == 0) return;
+
+        try {
+            s.subscriber.onNext(message);
+        } catch (RuntimeException e) {
+            //A subscriber should not throw (Reactive Streams rule 2.13), consider it cancelled so the client keeps working
+            e.printStackTrace();
+            s.cancelled = true;
+            remove(s);
+        }
+    }
+
+    /**
+     * Called by the read thread when it stops, completes the subscriber.
+     */
+    void complete() {
+        MessageSubscription s;
+        lock.lock();
+        try {
+            finished = true;
+            s = subscription;
+            subscription = null;
+            claimed = null;
+        } finally {
+            lock.unlock();
+        }
+
+        if (s != null && !terminateIfNeeded(s)) s.subscriber.onComplete();
+    }
+
+    /**
+     * Wake the read thread when it is waiting for demand, to let it check the state of the client again.
+     */
+    void wake() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the subscription when it was cancelled or received an invalid request, signalling the error for the latter.
+     *
+     * @return true if the subscription ended
+     */
+    private boolean terminateIfNeeded(MessageSubscription s) {
+        if (s.invalid && !s.cancelled) {
+            s.cancelled = true;
+            remove(s);
+            //@formatter:off
+            s.subscriber.onError(new IllegalArgumentException(String.format("Requested %d messages, but should request at least 1 (Reactive Streams rule 3.9)", s.invalidRequest)));
+            //@formatter:on
+            return true;
+        }
+
+        if (s.cancelled) {
+            remove(s);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void remove(MessageSubscription s) {
+        lock.lock();
+        try {
+            if (subscription == s) subscription = null;
+            if (claimed == s) claimed = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class MessageSubscription implements Flow.Subscription {
+
+        final Flow.Subscriber<? super Message> subscriber;
+        final AtomicLong demand = new AtomicLong();
+        volatile boolean cancelled;
+        volatile boolean invalid;
+        volatile long invalidRequest;
+
+        MessageSubscription(Flow.Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) return;
+
+            if (n <= 0) {
+                invalidRequest = n;
+                invalid = true;
+            } else {
+                //Demand is capped at Long.MAX_VALUE, which means unbounded (Reactive Streams rule 3.17)
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+
+            wake();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+            wake();
+        }
+    }
+}
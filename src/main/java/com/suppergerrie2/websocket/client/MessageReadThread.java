@@ -1,74 +1,378 @@
 package com.suppergerrie2.websocket.client;
 
-import com.suppergerrie2.websocket.ExtendedInputStream;
 import com.suppergerrie2.websocket.ProtocolErrorException;
 import com.suppergerrie2.websocket.common.Constants;
-import com.suppergerrie2.websocket.common.Helpers;
+import com.suppergerrie2.websocket.common.Utf8Validator;
 import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.FrameView;
 import com.suppergerrie2.websocket.common.messages.Message;
+import com.suppergerrie2.websocket.transport.SocketTransport;
+import com.suppergerrie2.websocket.transport.Transport;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * Reads everything the client receives: first the http response of the handshake, then the frames.
+ * <p>
+ * When buffers are leased the read buffer is given back whenever everything in it has been decoded. While waiting for
+ * data only a small idle buffer is held, once data comes in a read buffer is leased again.
+ * <p>
+ * Reading a socket channel into a heap buffer makes the jdk keep a temporary direct buffer and a buffer cache for the
+ * reading thread, as big as the biggest read. An idle read thread would hold on to those forever, so with leased buffers
+ * socket reads go through a pooled direct buffer instead.
+ */
 public class MessageReadThread extends Thread {
 
-    final ExtendedInputStream inputStream;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    //Large enough for a ping or a small message, so those need a single read
+    static final int IDLE_BUFFER_SIZE = 128;
+
+    final Transport transport;
     final Client client;
 
-    public MessageReadThread(Client client, InputStream inputStream) {
-        this.inputStream = new ExtendedInputStream(inputStream);
+    //Frames that fit in the read buffer are decoded in place
+    private ByteBuffer buffer;
+    //Second view on the buffer to pass control frame payloads to the client without copying them
+    private ByteBuffer payloadWindow;
+    //Null when the read buffer is always held
+    private final BufferPool pool;
+    //Read into while no read buffer is leased, null when the read buffer is always held
+    private final ByteBuffer idleBuffer;
+    //Whether reads go through a pooled direct buffer
+    private final boolean stageReads;
+    private boolean leased;
+    private final FrameView frame = new FrameView();
+    //Validates text messages while their fragments come in, so every byte is only checked once
+    private final Utf8Validator utf8Validator = new Utf8Validator();
+    private final FrameTap tap;
+    private Message currentMessage;
+
+    public MessageReadThread(Client client, Transport transport) {
+        this(client, transport, ClientOptions.DEFAULT_READ_BUFFER_SIZE, null);
+    }
+
+    /**
+     * @param client         The client to pass the handshake and frames to
+     * @param transport      The transport to read from
+     * @param readBufferSize The size of the read buffer, see {@link ClientOptions#getReadBufferSize()}
+     * @param tap            Sees every decoded frame, or null
+     */
+    public MessageReadThread(Client client, Transport transport, int readBufferSize, FrameTap tap) {
+        this(client, transport, readBufferSize, tap, false);
+    }
+
+    /**
+     * @param client         The client to pass the handshake and frames to
+     * @param transport      The transport to read from
+     * @param readBufferSize The size of the read buffer, see {@link ClientOptions#getReadBufferSize()}
+     * @param tap            Sees every decoded frame, or null
+     * @param leaseBuffers   Whether to only hold the read buffer while there is data, see {@link ClientOptions#isLeaseBuffers()}
+     */
+    public MessageReadThread(Client client, Transport transport, int readBufferSize, FrameTap tap, boolean leaseBuffers) {
+        this.transport = transport;
         this.client = client;
+        this.tap = tap;
+
+        //Tls reads from a stream, so it would have to copy into a direct buffer itself
+        stageReads = leaseBuffers && transport instanceof SocketTransport;
+
+        if (leaseBuffers) {
+            pool = BufferPool.forSize(readBufferSize);
+            idleBuffer = stageReads ? ByteBuffer.allocateDirect(IDLE_BUFFER_SIZE) : ByteBuffer.allocate(IDLE_BUFFER_SIZE);
+            useBuffer(ByteBuffer.allocate(0));
+        } else {
+            pool = null;
+            idleBuffer = null;
+            useBuffer(ByteBuffer.allocate(readBufferSize));
+        }
+    }
+
+    private void useBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        payloadWindow = buffer.duplicate();
+        buffer.limit(0);
+    }
+
+    private void leaseBuffer() {
+        useBuffer(ByteBuffer.wrap(pool.lease()));
+        leased = true;
+    }
+
+    private void releaseBuffer() {
+        if (!leased) return;
+
+        pool.release(buffer.array());
+        useBuffer(ByteBuffer.allocate(0));
+        leased = false;
     }
 
     @Override
     public void run() {
-        while (client.getState() == com.suppergerrie2.websocket.common.State.HANDSHAKE || client.getState() == com.suppergerrie2.websocket.common.State.CLOSED) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
         try {
-            Message currentMessage = null;
+            //The handshake response is coming, so there is no point in waiting for it with the idle buffer
+            if (pool != null) leaseBuffer();
+            readHandshake();
+
             while (client.isConnected()) {
-                Fragment fragment;
-
-                try {
-                    fragment = new Fragment(inputStream);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    client.stop(Constants.StatusCode.INTERNAL_ERROR, true);
-                    return;
-                } catch (ProtocolErrorException e) {
-                    e.printStackTrace();
-                    client.stop(e.statusCode, true);
-                    return;
-                }
+                client.awaitDemand();
 
-                if (fragment.opCode.isControlOpCode) {
-                    Message message = new Message(fragment);
-                    client.handleMessage(message);
+                //Wait until the whole header is in the buffer
+                if (!frame.wrap(buffer)) {
+                    fill();
                     continue;
-                } else if (currentMessage == null) {
-                    currentMessage = new Message(fragment);
-                } else {
-                    currentMessage.addFragment(fragment);
                 }
 
-                if(currentMessage.getMessageType() == Fragment.OpCode.TEXT_FRAME && !Helpers.isValidUTF8(currentMessage.getPayloadData(), !fragment.fin)) {
-                    throw new ProtocolErrorException("Message contained invalid UTF-8", Constants.StatusCode.INCONSISTENT_DATA_TYPE);
-                }
+                validateHeader();
 
-                if (fragment.fin) {
-                    client.handleMessage(currentMessage);
-                    currentMessage = null;
+                int offset = frame.payloadOffset();
+                int length = (int) frame.payloadLength();
+
+                if (frame.isComplete()) {
+                    frame.unmask();
+                    buffer.position(offset + length);
+                    if (tap != null) tap(buffer.array(), offset, length);
+                    handleFrame(buffer.array(), offset, length);
+                } else if (frame.headerLength() + frame.payloadLength() > buffer.capacity()) {
+                    readLargeFrame(offset, length);
+                } else {
+                    fill();
                 }
             }
+        } catch (IOException e) {
+            //When the client closed the transport itself reading fails, which is expected
+            if (client.isConnected()) {
+                e.printStackTrace();
+                client.abort(Constants.StatusCode.INTERNAL_ERROR);
+            }
         } catch (ProtocolErrorException e) {
             e.printStackTrace();
-            client.stop(e.statusCode, true);
+            client.abort(e.statusCode);
+        } finally {
+            if (pool != null) releaseBuffer();
+            client.readingStopped();
+        }
+    }
+
+    /**
+     * Read the http response to the upgrade request and pass it to the client.
+     * Frames sent right after the response are left in the buffer.
+     */
+    private void readHandshake() throws IOException, ProtocolErrorException {
+        int searchFrom = 0;
+
+        while (client.getState() == com.suppergerrie2.websocket.common.State.HANDSHAKE) {
+            int end = indexOf(HEADER_END, searchFrom);
+
+            if (end == -1) {
+                if (buffer.remaining() == buffer.capacity()) {
+                    throw new ProtocolErrorException("Handshake response is too big");
+                }
+
+                //The end could start in the last 3 bytes, so search those again
+                searchFrom = Math.max(0, buffer.remaining() - HEADER_END.length + 1);
+                fill();
+                continue;
+            }
+
+            String header = new String(buffer.array(), buffer.position(), end - buffer.position(),
+                                       StandardCharsets.ISO_8859_1);
+            buffer.position(end + HEADER_END.length);
+            client.parseHandshakeHeader(header);
+        }
+    }
+
+    /**
+     * @return The absolute index of the bytes in the unread part of the buffer, starting at from bytes after the position, or -1
+     */
+    private int indexOf(byte[] bytes, int from) {
+        int last = buffer.limit() - bytes.length;
+
+        search:
+        for (int i = buffer.position() + from; i <= last; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (buffer.get(i + j) != bytes[j]) continue search;
+            }
+            return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Move the unread bytes to the start of the buffer and read as much as fits after them.
+     */
+    private void fill() throws IOException {
+        if (pool != null && !buffer.hasRemaining()) {
+            fillIdle();
+            return;
+        }
+
+        buffer.compact();
+
+        try {
+            if (read(buffer) == -1) {
+                throw new IOException("Reached end of stream");
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Read from the transport, through a pooled direct buffer when reads are staged.
+     */
+    private int read(ByteBuffer destination) throws IOException {
+        if (!stageReads) return transport.read(destination);
+
+        ByteBuffer staging = pool.leaseDirect();
+        try {
+            staging.clear();
+            staging.limit(Math.min(staging.capacity(), destination.remaining()));
+
+            int read = transport.read(staging);
+            staging.flip();
+            destination.put(staging);
+            return read;
+        } finally {
+            pool.releaseDirect(staging);
+        }
+    }
+
+    /**
+     * Everything in the read buffer has been decoded, so give it back while waiting for data. The first bytes are read
+     * into the idle buffer, then a read buffer is leased again and they are copied into it.
+     */
+    private void fillIdle() throws IOException {
+        releaseBuffer();
+
+        idleBuffer.clear();
+        if (transport.read(idleBuffer) == -1) {
+            throw new IOException("Reached end of stream");
+        }
+        idleBuffer.flip();
+
+        leaseBuffer();
+        buffer.clear();
+        buffer.put(idleBuffer);
+        buffer.flip();
+    }
+
+    /**
+     * Check the header before reading the payload, so invalid frames are rejected without waiting for their payload.
+     */
+    private void validateHeader() throws ProtocolErrorException {
+        //TODO: Allow for extensions
+        if (frame.rsv() != 0) {
+            //@formatter:off
+            throw new ProtocolErrorException("A reserved bit was set which isn't allowed without extension. (RFC-6455 Section 5.2.)");
+            //@formatter:on
+        }
+
+        Fragment.OpCode opCode = frame.opCode();
+        if (opCode.isReserved()) {
+            //@formatter:off
+            throw new ProtocolErrorException(String.format("Invalid OpCode received (%s::%2$02X)", opCode.name(), frame.opcodeBits()));
+            //@formatter:on
+        }
+
+        if (opCode.isControlOpCode && (!frame.fin() || frame.payloadLength() > 125)) {
+            //@formatter:off
+            throw new ProtocolErrorException(
+                    !frame.fin() ? "Control message cannot be fragmented. (RFC-6455 Section 5.5.)" :
+                            String.format("Control message cannot have a payload size of 126 or more but has %d. (RFC-6455 Section 5.5.)", frame.payloadLength()));
+            //@formatter:on
+        }
+
+        //Give an error if we have more than Integer.MAX_VALUE bytes. This is 2GB so should not happen a lot.
+        if (frame.payloadLength() < 0 || frame.payloadLength() > Integer.MAX_VALUE - frame.headerLength()) {
+            throw new ProtocolErrorException("Cannot decode a frame with this many bytes!",
+                                             Constants.StatusCode.MESSAGE_TOO_BIG);
+        }
+    }
+
+    /**
+     * Read a frame that does not fit in the read buffer directly into its own array.
+     */
+    private void readLargeFrame(int offset, int length) throws IOException, ProtocolErrorException {
+        byte[] payload = new byte[length];
+
+        int buffered = buffer.limit() - offset;
+        System.arraycopy(buffer.array(), offset, payload, 0, buffered);
+        buffer.position(buffer.limit());
+
+        ByteBuffer rest = ByteBuffer.wrap(payload, buffered, length - buffered);
+        while (rest.hasRemaining()) {
+            if (read(rest) == -1) {
+                throw new IOException("Reached end of stream");
+            }
+        }
+
+        if (frame.isMasked()) {
+            FrameView.unmask(ByteBuffer.wrap(payload), 0, length, frame.maskKey(), 0);
+        }
+
+        if (tap != null) tap(payload, 0, length);
+        handleDataFrame(payload, 0, length, true);
+    }
+
+    private void tap(byte[] bytes, int offset, int length) {
+        tap.onFrame(client.getConnectionId(), System.nanoTime(), frame.fin(), frame.rsv(), frame.opcodeBits(), bytes,
+                    offset, length);
+    }
+
+    private void handleFrame(byte[] bytes, int offset, int length) throws ProtocolErrorException {
+        Fragment.OpCode opCode = frame.opCode();
+
+        if (opCode.isControlOpCode) {
+            //Control frames are handled straight from the buffer
+            payloadWindow.limit(offset + length);
+            payloadWindow.position(offset);
+            client.handleControlFrame(opCode, payloadWindow);
+        } else {
+            handleDataFrame(bytes, offset, length, false);
+        }
+    }
+
+    /**
+     * Add a data frame to the current message, and pass the message to the client when it is complete.
+     *
+     * @param owned true if the bytes array only contains this payload and can be used by the fragment without copying
+     */
+    private void handleDataFrame(byte[] bytes, int offset, int length, boolean owned) throws ProtocolErrorException {
+        Fragment.OpCode opCode = frame.opCode();
+
+        if (opCode == Fragment.OpCode.CONTINUATION ? currentMessage == null : currentMessage != null) {
+            //@formatter:off
+            throw new ProtocolErrorException(currentMessage == null ? "First fragment cannot be a continuation frame!" : "Expected a continuation frame, but got " + opCode);
+            //@formatter:on
+        }
+
+        Fragment.OpCode messageType = currentMessage == null ? opCode : currentMessage.getMessageType();
+        if (messageType == Fragment.OpCode.TEXT_FRAME) {
+            if (currentMessage == null) utf8Validator.reset();
+
+            if (!utf8Validator.validate(bytes, offset, length) || (frame.fin() && !utf8Validator.isComplete())) {
+                throw new ProtocolErrorException("Message contained invalid UTF-8",
+                                                 Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+            }
+        }
+
+        byte[] payload = owned ? bytes : Arrays.copyOfRange(bytes, offset, offset + length);
+        Fragment fragment = new Fragment(frame, payload);
+
+        if (currentMessage == null) {
+            currentMessage = new Message(fragment);
+        } else {
+            currentMessage.addFragment(fragment);
+        }
+
+        if (fragment.fin) {
+            client.handleMessage(currentMessage);
+            currentMessage = null;
         }
     }
 }
@@ -0,0 +1,48 @@
+package com.suppergerrie2.websocket.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks on an executor one at a time, in the order they were dispatched.
+ * At most one task of this dispatcher is queued in or running on the executor at any time.
+ *
+ * @see MessageDispatcher#ordered(Executor)
+ */
+class OrderedDispatcher implements MessageDispatcher {
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    OrderedDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void dispatch(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            scheduled.set(false);
+            //A task could have been added after the last poll but before scheduled was reset
+            schedule();
+        }
+    }
+}
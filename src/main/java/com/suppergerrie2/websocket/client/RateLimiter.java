@@ -0,0 +1,113 @@
+package com.suppergerrie2.websocket.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for the messages and the bytes that are sent, used by clients to stay under the quotas of the remote host.
+ * Every client with {@link ClientOptions.Builder#rateLimit(double, double, long, TimeUnit)} has its own limiter, and one
+ * limiter can be shared by a group of clients with {@link ClientOptions.Builder#rateLimitGroup(RateLimiter)} so the rates
+ * are for all of them together.
+ * <p>
+ * A bucket is kept as the time at which it is full again, so taking tokens is a single compare and set and no thread
+ * waits for a lock. The buckets hold the tokens of the burst time, after a burst sends are spread out at the rate.
+ * A send that costs more than a whole bucket is allowed once the bucket is full, the sends after it wait until that is
+ * paid off.
+ */
+public final class RateLimiter {
+
+    /**
+     * Called instead of waiting when a message is over the rate limit, see
+     * {@link ClientOptions.Builder#rejectWhenRateLimited(RejectionHandler)}.
+     */
+    @FunctionalInterface
+    public interface RejectionHandler {
+
+        /**
+         * Called on the sending thread, the message has not been sent.
+         *
+         * @param client          The client that did not send the message
+         * @param bytes           The payload size of the message, or 0 when it is not known before it is encoded
+         * @param retryAfterNanos The time until the limit would have allowed the message
+         */
+        void rejected(Client client, long bytes, long retryAfterNanos);
+    }
+
+    private final long nanosPerMessage;
+    private final double nanosPerByte;
+    private final long burstNanos;
+    //The System.nanoTime() at which the buckets are full again
+    private final AtomicLong messagesFullAt;
+    private final AtomicLong bytesFullAt;
+
+    /**
+     * @param messagesPerSecond The amount of messages per second, or 0 for no limit
+     * @param bytesPerSecond    The amount of payload bytes per second, or 0 for no limit
+     * @param burst             How long the rates can be exceeded after the limiter was idle, the size of the buckets
+     * @param unit              The unit of the burst
+     */
+    public RateLimiter(double messagesPerSecond, double bytesPerSecond, long burst, TimeUnit unit) {
+        if (!(messagesPerSecond >= 0) || !(bytesPerSecond >= 0)) {
+            throw new IllegalArgumentException(
+                    String.format("Rates cannot be negative, but are %s messages/s and %s bytes/s", messagesPerSecond, bytesPerSecond));
+        }
+        if (burst <= 0) throw new IllegalArgumentException("Burst should be positive but is " + burst);
+
+        this.nanosPerMessage = messagesPerSecond == 0 ? 0 : (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / messagesPerSecond);
+        this.nanosPerByte = bytesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        this.burstNanos = unit.toNanos(burst);
+
+        //Start with full buckets
+        long now = System.nanoTime();
+        this.messagesFullAt = new AtomicLong(now);
+        this.bytesFullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Take the tokens for a send when both buckets have enough of them.
+     *
+     * @param messages The amount of messages
+     * @param bytes    The amount of payload bytes
+     * @return 0 if the tokens were taken, otherwise the nanoseconds until there are enough and nothing is taken
+     */
+    public long tryAcquire(long messages, long bytes) {
+        long now = System.nanoTime();
+
+        long messageCost = messages * nanosPerMessage;
+        long wait = take(messagesFullAt, messageCost, now);
+        if (wait > 0) return wait;
+
+        wait = take(bytesFullAt, byteCost(bytes), now);
+        if (wait > 0) messagesFullAt.addAndGet(-messageCost);
+        return wait;
+    }
+
+    /**
+     * Give back tokens taken by {@link #tryAcquire(long, long)}, for when the send was not allowed by another limiter.
+     */
+    void refund(long messages, long bytes) {
+        messagesFullAt.addAndGet(-messages * nanosPerMessage);
+        bytesFullAt.addAndGet(-byteCost(bytes));
+    }
+
+    private long byteCost(long bytes) {
+        return (long) Math.ceil(bytes * nanosPerByte);
+    }
+
+    private long take(AtomicLong fullAt, long cost, long now) {
+        if (cost == 0) return 0;
+
+        //A send that fits in the bucket can leave it this empty, a bigger one needs a full bucket
+        long allowedDebt = Math.max(0, burstNanos - cost);
+
+        while (true) {
+            long current = fullAt.get();
+            long start = current - now > 0 ? current : now;
+
+            long wait = start - now - allowedDebt;
+            if (wait > 0) return wait;
+
+            if (fullAt.compareAndSet(current, start + cost)) return 0;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.ProtocolErrorException;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes text messages to strings and encodes strings as UTF-8, see {@link Codec#text()}.
+ * The decoder and encoder are not thread safe, so a new one is made for every call.
+ */
+final class TextCodec implements Codec<String> {
+
+    static final TextCodec INSTANCE = new TextCodec();
+
+    private TextCodec() {
+    }
+
+    @Override
+    public Fragment.OpCode messageType() {
+        return Fragment.OpCode.TEXT_FRAME;
+    }
+
+    @Override
+    public String decode(ByteBuffer payload) throws ProtocolErrorException {
+        try {
+            return newDecoder().decode(payload).toString();
+        } catch (CharacterCodingException e) {
+            throw new ProtocolErrorException("Message contained invalid UTF-8", Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+        }
+    }
+
+    @Override
+    public String decode(ByteBuffer[] payload) throws ProtocolErrorException {
+        if (payload.length == 1) return decode(payload[0]);
+
+        int length = 0;
+        for (ByteBuffer buffer : payload) length += buffer.remaining();
+
+        CharsetDecoder decoder = newDecoder();
+        //Every byte decodes to at most 1 char
+        CharBuffer text = CharBuffer.allocate(length);
+        //The start of a character that continues in the next buffer
+        ByteBuffer split = ByteBuffer.allocate(4);
+
+        for (int i = 0; i < payload.length; i++) {
+            ByteBuffer buffer = payload[i];
+
+            //Complete the split character a byte at a time, the decoder leaves it in split until it is whole
+            while (split.position() > 0 && buffer.hasRemaining()) {
+                split.put(buffer.get()).flip();
+                check(decoder.decode(split, text, false));
+                split.compact();
+            }
+
+            check(decoder.decode(buffer, text, i == payload.length - 1));
+            split.put(buffer);
+        }
+
+        if (split.position() > 0) check(CoderResult.malformedForLength(split.position()));
+        check(decoder.flush(text));
+        return text.flip().toString();
+    }
+
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder()
+                                     .onMalformedInput(CodingErrorAction.REPORT)
+                                     .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    private static void check(CoderResult result) throws ProtocolErrorException {
+        if (result.isError()) {
+            throw new ProtocolErrorException("Message contained invalid UTF-8", Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+        }
+    }
+
+    @Override
+    public void encode(String value, ByteBuffer destination) {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                                                       .onMalformedInput(CodingErrorAction.REPLACE)
+                                                       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        CoderResult result = encoder.encode(CharBuffer.wrap(value), destination, true);
+        if (result.isUnderflow()) result = encoder.flush(destination);
+        if (result.isOverflow()) throw new BufferOverflowException();
+    }
+}
@@ -46,52 +46,25 @@ public class Helpers {
      * @return true if the array is valid UTF-8. Else false
      */
     public static boolean isValidUTF8(byte[] byteArray, boolean ignoreIncompleteLastCharacter){
+        return isValidUTF8(byteArray, 0, byteArray.length, ignoreIncompleteLastCharacter);
+    }
 
-        int i = 0;
-        while(i < byteArray.length) {
-            int character = 0, charLength;
-
-            byte leadingByte = byteArray[i];
-            if((leadingByte & 0b1111_1000) == 0b1111_0000) {
-                charLength = 4;
-                character |= (leadingByte & 0b0000_0111) << 18;
-            } else if ((leadingByte & 0b1111_0000) == 0b1110_0000) {
-                charLength = 3;
-                character |= (leadingByte & 0b0000_1111) << 12;
-            } else if ((leadingByte & 0b1110_0000) == 0b1100_0000) {
-                charLength = 2;
-                character |= (leadingByte & 0b0001_1111) << 6;
-            } else if((leadingByte & 0b1000_0000) == 0b0000_0000) {
-                charLength = 1;
-                character |= (leadingByte & 0b0111_1111);
-            } else {
-                return false;
-            }
-
-            for(int j = 1; j < charLength; j++) {
-                if(i + j >= byteArray.length) return ignoreIncompleteLastCharacter;
-
-                if((byteArray[i+j] & 0b1000_0000) != 0b1000_0000) {
-                    return false;
-                }
-
-                character |= (byteArray[i+j] & 0b0011_1111) << ((charLength - j - 1) * 6);
-            }
-
-            //Surrogate pairs are not allowed
-            if(character >= 0xD800 && character <= 0xDFFF) return false;
-
-            //Characters should be encoded in the least amount of bytes.
-            if(character <= 0x0000_007f && charLength != 1) return false;
-            if(character >= 0x0000_0080 && character <= 0x0000_07FF && charLength != 2) return false;
-            if(character >= 0x0000_0800 && character <= 0x0000_FFFF && charLength != 3) return false;
-            if(character >= 0x0001_0000 && character <= 0x0010_FFFF && charLength != 4) return false;
-            if(character > 0x10_FFFF) return false;
+    /**
+     * Check if a range of the byte array is valid UTF-8, see {@link #isValidUTF8(byte[], boolean)}.
+     *
+     * @param byteArray The array of bytes to validate
+     * @param offset The index of the first byte to validate
+     * @param length The amount of bytes to validate
+     * @param ignoreIncompleteLastCharacter Whether to ignore if the last character is incomplete
+     * @return true if the range is valid UTF-8. Else false
+     * @see Utf8Validator
+     */
+    public static boolean isValidUTF8(byte[] byteArray, int offset, int length, boolean ignoreIncompleteLastCharacter){
+        Utf8Validator validator = new Utf8Validator();
 
-            i+=charLength;
-        }
+        if(!validator.validate(byteArray, offset, length)) return false;
 
-        return true;
+        return ignoreIncompleteLastCharacter || validator.isComplete();
     }
 
 }
@@ -0,0 +1,26 @@
+package com.suppergerrie2.websocket.common;
+
+/**
+ * Makes the masking keys of the frames a client sends. A client has to mask every frame with a key the server and
+ * intermediaries can't predict. (RFC-6455 Section 5.3.)
+ * <p>
+ * A generator is called from every thread that sends, at the same time, so it should be thread safe without making
+ * those threads wait on each other.
+ */
+@FunctionalInterface
+public interface MaskGenerator {
+
+    /**
+     * @return The next masking key, the 4 bytes of the int in big endian order are the key
+     */
+    int nextMask();
+
+    /**
+     * The default generator: every thread gets its own {@link java.security.SecureRandom} and draws the keys in batches.
+     *
+     * @return The default generator
+     */
+    static MaskGenerator secure() {
+        return ThreadLocalMaskGenerator.INSTANCE;
+    }
+}
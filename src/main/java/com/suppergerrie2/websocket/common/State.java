@@ -5,6 +5,31 @@ public enum State {
     HANDSHAKE,
     OPEN,
     CLOSING,
-    CLOSED
+    CLOSED;
+
+    /**
+     * Check whether a connection in this state is allowed to go to the given state.
+     * <p>
+     * A connection starts {@link #CLOSED}, goes through the {@link #HANDSHAKE} to {@link #OPEN} and from there either
+     * directly to {@link #CLOSED} or first to {@link #CLOSING}. Every state except {@link #CLOSED} can end in
+     * {@link #CLOSED}, but {@link #CLOSED} can only be left by starting a new handshake.
+     *
+     * @param next The state to go to
+     * @return true if the transition is allowed
+     */
+    public boolean canTransitionTo(State next) {
+        switch (this) {
+            case CLOSED:
+                return next == HANDSHAKE;
+            case HANDSHAKE:
+                return next == OPEN || next == CLOSED;
+            case OPEN:
+                return next == CLOSING || next == CLOSED;
+            case CLOSING:
+                return next == CLOSED;
+            default:
+                return false;
+        }
+    }
 
 }
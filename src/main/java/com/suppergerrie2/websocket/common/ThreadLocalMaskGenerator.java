@@ -0,0 +1,48 @@
+package com.suppergerrie2.websocket.common;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Gives every thread its own {@link SecureRandom} for masking keys, so sending threads never wait on a shared lock.
+ * The keys are drawn {@link #BATCH_SIZE} at a time, so the random is only asked for bytes once every so many frames.
+ */
+final class ThreadLocalMaskGenerator implements MaskGenerator {
+
+    static final ThreadLocalMaskGenerator INSTANCE = new ThreadLocalMaskGenerator();
+
+    static final int BATCH_SIZE = 256;
+
+    private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    private ThreadLocalMaskGenerator() {
+    }
+
+    @Override
+    public int nextMask() {
+        State state = states.get();
+
+        if (!state.masks.hasRemaining()) {
+            state.random.nextBytes(state.masks.array());
+            state.masks.clear();
+        }
+
+        return state.masks.getInt();
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            //A DRBG instance per thread, the default instance can be a shared native source that locks
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private static final class State {
+        final SecureRandom random = newRandom();
+        //Starts empty, so the first key fills it
+        final ByteBuffer masks = ByteBuffer.allocate(BATCH_SIZE * Integer.BYTES).position(BATCH_SIZE * Integer.BYTES);
+    }
+}
@@ -0,0 +1,112 @@
+package com.suppergerrie2.websocket.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Validates UTF-8 according to <a href=https://tools.ietf.org/html/rfc3629>RFC-3629</a> in pieces.
+ * <p>
+ * The state is kept between calls to {@link #validate(byte[], int, int)}, so a character can be split across multiple
+ * calls, for example when a text message is split across fragments. Every byte is only looked at once, and invalid data
+ * is rejected at the first byte that makes it invalid.
+ */
+public class Utf8Validator {
+
+    //The amount of continuation bytes still expected for the current character
+    private int remaining;
+    //The range the next continuation byte has to be in, the second byte of some characters has a smaller range to reject overlong encodings, surrogates and too big codepoints
+    private int lower = 0x80;
+    private int upper = 0xBF;
+    private boolean valid = true;
+
+    /**
+     * Validate the next bytes.
+     *
+     * @param bytes  The array containing the bytes
+     * @param offset The index of the first byte to validate
+     * @param length The amount of bytes to validate
+     * @return false if the data so far is not valid UTF-8
+     */
+    public boolean validate(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+
+        while (valid && i < end) {
+            //Skip over ascii as fast as possible, this is most of the data most of the time
+            if (remaining == 0) {
+                while (i < end && bytes[i] >= 0) i++;
+                if (i == end) break;
+            }
+
+            valid = accept(bytes[i] & 0xFF);
+            i++;
+        }
+
+        return valid;
+    }
+
+    /**
+     * Validate the bytes between position and limit of the buffer, the position of the buffer is not changed.
+     *
+     * @param buffer The buffer containing the bytes
+     * @return false if the data so far is not valid UTF-8
+     */
+    public boolean validate(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return validate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+
+        for (int i = buffer.position(); valid && i < buffer.limit(); i++) {
+            valid = accept(buffer.get(i) & 0xFF);
+        }
+
+        return valid;
+    }
+
+    private boolean accept(int b) {
+        if (remaining == 0) {
+            //Leading byte
+            if (b < 0x80) return true;
+            if (b < 0xC2) return false; //Continuation byte or overlong 2 byte character
+
+            if (b < 0xE0) {
+                remaining = 1;
+            } else if (b < 0xF0) {
+                remaining = 2;
+                if (b == 0xE0) lower = 0xA0; //Overlong 3 byte character
+                if (b == 0xED) upper = 0x9F; //Surrogates
+            } else if (b < 0xF5) {
+                remaining = 3;
+                if (b == 0xF0) lower = 0x90; //Overlong 4 byte character
+                if (b == 0xF4) upper = 0x8F; //Bigger than 0x10FFFF
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        if (b < lower || b > upper) return false;
+
+        lower = 0x80;
+        upper = 0xBF;
+        remaining--;
+        return true;
+    }
+
+    /**
+     * @return true if no invalid data was seen and the last character is complete
+     */
+    public boolean isComplete() {
+        return valid && remaining == 0;
+    }
+
+    /**
+     * Reset the validator so it can be used for new data.
+     */
+    public void reset() {
+        remaining = 0;
+        lower = 0x80;
+        upper = 0xBF;
+        valid = true;
+    }
+}
@@ -4,23 +4,18 @@ import com.suppergerrie2.websocket.ExtendedInputStream;
 import com.suppergerrie2.websocket.ProtocolErrorException;
 import com.suppergerrie2.websocket.common.Constants;
 import com.suppergerrie2.websocket.common.Helpers;
+import com.suppergerrie2.websocket.common.MaskGenerator;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Predicate;
 
 public class Fragment {
 
-    //Random to generate a nonce
-    private static final SecureRandom random = new SecureRandom();
-
-    //Max size of the payload in a fragment, if the amount of bytes being put in the fragment exceeds this the bytes will be split across fragments
-    @SuppressWarnings("WeakerAccess")
-    public static int MAX_FRAGMENT_PAYLOAD_SIZE = Integer.MAX_VALUE;
+    //Mask of unmasked fragments, shared because it is empty
+    private static final byte[] NO_MASK = new byte[0];
 
     public final OpCode opCode;
     final byte[] payloadData;
@@ -60,7 +55,7 @@ public class Fragment {
         //And set the opcode
         this.opCode = OpCode.getOpcode(opCode);
 
-        if (this.opCode == OpCode.RESERVED_CONTROL || this.opCode == OpCode.RESERVED_NON_CONTROL || this.opCode == OpCode.UNKNOWN) {
+        if (this.opCode.isReserved()) {
             //@formatter:off
             throw new ProtocolErrorException(String.format("Invalid OpCode received (%s::%2$02X)", this.opCode.name(), opCode));
             //@formatter:on
@@ -89,7 +84,7 @@ public class Fragment {
                 throw new IOException("Reached end of stream");
             }
         } else {
-            mask = new byte[0];
+            mask = NO_MASK;
         }
 
         //Give an error if we have more than Integer.MAX_VALUE bytes. This is 4GB so should not happen a lot.
@@ -119,36 +114,67 @@ public class Fragment {
         }
     }
 
+    /**
+     * Create a fragment from a frame that was read into a {@link FrameView}.
+     * The header has to be validated and the payload unmasked already, the payload array is used as is.
+     *
+     * @param frame       The frame to take the fin bit and opcode from
+     * @param payloadData The unmasked payload data of the frame
+     */
+    public Fragment(FrameView frame, byte[] payloadData) {
+        int rsv = frame.rsv();
+        fin = frame.fin();
+        rsv1 = (rsv & 0b100) != 0;
+        rsv2 = (rsv & 0b010) != 0;
+        rsv3 = (rsv & 0b001) != 0;
+        opCode = frame.opCode();
+        hasMask = false;
+        mask = NO_MASK;
+        this.payloadData = payloadData;
+    }
+
     private Fragment(OpCode opCode, byte[] bytes) {
         rsv1 = rsv2 = rsv3 = false;
         fin = false;
         hasMask = true;
         this.opCode = opCode;
-        mask = new byte[4];
-        random.nextBytes(mask);
+        int maskKey = MaskGenerator.secure().nextMask();
+        mask = new byte[]{(byte) (maskKey >> 24), (byte) (maskKey >> 16), (byte) (maskKey >> 8), (byte) maskKey};
         payloadData = bytes;
     }
 
     /**
-     * Create a fragment with the given data as payload data.
-     * If the bytes array's length is bigger than {@link Fragment#MAX_FRAGMENT_PAYLOAD_SIZE} it will be split up into multiple fragments.
-     * By java's array limit if {@link Fragment#MAX_FRAGMENT_PAYLOAD_SIZE} is {@link Integer#MAX_VALUE} there will always be a single fragment
-     * The {@link OpCode} determines what kind of fragment this will be, most often either {@link OpCode#TEXT_FRAME} or {@link OpCode#BINARY_FRAME}.
+     * Create a single fragment with the given data as payload data, see {@link #withData(OpCode, byte[], int)}.
      *
      * @param opCode The type of fragment this will be
      * @param bytes  The data for the new fragment
-     * @return A list with all fragments needed to wrap the data.
+     * @return A list with the fragment wrapping the data.
      */
     public static List<Fragment> withData(OpCode opCode, byte[] bytes) {
+        return withData(opCode, bytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a fragment with the given data as payload data.
+     * If the bytes array's length is bigger than maxPayloadSize it will be split up into multiple fragments.
+     * By java's array limit if maxPayloadSize is {@link Integer#MAX_VALUE} there will always be a single fragment
+     * The {@link OpCode} determines what kind of fragment this will be, most often either {@link OpCode#TEXT_FRAME} or {@link OpCode#BINARY_FRAME}.
+     *
+     * @param opCode         The type of fragment this will be
+     * @param bytes          The data for the new fragment
+     * @param maxPayloadSize The maximum size of the payload in a fragment, see {@link com.suppergerrie2.websocket.client.ClientOptions#getMaxFragmentPayloadSize()}
+     * @return A list with all fragments needed to wrap the data.
+     */
+    public static List<Fragment> withData(OpCode opCode, byte[] bytes, int maxPayloadSize) {
         List<Fragment> fragments = new ArrayList<>();
 
         //Check whether multiple fragments are needed. If this is a control message then it isn't allowed to be fragmented
-        if (bytes.length > MAX_FRAGMENT_PAYLOAD_SIZE && !opCode.isControlOpCode) {
+        if (bytes.length > maxPayloadSize && !opCode.isControlOpCode) {
 
-            //Cut the array into pieces of i to i + maxFragmentSize
-            for (int i = 0; i < bytes.length; i += MAX_FRAGMENT_PAYLOAD_SIZE) {
-                //endIndex is either i + maxFragmentSize of for the last fragment the last index
-                int endIndex = Math.min(i + MAX_FRAGMENT_PAYLOAD_SIZE, bytes.length);
+            //Cut the array into pieces of i to i + maxPayloadSize
+            for (int i = 0; i < bytes.length; i += maxPayloadSize) {
+                //endIndex is either i + maxPayloadSize of for the last fragment the last index
+                int endIndex = (int) Math.min((long) i + maxPayloadSize, bytes.length);
                 fragments.add(new Fragment(opCode, Arrays.copyOfRange(bytes, i, endIndex)));
 
                 //After the first fragment use the continuation opcode
@@ -227,42 +253,60 @@ public class Fragment {
     }
 
     public enum OpCode {
-        CONTINUATION((Byte) -> (Byte & 0x0F) == 0x0, (byte) 0x0),
-        TEXT_FRAME((Byte) -> (Byte & 0x0F) == 0x1, (byte) 0x1),
-        BINARY_FRAME((Byte) -> (Byte & 0x0F) == 0x2, (byte) 0x2),
-        RESERVED_NON_CONTROL((Byte) -> {
-            int val = (Byte & 0x0F);
-            return val == 0x3 || val == 0x4 || val == 0x5 || val == 0x6 || val == 0x7;
-        }, (byte) 0x3),
-        CONNECTION_CLOSE((Byte) -> (Byte & 0x0F) == 0x8, (byte) 0x8, true),
-        PING((Byte) -> (Byte & 0x0F) == 0x9, (byte) 0x9, true),
-        PONG((Byte) -> (Byte & 0x0F) == 0xA, (byte) 0xA, true),
-        RESERVED_CONTROL((Byte) -> {
-            int val = (Byte & 0x0F);
-            return val == 0xB || val == 0xC || val == 0xD || val == 0xE || val == 0xF;
-        }, (byte) 0xB),
-        UNKNOWN((Byte) -> false, (byte) 0xFF);
-
+        CONTINUATION((byte) 0x0),
+        TEXT_FRAME((byte) 0x1),
+        BINARY_FRAME((byte) 0x2),
+        RESERVED_NON_CONTROL((byte) 0x3),
+        CONNECTION_CLOSE((byte) 0x8, true),
+        PING((byte) 0x9, true),
+        PONG((byte) 0xA, true),
+        RESERVED_CONTROL((byte) 0xB),
+        UNKNOWN((byte) 0xFF);
+
+        //Lookup table from the 4 opcode bits to the opcode, so decoding an opcode is a single array access
+        private static final OpCode[] BY_BITS = new OpCode[16];
+
+        static {
+            //0x3-0x7 are reserved for further non-control frames, 0xB-0xF for further control frames
+            Arrays.fill(BY_BITS, 0x0, 0x8, RESERVED_NON_CONTROL);
+            Arrays.fill(BY_BITS, 0x8, 0x10, RESERVED_CONTROL);
+
+            for (OpCode opCode : new OpCode[]{CONTINUATION, TEXT_FRAME, BINARY_FRAME, CONNECTION_CLOSE, PING, PONG}) {
+                BY_BITS[opCode.bits] = opCode;
+            }
+        }
 
         public final byte bits;
         public final boolean isControlOpCode;
-        final Predicate<Byte> isOpCodePredicate;
 
-        OpCode(Predicate<Byte> isOpcode, byte bits) {
-            this(isOpcode, bits, false);
+        OpCode(byte bits) {
+            this(bits, false);
         }
 
-        OpCode(Predicate<Byte> isOpcode, byte bits, boolean isControlOpCode) {
-            this.isOpCodePredicate = isOpcode;
+        OpCode(byte bits, boolean isControlOpCode) {
             this.bits = bits;
             this.isControlOpCode = isControlOpCode;
         }
 
         public static OpCode getOpcode(byte b) {
-            for (OpCode value : OpCode.values()) {
-                if (value.isOpCodePredicate.test(b)) return value;
-            }
-            return OpCode.UNKNOWN;
+            return fromBits(b);
+        }
+
+        /**
+         * Get the opcode for the last 4 bits of the given value, the other bits are ignored.
+         *
+         * @param bits The value containing the opcode bits, for example the first byte of a frame
+         * @return The opcode, {@link OpCode#RESERVED_NON_CONTROL} or {@link OpCode#RESERVED_CONTROL} for reserved values
+         */
+        public static OpCode fromBits(int bits) {
+            return BY_BITS[bits & 0x0F];
+        }
+
+        /**
+         * @return true if this opcode is reserved for future use, and thus can't be received without an extension
+         */
+        public boolean isReserved() {
+            return this == RESERVED_NON_CONTROL || this == RESERVED_CONTROL || this == UNKNOWN;
         }
     }
 
@@ -0,0 +1,163 @@
+package com.suppergerrie2.websocket.common.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable view over a frame in a buffer, parsed according to <a href="https://tools.ietf.org/html/rfc6455#section-5.2">RFC-6455 section 5.2.</a>
+ * <p>
+ * Unlike {@link Fragment} this does not copy anything, all fields are read from the buffer when {@link #wrap(ByteBuffer)}
+ * is called and exposed as primitives. A single instance should be reused for every frame read by a connection.
+ */
+public final class FrameView {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int headerLength;
+    private long payloadLength;
+    private int flagsAndOpcode;
+    private boolean masked;
+    private int maskKey;
+
+    /**
+     * Parse the header of the frame starting at the position of the buffer. The position is not changed.
+     *
+     * @param buffer The buffer containing the frame
+     * @return false if the buffer does not contain the complete header yet
+     */
+    public boolean wrap(ByteBuffer buffer) {
+        int start = buffer.position();
+        int available = buffer.limit() - start;
+        if (available < 2) return false;
+
+        int b0 = buffer.get(start) & 0xFF;
+        int b1 = buffer.get(start + 1) & 0xFF;
+
+        int headerLength = 2;
+        long payloadLength = b1 & 0b01111111;
+
+        //If the payloadLength is 126 the next 2 bytes contain the length, if it is 127 the next 8 bytes contain it
+        if (payloadLength == 126) {
+            headerLength += 2;
+            if (available < headerLength) return false;
+            payloadLength = buffer.getShort(start + 2) & 0xFFFF;
+        } else if (payloadLength == 127) {
+            headerLength += 8;
+            if (available < headerLength) return false;
+            payloadLength = buffer.getLong(start + 2);
+        }
+
+        boolean masked = (b1 & 0b10000000) != 0;
+        if (masked) {
+            headerLength += 4;
+            if (available < headerLength) return false;
+            maskKey = buffer.getInt(start + headerLength - 4);
+        } else {
+            maskKey = 0;
+        }
+
+        this.buffer = buffer;
+        this.start = start;
+        this.headerLength = headerLength;
+        this.payloadLength = payloadLength;
+        this.flagsAndOpcode = b0;
+        this.masked = masked;
+        return true;
+    }
+
+    public boolean fin() {
+        return (flagsAndOpcode & 0b10000000) != 0;
+    }
+
+    /**
+     * @return The 3 reserved bits, rsv1 is the highest bit
+     */
+    public int rsv() {
+        return (flagsAndOpcode >> 4) & 0b111;
+    }
+
+    /**
+     * @return The 4 opcode bits
+     */
+    public int opcodeBits() {
+        return flagsAndOpcode & 0b00001111;
+    }
+
+    public Fragment.OpCode opCode() {
+        return Fragment.OpCode.fromBits(flagsAndOpcode);
+    }
+
+    public boolean isMasked() {
+        return masked;
+    }
+
+    /**
+     * @return The 4 byte masking key as a big endian int, 0 if the frame is not masked
+     */
+    public int maskKey() {
+        return maskKey;
+    }
+
+    /**
+     * @return The payload length as sent, this can be negative or bigger than {@link Integer#MAX_VALUE} for invalid frames
+     */
+    public long payloadLength() {
+        return payloadLength;
+    }
+
+    public int headerLength() {
+        return headerLength;
+    }
+
+    /**
+     * @return The absolute index of the first payload byte in the buffer
+     */
+    public int payloadOffset() {
+        return start + headerLength;
+    }
+
+    /**
+     * @return true if the complete payload is in the buffer
+     */
+    public boolean isComplete() {
+        return buffer.limit() - payloadOffset() >= payloadLength;
+    }
+
+    /**
+     * Unmask the payload in place. Only the part of the payload that is in the buffer is unmasked.
+     */
+    public void unmask() {
+        if (!masked) return;
+
+        int offset = payloadOffset();
+        int end = (int) Math.min(buffer.limit(), offset + payloadLength);
+        unmask(buffer, offset, end, maskKey, 0);
+        masked = false;
+    }
+
+    /**
+     * Xor the bytes from start to end with the mask key.
+     *
+     * @param buffer      The buffer to unmask
+     * @param start       The absolute index of the first byte
+     * @param end         The absolute index after the last byte
+     * @param maskKey     The mask key as a big endian int
+     * @param maskOffset  The index in the payload of the first byte, used to start at the right mask byte
+     */
+    public static void unmask(ByteBuffer buffer, int start, int end, int maskKey, long maskOffset) {
+        //Rotate the key so it starts at the right byte, then xor 8 bytes at a time
+        int key = Integer.rotateLeft(maskKey, (int) (maskOffset & 3) * 8);
+        long longKey = ((long) key << 32) | (key & 0xFFFFFFFFL);
+
+        int i = start;
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            for (; i + 8 <= end; i += 8) {
+                buffer.putLong(i, buffer.getLong(i) ^ longKey);
+            }
+        }
+
+        for (; i < end; i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ (key >>> (24 - ((i - start) & 3) * 8))));
+        }
+    }
+}
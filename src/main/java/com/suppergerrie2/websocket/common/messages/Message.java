@@ -2,6 +2,7 @@ package com.suppergerrie2.websocket.common.messages;
 
 import com.suppergerrie2.websocket.ProtocolErrorException;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -9,7 +10,13 @@ import java.util.List;
 
 public class Message {
 
-    private ArrayList<Fragment> fragments = new ArrayList<>();
+    //Most messages are a single frame, the default capacity would allocate room for 10 fragments for each of them
+    private ArrayList<Fragment> fragments = new ArrayList<>(1);
+
+    //Caches of the payload of all fragments, cleared when a fragment is added.
+    //Computing them twice when 2 threads race is harmless, so they are only volatile
+    private volatile byte[] aggregatedPayload;
+    private volatile String text;
 
     /**
      * Create a new message with given fragment.
@@ -53,11 +60,23 @@ public class Message {
      * @param payloadData The payload data of this message
      */
     public Message(Fragment.OpCode opCode, byte[] payloadData) {
+        this(opCode, payloadData, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a message with the given type and payload data, split into fragments of at most maxFragmentPayloadSize bytes.
+     * The opCode cannot be {@link com.suppergerrie2.websocket.common.messages.Fragment.OpCode#CONTINUATION}
+     *
+     * @param opCode                 The type of this message
+     * @param payloadData            The payload data of this message
+     * @param maxFragmentPayloadSize The maximum payload size of a fragment
+     */
+    public Message(Fragment.OpCode opCode, byte[] payloadData, int maxFragmentPayloadSize) {
         if (opCode == Fragment.OpCode.CONTINUATION) {
             throw new IllegalArgumentException("Opcode cannot be continuation!");
         }
 
-        fragments.addAll(Fragment.withData(opCode, payloadData));
+        fragments.addAll(Fragment.withData(opCode, payloadData, maxFragmentPayloadSize));
     }
 
     /**
@@ -74,6 +93,8 @@ public class Message {
         }
 
         fragments.add(fragment);
+        aggregatedPayload = null;
+        text = null;
     }
 
     /**
@@ -108,7 +129,9 @@ public class Message {
     }
 
     /**
-     * Gets the paylaod data of all fragments in one byte array
+     * Gets the paylaod data of all fragments in one byte array.
+     * For a fragmented message the data is copied into one array the first time, after that the same array is returned.
+     * Prefer {@link #getPayloadBuffers()} which never copies, {@link #getPayload()} shares this copy. The returned array should not be changed.
      *
      * @return The byte array with all data from all fragments
      */
@@ -116,11 +139,11 @@ public class Message {
         //If there is 1 fragment just return it
         if (fragments.size() == 1) return fragments.get(0).payloadData;
 
-        //If there are more fragments calculate the total size
-        int totalPayloadSize = fragments.stream().mapToInt(fragment -> fragment.payloadData.length).sum();
+        byte[] payload = aggregatedPayload;
+        if (payload != null) return payload;
 
-        //Allocate an array for it
-        byte[] payload = new byte[totalPayloadSize];
+        //Allocate an array for the total size
+        payload = new byte[getPayloadLength()];
 
         //And copy all of the fragment's data into the new array
         int lastIndex = 0;
@@ -130,9 +153,68 @@ public class Message {
 
         }
 
+        aggregatedPayload = payload;
         return payload;
     }
 
+    /**
+     * Get the payload of every fragment as a read-only buffer, without copying anything.
+     * Together they form the payload of the message, in order. This can be passed directly to a gathering write.
+     *
+     * @return A new array with a read-only buffer for each fragment
+     */
+    public ByteBuffer[] getPayloadBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[fragments.size()];
+
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(fragments.get(i).payloadData).asReadOnlyBuffer();
+        }
+
+        return buffers;
+    }
+
+    /**
+     * Get the payload as a single read-only buffer.
+     * For a message with 1 fragment this is a view on the fragment's data, else the data is aggregated like {@link #getPayloadData()}.
+     *
+     * @return A new read-only buffer, so changing its position doesn't affect other callers
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(getPayloadData()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The total amount of payload bytes of all fragments
+     */
+    public int getPayloadLength() {
+        int length = 0;
+        for (Fragment fragment : fragments) length += fragment.payloadData.length;
+
+        return length;
+    }
+
+    /**
+     * Decode the payload as UTF-8. This is only done the first time, after that the same string is returned.
+     *
+     * @return The payload as text
+     */
+    public String getText() {
+        String decoded = text;
+        if (decoded != null) return decoded;
+
+        decoded = new String(getPayloadData(), StandardCharsets.UTF_8);
+        text = decoded;
+        return decoded;
+    }
+
+    /**
+     * Get the payload as text, see {@link #getText()}.
+     *
+     * @return The payload as text
+     */
+    public CharSequence asCharSequence() {
+        return getText();
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,297 @@
+package com.suppergerrie2.websocket.journal;
+
+import com.suppergerrie2.websocket.client.FrameTap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records received frames in memory mapped files, to capture the exact frames of a connection and replay them later with
+ * {@link JournalReplay}. Give it to clients with {@link com.suppergerrie2.websocket.client.ClientOptions.Builder#frameTap(com.suppergerrie2.websocket.client.FrameTap)},
+ * one journal can be shared by many clients.
+ * <p>
+ * The journal is a directory of segment files of a fixed size. A frame is recorded by claiming space in the current
+ * segment and copying the frame into the mapped memory, so recording never waits for a lock or for the disk. Mapping the
+ * next segment happens on a background thread before it is needed. When a frame does not fit in a segment, or the next
+ * segment is not mapped yet, the frame is dropped and counted in {@link #getDroppedFrames()} instead of blocking the read thread.
+ * <p>
+ * By default every segment is kept, so the journal keeps growing on disk for as long as frames are recorded. Give a
+ * maximum amount of segments to have the older segments deleted, also those of earlier journals in the directory.
+ * <p>
+ * Every record starts at a multiple of 8 bytes with this header, in little endian:
+ * <pre>
+ *  0  int  record length, including the header and padding. Written last, 0 means no record
+ *  4  int  payload length
+ *  8  long timestamp, {@link System#nanoTime()} when the frame was decoded
+ * 16  long connection id
+ * 24  byte opcode
+ * 25  byte flags, the fin bit and the 3 rsv bits as in the first byte of the frame
+ * 32       payload, unmasked
+ * </pre>
+ * A record never spans two segments, the rest of a segment that a record doesn't fit in is left empty.
+ */
+public class FrameJournal implements FrameTap, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final int LENGTH_OFFSET = 0;
+    static final int PAYLOAD_LENGTH_OFFSET = 4;
+    static final int TIMESTAMP_OFFSET = 8;
+    static final int CONNECTION_ID_OFFSET = 16;
+    static final int OPCODE_OFFSET = 24;
+    static final int FLAGS_OFFSET = 25;
+    static final int HEADER_SIZE = 32;
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    //Writes the record length with release semantics, so a record is never seen without its contents
+    private static final VarHandle RECORD_LENGTH = MethodHandles.byteBufferViewVarHandle(int[].class, ORDER);
+    private static final int PAGE_SIZE = 4096;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int firstSegment;
+    private final int maxSegments;
+    //The oldest segment that can still be on disk, only used by the roller
+    private int oldestSegment;
+    //Position of the next record, counted from the start of the first segment of this journal
+    private final AtomicLong position = new AtomicLong();
+    //The newest segment a record was written to, the roller keeps the segment after it mapped
+    private final AtomicInteger currentSegment;
+    private final Map<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+    private final LongAdder recordedFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final Thread roller;
+    private volatile boolean closed;
+
+    /**
+     * Create a journal with segments of {@link #DEFAULT_SEGMENT_SIZE} bytes.
+     *
+     * @param directory The directory to write the segments to, created if it doesn't exist
+     * @throws IOException When the first segments could not be created
+     */
+    public FrameJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a journal. When the directory already holds segments the new segments are added after them.
+     *
+     * @param directory   The directory to write the segments to, created if it doesn't exist
+     * @param segmentSize The size of a segment file, frames bigger than this are not recorded
+     * @throws IOException When the first segments could not be created
+     */
+    public FrameJournal(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, 0);
+    }
+
+    /**
+     * Create a journal that deletes its oldest segments. When the directory already holds segments the new segments are
+     * added after them, and count towards the maximum.
+     *
+     * @param directory   The directory to write the segments to, created if it doesn't exist
+     * @param segmentSize The size of a segment file, frames bigger than this are not recorded
+     * @param maxSegments The amount of segments to keep, at least 2, or 0 to keep all. The segment that is mapped
+     *                    ahead of the current one comes on top of this
+     * @throws IOException When the first segments could not be created
+     */
+    public FrameJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE || segmentSize % 8 != 0) {
+            throw new IllegalArgumentException("Segment size should be a multiple of 8 and at least " + HEADER_SIZE);
+        }
+        //The previous segment can still be written to by a slow writer
+        if (maxSegments != 0 && maxSegments < 2) throw new IllegalArgumentException("Max segments should be 0 or at least 2");
+
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        List<Path> existing = JournalReader.segments(directory);
+        this.firstSegment = existing.isEmpty() ? 0 : segmentIndex(existing.get(existing.size() - 1)) + 1;
+        this.oldestSegment = existing.isEmpty() ? 0 : segmentIndex(existing.get(0));
+        this.currentSegment = new AtomicInteger(firstSegment);
+
+        map(firstSegment);
+        map(firstSegment + 1);
+
+        roller = new Thread(this::roll, "frame-journal-roller");
+        roller.setDaemon(true);
+        roller.start();
+    }
+
+    @Override
+    public void onFrame(long connectionId, long timestamp, boolean fin, int rsv, int opcode, byte[] payload, int offset,
+                        int length) {
+        int recordLength = (HEADER_SIZE + length + 7) & ~7;
+        if (closed || recordLength > segmentSize || recordLength < 0) {
+            droppedFrames.increment();
+            return;
+        }
+
+        long start = claim(recordLength);
+        int segment = firstSegment + (int) (start / segmentSize);
+        int segmentOffset = (int) (start % segmentSize);
+
+        if (currentSegment.get() < segment && currentSegment.accumulateAndGet(segment, Math::max) == segment) {
+            LockSupport.unpark(roller);
+        }
+
+        MappedByteBuffer buffer = segments.get(segment);
+        if (buffer == null) {
+            //The roller could not keep up, the claimed space stays empty and is skipped when reading
+            droppedFrames.increment();
+            return;
+        }
+
+        buffer.putInt(segmentOffset + PAYLOAD_LENGTH_OFFSET, length);
+        buffer.putLong(segmentOffset + TIMESTAMP_OFFSET, timestamp);
+        buffer.putLong(segmentOffset + CONNECTION_ID_OFFSET, connectionId);
+        buffer.put(segmentOffset + OPCODE_OFFSET, (byte) opcode);
+        buffer.put(segmentOffset + FLAGS_OFFSET, (byte) ((fin ? 0b10000000 : 0) | (rsv << 4)));
+        buffer.put(segmentOffset + HEADER_SIZE, payload, offset, length);
+        RECORD_LENGTH.setRelease(buffer, segmentOffset + LENGTH_OFFSET, recordLength);
+
+        recordedFrames.increment();
+    }
+
+    /**
+     * Claim space for a record. A record that doesn't fit in the rest of the current segment starts at the next segment.
+     *
+     * @return The position of the record
+     */
+    private long claim(int recordLength) {
+        long current;
+        long start;
+
+        do {
+            current = position.get();
+            long segmentOffset = current % segmentSize;
+            start = segmentOffset + recordLength > segmentSize ? current - segmentOffset + segmentSize : current;
+        } while (!position.compareAndSet(current, start + recordLength));
+
+        return start;
+    }
+
+    /**
+     * Keep the segment after the current one mapped, and let go of the segments before the previous one.
+     * The previous segment stays mapped as a slow writer can still be copying into it.
+     */
+    private void roll() {
+        while (!closed) {
+            int current = currentSegment.get();
+
+            try {
+                for (int segment = current; segment <= current + 1; segment++) {
+                    if (!segments.containsKey(segment)) map(segment);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            segments.keySet().removeIf(segment -> segment < current - 1);
+            deleteOldSegments(current);
+
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    /**
+     * Delete the segments that are more than the max segments before the current one.
+     */
+    private void deleteOldSegments(int current) {
+        if (maxSegments == 0) return;
+
+        while (oldestSegment <= current - maxSegments) {
+            try {
+                Files.deleteIfExists(directory.resolve(segmentName(oldestSegment)));
+            } catch (IOException e) {
+                //Tried again the next time
+                e.printStackTrace();
+                return;
+            }
+            oldestSegment++;
+        }
+    }
+
+    private void map(int segment) throws IOException {
+        Path path = directory.resolve(segmentName(segment));
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ORDER);
+
+            //Touch every page now, so the read thread doesn't take the page faults when it writes the first records
+            for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+                buffer.put(i, (byte) 0);
+            }
+
+            segments.put(segment, buffer);
+        }
+    }
+
+    /**
+     * @return The amount of frames that were recorded
+     */
+    public long getRecordedFrames() {
+        return recordedFrames.sum();
+    }
+
+    /**
+     * @return The amount of frames that were not recorded, because they were bigger than a segment or the next segment
+     * was not ready in time
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * Stop recording and write the mapped segments to disk. Frames that arrive after this are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(roller);
+
+        try {
+            roller.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (MappedByteBuffer buffer : segments.values()) {
+            buffer.force();
+        }
+        segments.clear();
+
+        //The roller has stopped, so the segments it did not get to are deleted here
+        if (!roller.isAlive()) deleteOldSegments(currentSegment.get());
+    }
+
+    static String segmentName(int segment) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX);
+    }
+
+    static int segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,158 @@
+package com.suppergerrie2.websocket.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.suppergerrie2.websocket.journal.FrameJournal.*;
+
+/**
+ * Reads the frames of a {@link FrameJournal} in the order they were recorded.
+ * <p>
+ * The reader is a cursor: {@link #next()} moves to the next frame, after which the getters describe that frame. Nothing
+ * is allocated per frame, the payload is a view on the mapped segment.
+ */
+public final class JournalReader {
+
+    private final List<Path> segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer segment;
+    private int offset;
+    private int recordOffset = -1;
+
+    private JournalReader(List<Path> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @param directory The directory of the journal
+     * @return A reader positioned before the first frame
+     * @throws IOException When the directory could not be listed
+     */
+    public static JournalReader open(Path directory) throws IOException {
+        return new JournalReader(segments(directory));
+    }
+
+    /**
+     * @return The segment files of the journal in the directory, in order
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return List.of();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Move to the next frame.
+     *
+     * @return false if there are no more frames
+     * @throws IOException When a segment could not be mapped
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (segment != null) {
+                int length = findRecord();
+                if (length != -1) {
+                    recordOffset = offset;
+                    offset += length;
+                    return true;
+                }
+            }
+
+            if (segmentIndex + 1 >= segments.size()) {
+                segment = null;
+                recordOffset = -1;
+                return false;
+            }
+
+            segmentIndex++;
+            try (FileChannel channel = FileChannel.open(segments.get(segmentIndex), StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                segment.order(ORDER);
+            }
+            offset = 0;
+        }
+    }
+
+    /**
+     * Find the next record from the offset. Space that was claimed for a dropped frame is empty, so zeros are skipped
+     * until a valid record length is found.
+     *
+     * @return The length of the record, which now starts at the offset, or -1 if the segment has no more records
+     */
+    private int findRecord() {
+        int size = segment.capacity();
+
+        for (; offset + HEADER_SIZE <= size; offset += 8) {
+            int length = segment.getInt(offset + LENGTH_OFFSET);
+            if (length == 0) continue;
+
+            if (length < HEADER_SIZE || length % 8 != 0 || length > size - offset) return -1;
+            return length;
+        }
+
+        return -1;
+    }
+
+    private void ensureRecord() {
+        if (recordOffset == -1) throw new IllegalStateException("Not on a frame, call next first");
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the frame was decoded
+     */
+    public long timestamp() {
+        ensureRecord();
+        return segment.getLong(recordOffset + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * @return The id of the client that received the frame
+     */
+    public long connectionId() {
+        ensureRecord();
+        return segment.getLong(recordOffset + CONNECTION_ID_OFFSET);
+    }
+
+    /**
+     * @return The opcode bits of the frame
+     */
+    public int opcode() {
+        ensureRecord();
+        return segment.get(recordOffset + OPCODE_OFFSET) & 0xF;
+    }
+
+    public boolean fin() {
+        ensureRecord();
+        return (segment.get(recordOffset + FLAGS_OFFSET) & 0b10000000) != 0;
+    }
+
+    /**
+     * @return The 3 reserved bits of the frame
+     */
+    public int rsv() {
+        ensureRecord();
+        return (segment.get(recordOffset + FLAGS_OFFSET) >> 4) & 0b111;
+    }
+
+    /**
+     * @return A read only view on the unmasked payload, only valid until the next call to {@link #next()}
+     */
+    public ByteBuffer payload() {
+        ensureRecord();
+        int length = segment.getInt(recordOffset + PAYLOAD_LENGTH_OFFSET);
+        return segment.slice(recordOffset + HEADER_SIZE, length).asReadOnlyBuffer();
+    }
+}
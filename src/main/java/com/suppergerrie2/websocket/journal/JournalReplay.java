@@ -0,0 +1,290 @@
+package com.suppergerrie2.websocket.journal;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.ClientOptions;
+import com.suppergerrie2.websocket.common.Helpers;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+import com.suppergerrie2.websocket.transport.Transport;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the frames of one connection in a {@link FrameJournal} to a client again, through the same decoder and handlers
+ * as when they were received. The client is connected to the replay with a {@link MemoryPipe}, the replay plays the
+ * server: it answers the handshake and then sends the recorded frames.
+ * <p>
+ * Usage:
+ * <pre>
+ * JournalReplay replay = new JournalReplay(directory, connectionId, JournalReplay.Speed.ORIGINAL);
+ * Client client = replay.createClient(ClientOptions.defaults());
+ * client.registerMessageHandler("", handler);
+ * replay.run();
+ * </pre>
+ * The journal does not record the subprotocol the connection agreed on. Give it to the replay when the recorded
+ * connection had one, so the handlers of that protocol get the messages.
+ * <p>
+ * It can also be run from the command line with the journal directory, to print the connections in a journal or replay
+ * one of them with {@code --connection=id} and optionally {@code --speed=original|maximum} and {@code --protocol=name}.
+ */
+public class JournalReplay {
+
+    public enum Speed {
+        //Wait between frames as long as there was between them when they were recorded
+        ORIGINAL,
+        //Send the frames as fast as the client reads them
+        MAXIMUM
+    }
+
+    private static final int PIPE_CAPACITY = 256 * 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final Path directory;
+    private final long connectionId;
+    private final Speed speed;
+    private final String protocol;
+    private final MemoryPipe pipe = new MemoryPipe(PIPE_CAPACITY);
+    private final ByteBuffer header = ByteBuffer.allocate(10);
+    private final ByteBuffer[] frameBuffers = new ByteBuffer[2];
+    private Client client;
+
+    /**
+     * @param directory    The directory of the journal
+     * @param connectionId The connection to replay the frames of
+     * @param speed        How fast to send the frames
+     */
+    public JournalReplay(Path directory, long connectionId, Speed speed) {
+        this(directory, connectionId, speed, null);
+    }
+
+    /**
+     * @param directory    The directory of the journal
+     * @param connectionId The connection to replay the frames of
+     * @param speed        How fast to send the frames
+     * @param protocol     The subprotocol the recorded connection agreed on, the client has to offer it. Null for none
+     */
+    public JournalReplay(Path directory, long connectionId, Speed speed, String protocol) {
+        this.directory = directory;
+        this.connectionId = connectionId;
+        this.speed = speed;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Create the client the frames are replayed to, register the handlers on it before calling {@link #run()}.
+     *
+     * @param options The options of the client, the socket settings don't apply
+     * @return The client, connected to the replay once it runs
+     * @throws ProtocolException Never, the uri of the replay is always valid
+     */
+    public Client createClient(ClientOptions options) throws ProtocolException {
+        client = new Client(URI.create("ws://replay/"), options, pipe.client());
+        return client;
+    }
+
+    /**
+     * Start the client and send it the recorded frames. Returns when the client has closed.
+     * When the recording doesn't end with a close frame a normal close is sent after the last frame.
+     *
+     * @return The amount of frames that were replayed
+     * @throws IOException          When the journal could not be read, the client did not handshake or did not offer the protocol
+     * @throws InterruptedException When interrupted while waiting for the client to close
+     */
+    public long run() throws IOException, InterruptedException {
+        if (client == null) throw new IllegalStateException("Create the client before running the replay");
+
+        Transport server = pipe.server();
+        client.start();
+        answerHandshake(server);
+        startDraining(server);
+
+        long frames = 0;
+        boolean closed = false;
+        long firstTimestamp = 0;
+        long start = System.nanoTime();
+
+        JournalReader reader = JournalReader.open(directory);
+        while (!closed && reader.next()) {
+            if (reader.connectionId() != connectionId) continue;
+
+            if (speed == Speed.ORIGINAL) {
+                if (frames == 0) firstTimestamp = reader.timestamp();
+                waitUntil(start + reader.timestamp() - firstTimestamp);
+            }
+
+            sendFrame(server, reader.fin(), reader.rsv(), reader.opcode(), reader.payload());
+            closed = reader.opcode() == 0x8;
+            frames++;
+        }
+
+        if (!closed) {
+            sendFrame(server, true, 0, 0x8, ByteBuffer.wrap(new byte[]{(byte) (1000 >> 8), (byte) (1000 & 0xFF)}));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getState() != State.CLOSED && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        server.close();
+
+        return frames;
+    }
+
+    private static void waitUntil(long time) {
+        long remaining;
+        while ((remaining = time - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Read the upgrade request of the client and accept it, agreeing on the protocol of the replay if it has one.
+     */
+    private void answerHandshake(Transport server) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(8 * 1024);
+
+        int end;
+        while ((end = indexOf(request, HEADER_END)) == -1) {
+            if (!request.hasRemaining() || server.read(request) == -1) {
+                throw new IOException("Client did not send a valid upgrade request");
+            }
+        }
+
+        String key = "";
+        boolean protocolOffered = false;
+        for (String line : new String(request.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon == -1) continue;
+
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("sec-websocket-key")) {
+                key = line.substring(colon + 1).trim();
+            } else if (name.equalsIgnoreCase("sec-websocket-protocol")) {
+                for (String offered : line.substring(colon + 1).split(",")) {
+                    if (offered.trim().equals(protocol)) protocolOffered = true;
+                }
+            }
+        }
+
+        if (protocol != null && !protocolOffered) {
+            server.close();
+            throw new IOException("Client did not offer the " + protocol + " protocol, register a handler for it");
+        }
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                (protocol == null ? "" : "Sec-WebSocket-Protocol: " + protocol + "\r\n") +
+                "Sec-WebSocket-Accept: " + Helpers.getSecWebsocket(key) + "\r\n\r\n";
+        server.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] bytes) {
+        search:
+        for (int i = 0; i <= buffer.position() - bytes.length; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                if (buffer.get(i + j) != bytes[j]) continue search;
+            }
+            return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Read and throw away what the client sends, like pongs and its close frame, so its writes never block on a full pipe.
+     */
+    private static void startDraining(Transport server) {
+        Thread drain = new Thread(() -> {
+            ByteBuffer discard = ByteBuffer.allocate(PIPE_CAPACITY);
+            try {
+                while (server.read(discard) != -1) {
+                    discard.clear();
+                }
+            } catch (IOException e) {
+                //The replay closed the pipe
+            }
+        }, "journal-replay-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    private void sendFrame(Transport server, boolean fin, int rsv, int opcode, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+
+        header.clear();
+        header.put((byte) ((fin ? 0b10000000 : 0) | (rsv << 4) | opcode));
+        if (length > 65535) {
+            header.put((byte) 127).putLong(length);
+        } else if (length > 125) {
+            header.put((byte) 126).putShort((short) length);
+        } else {
+            header.put((byte) length);
+        }
+        header.flip();
+
+        frameBuffers[0] = header;
+        frameBuffers[1] = payload;
+        server.write(frameBuffers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: JournalReplay <directory> [--connection=id] [--speed=original|maximum] [--protocol=name]");
+            return;
+        }
+
+        Path directory = Paths.get(args[0]);
+        Long connection = null;
+        Speed speed = Speed.ORIGINAL;
+        String protocol = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--connection=")) {
+                connection = Long.parseLong(args[i].substring("--connection=".length()));
+            } else if (args[i].startsWith("--speed=")) {
+                speed = Speed.valueOf(args[i].substring("--speed=".length()).toUpperCase());
+            } else if (args[i].startsWith("--protocol=")) {
+                protocol = args[i].substring("--protocol=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (connection == null) {
+            Map<Long, Long> frames = new TreeMap<>();
+            JournalReader reader = JournalReader.open(directory);
+            while (reader.next()) frames.merge(reader.connectionId(), 1L, Long::sum);
+
+            System.out.printf("%-15s %10s%n", "connection", "frames");
+            frames.forEach((id, count) -> System.out.printf("%-15d %10d%n", id, count));
+            return;
+        }
+
+        JournalReplay replay = new JournalReplay(directory, connection, speed, protocol);
+        Client client = replay.createClient(ClientOptions.defaults());
+        LongAdder messages = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        client.registerMessageHandler(protocol == null ? "" : protocol, message -> {
+            messages.increment();
+            bytes.add(message.getPayloadLength());
+        });
+
+        long start = System.nanoTime();
+        long frames = replay.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Replayed %d frames, %d messages, %d bytes in %.3f s (%.0f msg/s)%n", frames, messages.sum(),
+                          bytes.sum(), seconds, messages.sum() / seconds);
+    }
+}
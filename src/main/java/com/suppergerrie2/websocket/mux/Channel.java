@@ -0,0 +1,351 @@
+package com.suppergerrie2.websocket.mux;
+
+import com.suppergerrie2.websocket.client.MessageDispatcher;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.Utf8Validator;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A logical stream of messages within the connection of a {@link Multiplexer}. Open one with
+ * {@link Multiplexer#openChannel(int, Consumer)}.
+ * <p>
+ * Sending queues the message and returns right away, the message is written in chunks when it is the turn of this
+ * channel and it has credit. The payload is copied, so the caller can reuse its buffers.
+ */
+public final class Channel {
+
+    private final Multiplexer multiplexer;
+    private final int id;
+    private final Consumer<Message> handler;
+    private final MessageDispatcher dispatcher;
+
+    //Messages waiting to be sent, guarded by this
+    private final ArrayDeque<Outbound> outbound = new ArrayDeque<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong sendCredit;
+    private final AtomicBoolean inReadyQueue = new AtomicBoolean();
+
+    //Bytes handled since the last credit update that was sent
+    private final AtomicLong handledBytes = new AtomicLong();
+    private final AtomicBoolean creditQueued = new AtomicBoolean();
+
+    //The message that is being received, only used by the thread the client dispatches on
+    private byte[] receiving;
+    private int receivedLength;
+    private boolean receivingText;
+    private final Utf8Validator utf8Validator = new Utf8Validator();
+
+    //Complete messages whose handler did not return yet, and the credit held back of the message that is being received.
+    //Guarded by receiveLock, the handlers can run on another thread
+    private final Object receiveLock = new Object();
+    private int waitingMessages;
+    private long heldBytes;
+
+    //Set when close was called, guarded by this
+    private boolean closing;
+    private volatile boolean closed;
+
+    Channel(Multiplexer multiplexer, int id, Consumer<Message> handler, MessageDispatcher dispatcher, int window) {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.handler = handler;
+        this.dispatcher = dispatcher;
+        this.sendCredit = new AtomicLong(window);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Send a binary message.
+     *
+     * @param bytes The payload, copied before this returns
+     * @throws IllegalStateException When the channel is closed or the server did not agree on the protocol
+     */
+    public void send(byte[] bytes) {
+        enqueue(new Outbound(bytes.clone(), false));
+    }
+
+    /**
+     * Send the bytes between position and limit of the buffer as a binary message, the position is advanced to the limit.
+     *
+     * @param buffer The payload, copied before this returns
+     * @throws IllegalStateException When the channel is closed or the server did not agree on the protocol
+     */
+    public void send(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        enqueue(new Outbound(bytes, false));
+    }
+
+    /**
+     * Send a text message, encoded as UTF-8.
+     *
+     * @param text The text to send
+     * @throws IllegalStateException When the channel is closed or the server did not agree on the protocol
+     */
+    public void send(CharSequence text) {
+        enqueue(new Outbound(text.toString().getBytes(StandardCharsets.UTF_8), true));
+    }
+
+    /**
+     * Close the channel once the messages queued before this have been sent. The other side stops delivering messages
+     * for the channel when it receives the close.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closing || closed) return;
+            closing = true;
+            outbound.add(Outbound.CLOSE);
+        }
+        markReady();
+    }
+
+    /**
+     * @return true if the channel was closed by either side or the client closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The payload bytes that are queued but not sent yet
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return The bytes this channel can still send before the other side gives back credit
+     */
+    public long getSendCredit() {
+        return sendCredit.get();
+    }
+
+    private void enqueue(Outbound message) {
+        if (!multiplexer.isNegotiated()) {
+            throw new IllegalStateException("The server did not agree on the " + Multiplexer.PROTOCOL + " protocol");
+        }
+
+        synchronized (this) {
+            if (closing || closed) throw new IllegalStateException("Channel " + id + " is closed");
+            outbound.add(message);
+        }
+        queuedBytes.addAndGet(message.payload.length);
+        markReady();
+    }
+
+    /**
+     * Put the channel in the ready queue of the multiplexer if it can send and is not in there yet.
+     */
+    private void markReady() {
+        if (canSend() && inReadyQueue.compareAndSet(false, true)) multiplexer.ready(this);
+    }
+
+    private synchronized boolean canSend() {
+        Outbound head = outbound.peek();
+        //Empty messages and closing don't need credit
+        return head != null && !closed && (head == Outbound.CLOSE || head.remaining() == 0 || sendCredit.get() > 0);
+    }
+
+    /**
+     * Write the next chunk of the first queued message, as far as the credit allows. Called by the writer of the
+     * multiplexer after taking this channel from the ready queue.
+     *
+     * @param scratch The buffer to build the chunk in
+     */
+    void writeChunk(ByteBuffer scratch) {
+        //Only cleared once the chunk is written, so no other writer takes the channel and the chunks stay in order. A
+        //message or credit that arrives in the meantime is picked up by the markReady after it
+        try {
+            writeNextChunk(scratch);
+        } finally {
+            inReadyQueue.set(false);
+        }
+
+        markReady();
+    }
+
+    private void writeNextChunk(ByteBuffer scratch) {
+        boolean close;
+
+        //The chunk is built while holding this and written after, so sending doesn't wait for a slow socket
+        synchronized (this) {
+            Outbound head = outbound.peek();
+            if (head == null || closed) return;
+
+            scratch.clear();
+            close = head == Outbound.CLOSE;
+            if (close) {
+                outbound.poll();
+                scratch.put(Multiplexer.CLOSE).putInt(id).flip();
+            } else {
+                int length = (int) Math.min(Math.min(head.remaining(), Multiplexer.CHUNK_SIZE), sendCredit.get());
+                boolean fin = length == head.remaining();
+                if (length == 0 && !fin) return;
+
+                int flags = (fin ? Multiplexer.FLAG_FIN : 0) | (head.text ? Multiplexer.FLAG_TEXT : 0);
+                scratch.put(Multiplexer.DATA).putInt(id).put((byte) flags).put(head.payload, head.offset, length).flip();
+
+                head.offset += length;
+                sendCredit.addAndGet(-length);
+                queuedBytes.addAndGet(-length);
+                if (fin) outbound.poll();
+            }
+        }
+
+        multiplexer.send(scratch);
+
+        if (close) {
+            closed = true;
+            multiplexer.removed(this);
+        }
+    }
+
+    /**
+     * Write the credit of the handled bytes, called by the writer of the multiplexer.
+     *
+     * @param scratch The buffer to build the update in
+     */
+    void writeCredit(ByteBuffer scratch) {
+        creditQueued.set(false);
+
+        long credit = handledBytes.getAndSet(0);
+        if (credit == 0 || closed) return;
+
+        int update = (int) Math.min(credit, Integer.MAX_VALUE);
+        handledBytes.addAndGet(credit - update);
+
+        scratch.clear();
+        scratch.put(Multiplexer.CREDIT).putInt(id).putInt(update).flip();
+        multiplexer.send(scratch);
+    }
+
+    /**
+     * Called when the other side gave back credit.
+     */
+    void credited(int bytes) {
+        sendCredit.addAndGet(bytes);
+        markReady();
+    }
+
+    /**
+     * Called in order for every chunk received on this channel, passes complete messages to the handler.
+     */
+    void received(byte flags, ByteBuffer chunk) {
+        if (closed) return;
+
+        int length = chunk.remaining();
+        if (receiving == null) {
+            receiving = new byte[length];
+            receivedLength = 0;
+            receivingText = (flags & Multiplexer.FLAG_TEXT) != 0;
+            utf8Validator.reset();
+        } else if (receiving.length - receivedLength < length) {
+            receiving = Arrays.copyOf(receiving, Math.max(receiving.length * 2, receivedLength + length));
+        }
+
+        //Checked per chunk, so a big invalid message is rejected before it is all received
+        if (receivingText && !utf8Validator.validate(chunk)) {
+            invalidText();
+            return;
+        }
+
+        chunk.get(receiving, receivedLength, length);
+        receivedLength += length;
+
+        if ((flags & Multiplexer.FLAG_FIN) == 0) {
+            synchronized (receiveLock) {
+                //The rest of the message is still on its way, holding back its credit could stop it from arriving. That
+                //is only needed while no complete messages wait, they give back their credit when handled
+                if (waitingMessages == 0) {
+                    handled(length);
+                } else {
+                    heldBytes += length;
+                }
+            }
+            return;
+        }
+
+        if (receivingText && !utf8Validator.isComplete()) {
+            invalidText();
+            return;
+        }
+
+        byte[] payload = receivedLength == receiving.length ? receiving : Arrays.copyOf(receiving, receivedLength);
+        Message message = new Message(receivingText ? Fragment.OpCode.TEXT_FRAME : Fragment.OpCode.BINARY_FRAME, payload);
+        receiving = null;
+
+        long credit;
+        synchronized (receiveLock) {
+            credit = heldBytes + length;
+            heldBytes = 0;
+            waitingMessages++;
+        }
+
+        dispatcher.dispatch(() -> {
+            try {
+                handler.accept(message);
+            } finally {
+                synchronized (receiveLock) {
+                    long released = credit;
+                    //The message that is being received doesn't have to wait for the others anymore
+                    if (--waitingMessages == 0) {
+                        released += heldBytes;
+                        heldBytes = 0;
+                    }
+                    handled(released);
+                }
+            }
+        });
+    }
+
+    private void invalidText() {
+        receiving = null;
+        multiplexer.fail(Constants.StatusCode.INCONSISTENT_DATA_TYPE, "Received invalid UTF-8 on channel " + id);
+    }
+
+    private void handled(long bytes) {
+        //Credit is given back in batches, so small messages don't cause an update each
+        if (handledBytes.addAndGet(bytes) >= multiplexer.getWindow() / 4 && creditQueued.compareAndSet(false, true)) {
+            multiplexer.creditAvailable(this);
+        }
+    }
+
+    /**
+     * Called when the other side closed the channel or the client closed, drops the queued messages.
+     */
+    synchronized void closed() {
+        closed = true;
+        outbound.clear();
+        queuedBytes.set(0);
+    }
+
+    private static final class Outbound {
+        //Marks the end of the channel in the queue
+        static final Outbound CLOSE = new Outbound(new byte[0], false);
+
+        final byte[] payload;
+        final boolean text;
+        int offset;
+
+        Outbound(byte[] payload, boolean text) {
+            this.payload = payload;
+            this.text = text;
+        }
+
+        int remaining() {
+            return payload.length - offset;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.suppergerrie2.websocket.mux;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.MessageDispatcher;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Carries many logical {@link Channel}s over the connection of one {@link Client}, so separate streams of messages don't
+ * each need their own handshake, socket and read thread. The client offers the {@value #PROTOCOL} subprotocol and the
+ * server has to agree on it.
+ * <p>
+ * Every websocket message of the protocol is a binary message with a 5 byte header: the type and the id of the channel
+ * as a big endian int. What follows depends on the type:
+ * <ul>
+ *     <li>DATA (0): 1 byte of flags, bit 0 for the last chunk of a channel message and bit 1 for text, then the chunk</li>
+ *     <li>CREDIT (1): the amount of bytes the sender of the credit can receive more on the channel, as an int</li>
+ *     <li>CLOSE (2): nothing, the channel is closed</li>
+ * </ul>
+ * DATA for a channel that is not open is answered with a CLOSE, so channels have to be opened on both sides before they
+ * are used. CREDIT and CLOSE for a channel that is not open are ignored, they can cross a close. A message that does not
+ * follow the protocol stops the client with {@link Constants.StatusCode#PROTOCOL_ERROR}, and a text message on a channel
+ * that is not valid UTF-8 with {@link Constants.StatusCode#INCONSISTENT_DATA_TYPE}.
+ * <p>
+ * Channel messages are sent in chunks of at most 16 KB, the chunks of all channels with data take turns. A big message
+ * on one channel therefore only delays the messages of other channels by a chunk.
+ * <p>
+ * Every channel starts with a window of credit, the bytes it may send before the other side has handled them. The credit
+ * of a message is given back once its handler returned. While no complete messages wait for their handler the chunks of
+ * the message that is still arriving are given back right away, so messages bigger than the window don't get stuck. The
+ * received messages that wait therefore take at most a window plus that one message. A channel that is out of credit
+ * waits without holding up the other channels. Both sides use the same window.
+ * <p>
+ * The chunks are written by a small pool of shared background threads, one at a time for every multiplexer, so sending
+ * never blocks and the read thread never writes. The client should dispatch messages inline or ordered, the chunks of a
+ * message have to be handled in the order they arrive.
+ */
+public class Multiplexer {
+
+    public static final String PROTOCOL = "mux.v1";
+
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    static final byte DATA = 0;
+    static final byte CREDIT = 1;
+    static final byte CLOSE = 2;
+
+    static final int HEADER_SIZE = 5;
+    static final int FLAG_FIN = 1;
+    static final int FLAG_TEXT = 2;
+
+    private static final AtomicInteger WRITER_IDS = new AtomicInteger();
+    private static final int WRITER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    //Writes the chunks of all multiplexers. A fixed amount of threads, so many slow connections don't each hold one
+    private static final ExecutorService WRITER = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "websocket-mux-writer-" + WRITER_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Client client;
+    private final int window;
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    //Channels with data and credit, every channel is in here at most once
+    private final Queue<Channel> ready = new ConcurrentLinkedQueue<>();
+    //Channels that have credit to give back, written before the chunks
+    private final Queue<Channel> creditUpdates = new ConcurrentLinkedQueue<>();
+    //Ids of channels that are not open here but received data, answered with a close
+    private final Queue<Integer> unknownChannels = new ConcurrentLinkedQueue<>();
+    //Set while a drain is scheduled or running, so at most one drain of this multiplexer runs at a time
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * Multiplex the connection of the client with the default window. Has to be created before the client is started,
+     * so the protocol is offered during the handshake.
+     *
+     * @param client The client to carry the channels
+     */
+    public Multiplexer(Client client) {
+        this(client, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param client The client to carry the channels
+     * @param window The amount of bytes a channel can send before the other side has handled them, the same on both sides
+     */
+    public Multiplexer(Client client, int window) {
+        if (window < CHUNK_SIZE) {
+            throw new IllegalArgumentException(String.format("Window should be at least %d bytes but is %d", CHUNK_SIZE, window));
+        }
+
+        this.client = client;
+        this.window = window;
+
+        client.registerMessageHandler(PROTOCOL, this::onMessage);
+        client.registerCloseHandler(closed -> {
+            for (Channel channel : channels.values()) channel.closed();
+            channels.clear();
+        });
+    }
+
+    /**
+     * Open a channel whose handler runs on the thread the client dispatches messages on.
+     *
+     * @param id      The id of the channel, the same on both sides
+     * @param handler Gets the messages received on the channel
+     * @return The channel
+     * @throws IllegalStateException When a channel with the id is already open
+     */
+    public Channel openChannel(int id, Consumer<Message> handler) {
+        return register(id, handler, MessageDispatcher.inline());
+    }
+
+    /**
+     * Open a channel whose handler runs on the executor, one message at a time and in order. A slow handler then only
+     * stops the credit of its own channel, the other channels keep going.
+     *
+     * @param id       The id of the channel, the same on both sides
+     * @param handler  Gets the messages received on the channel
+     * @param executor The executor to run the handler on
+     * @return The channel
+     * @throws IllegalStateException When a channel with the id is already open
+     */
+    public Channel openChannel(int id, Consumer<Message> handler, Executor executor) {
+        return register(id, handler, MessageDispatcher.ordered(executor));
+    }
+
+    private Channel register(int id, Consumer<Message> handler, MessageDispatcher dispatcher) {
+        Channel channel = new Channel(this, id, handler, dispatcher, window);
+        if (channels.putIfAbsent(id, channel) != null) {
+            throw new IllegalStateException("Channel " + id + " is already open");
+        }
+        return channel;
+    }
+
+    /**
+     * @return true if the server agreed on the protocol, before that channels can't send
+     */
+    public boolean isNegotiated() {
+        return PROTOCOL.equals(client.getProtocol());
+    }
+
+    /**
+     * @return The client that carries the channels
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    void ready(Channel channel) {
+        ready.add(channel);
+        scheduleDrain();
+    }
+
+    void creditAvailable(Channel channel) {
+        creditUpdates.add(channel);
+        scheduleDrain();
+    }
+
+    void removed(Channel channel) {
+        channels.remove(channel.getId(), channel);
+    }
+
+    /**
+     * Stop the client because the other side broke the protocol.
+     *
+     * @param statusCode The status code to close the connection with
+     * @param reason     What was wrong, printed
+     */
+    void fail(Constants.StatusCode statusCode, String reason) {
+        System.out.printf("%s, closing the connection%n", reason);
+
+        try {
+            client.stop(statusCode, true);
+        } catch (IllegalStateException e) {
+            //Already closed
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) WRITER.execute(this::drain);
+    }
+
+    /**
+     * Write the closes for unknown channels, the credit updates and then the chunks of the ready channels in turns, until no channel can send.
+     */
+    private void drain() {
+        ByteBuffer scratch = ByteBuffer.allocate(HEADER_SIZE + 1 + CHUNK_SIZE);
+        do {
+            try {
+                Channel channel;
+                Integer unknown;
+                while (true) {
+                    while ((unknown = unknownChannels.poll()) != null) {
+                        scratch.clear();
+                        scratch.put(CLOSE).putInt(unknown).flip();
+                        send(scratch);
+                    }
+                    while ((channel = creditUpdates.poll()) != null) channel.writeCredit(scratch);
+
+                    channel = ready.poll();
+                    if (channel == null) break;
+
+                    channel.writeChunk(scratch);
+                }
+            } catch (IllegalStateException | UncheckedIOException e) {
+                //The client closed or could not write and was closed, its close handler closes the channels
+                drainScheduled.set(false);
+                return;
+            }
+
+            //Anything queued before the flag is cleared did not schedule a drain, so the queues are checked once more
+            drainScheduled.set(false);
+        } while ((!unknownChannels.isEmpty() || !creditUpdates.isEmpty() || !ready.isEmpty())
+                 && drainScheduled.compareAndSet(false, true));
+    }
+
+    void send(ByteBuffer frame) {
+        if (!isNegotiated()) {
+            throw new IllegalStateException("The server did not agree on the " + PROTOCOL + " protocol");
+        }
+
+        client.send(frame);
+    }
+
+    private void onMessage(Message message) {
+        ByteBuffer payload = message.getPayload();
+        if (message.getMessageType() != Fragment.OpCode.BINARY_FRAME || payload.remaining() < HEADER_SIZE) {
+            fail(Constants.StatusCode.PROTOCOL_ERROR, "Received a message that is not a multiplexed message");
+            return;
+        }
+
+        byte type = payload.get();
+        int id = payload.getInt();
+        Channel channel = channels.get(id);
+
+        switch (type) {
+            case DATA:
+                if (!payload.hasRemaining()) {
+                    fail(Constants.StatusCode.PROTOCOL_ERROR, "Received data without flags on channel " + id);
+                    return;
+                }
+
+                if (channel == null) {
+                    unknownChannels.add(id);
+                    scheduleDrain();
+                    return;
+                }
+
+                channel.received(payload.get(), payload);
+                break;
+            case CREDIT:
+                if (payload.remaining() != Integer.BYTES || payload.getInt(payload.position()) < 0) {
+                    fail(Constants.StatusCode.PROTOCOL_ERROR, "Received invalid credit on channel " + id);
+                    return;
+                }
+
+                if (channel != null) channel.credited(payload.getInt());
+                break;
+            case CLOSE:
+                if (channel == null) return;
+
+                channel.closed();
+                removed(channel);
+                break;
+            default:
+                fail(Constants.StatusCode.PROTOCOL_ERROR, "Received a message of unknown type " + type + " on channel " + id);
+                break;
+        }
+    }
+}
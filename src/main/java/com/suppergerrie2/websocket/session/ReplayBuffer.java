@@ -0,0 +1,160 @@
+package com.suppergerrie2.websocket.session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of sent messages that have not been acknowledged yet, kept in a direct buffer so it does not add to the heap.
+ * <p>
+ * Every record is a 4 byte length followed by the message exactly as it is sent: the type, the sequence number, the flags
+ * and the payload. A record never wraps around the end, when it doesn't fit the rest of the buffer is skipped. Sending a
+ * record is then a single slice of the ring, which the client masks straight from the direct buffer.
+ * <p>
+ * Not thread safe, the session guards it with its lock.
+ */
+final class ReplayBuffer {
+
+    //Written where the rest of the buffer is skipped, unless there is no room for it
+    private static final int WRAP = -1;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private int head;
+    private int tail;
+    //Bytes of the records and skipped ends
+    private int used;
+    private int count;
+    private long firstSequence;
+    //Where the last record found by get starts, so looking up the next one doesn't start at the head again
+    private long cursorSequence;
+    private int cursorPosition;
+
+    ReplayBuffer(int capacity) {
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return The size of the record of a message with the given payload length
+     */
+    static int recordSize(int payloadLength) {
+        return Integer.BYTES + ResumableSession.DATA_HEADER_SIZE + payloadLength;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The amount of messages in the buffer
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return true if a message with the given payload length can be added without releasing any first
+     */
+    boolean hasRoom(int payloadLength) {
+        int size = recordSize(payloadLength);
+        int skipped = tail + size > capacity ? capacity - tail : 0;
+        return used + skipped + size <= capacity;
+    }
+
+    /**
+     * Add a message, {@link #hasRoom(int)} should be checked first.
+     *
+     * @param sequence The sequence number, one more than that of the last added message
+     * @param flags    The flags of the message
+     * @param payload  The payload between position and limit, the position is not changed
+     * @return The record as it is sent, a view on the ring that is valid until the message is released
+     */
+    ByteBuffer add(long sequence, byte flags, ByteBuffer payload) {
+        int length = payload.remaining();
+        int size = recordSize(length);
+
+        if (tail + size > capacity) {
+            if (capacity - tail >= Integer.BYTES) ring.putInt(tail, WRAP);
+            used += capacity - tail;
+            tail = 0;
+        }
+
+        if (count == 0) firstSequence = sequence;
+
+        int start = tail;
+        ring.putInt(start, length);
+        ring.put(start + Integer.BYTES, ResumableSession.DATA);
+        ring.putLong(start + Integer.BYTES + 1, sequence);
+        ring.put(start + Integer.BYTES + 9, flags);
+        ring.put(start + Integer.BYTES + ResumableSession.DATA_HEADER_SIZE, payload, payload.position(), length);
+
+        tail = start + size == capacity ? 0 : start + size;
+        used += size;
+        count++;
+
+        return message(start, length);
+    }
+
+    /**
+     * Drop the messages that have been acknowledged.
+     *
+     * @param sequence The highest acknowledged sequence number, every message up to and including it is dropped
+     */
+    void release(long sequence) {
+        while (count > 0 && firstSequence <= sequence) {
+            skipWrap();
+
+            int size = recordSize(ring.getInt(head));
+            head = head + size == capacity ? 0 : head + size;
+            used -= size;
+            count--;
+            firstSequence++;
+        }
+
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            used = 0;
+        }
+    }
+
+    /**
+     * Find a message by its sequence number. Looking up the messages in order only steps over each record once.
+     *
+     * @param sequence The sequence number of the message
+     * @return The message as it is sent, valid until it is released, or null if it is not in the buffer
+     */
+    ByteBuffer get(long sequence) {
+        if (sequence < firstSequence || sequence >= firstSequence + count) return null;
+
+        boolean fromCursor = cursorSequence >= firstSequence && cursorSequence <= sequence;
+        int position = fromCursor ? cursorPosition : head;
+        long current = fromCursor ? cursorSequence : firstSequence;
+
+        while (true) {
+            if (capacity - position < Integer.BYTES || ring.getInt(position) == WRAP) position = 0;
+
+            int length = ring.getInt(position);
+            if (current == sequence) {
+                cursorSequence = current;
+                cursorPosition = position;
+                return message(position, length);
+            }
+
+            position += recordSize(length);
+            if (position == capacity) position = 0;
+            current++;
+        }
+    }
+
+    private void skipWrap() {
+        if (capacity - head < Integer.BYTES || ring.getInt(head) == WRAP) {
+            used -= capacity - head;
+            head = 0;
+        }
+    }
+
+    private ByteBuffer message(int start, int length) {
+        int from = start + Integer.BYTES;
+        return ring.duplicate().limit(from + ResumableSession.DATA_HEADER_SIZE + length).position(from).slice();
+    }
+}
@@ -0,0 +1,549 @@
+package com.suppergerrie2.websocket.session;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.ClientOptions;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A connection that survives reconnects without losing messages, using the {@value #PROTOCOL} subprotocol.
+ * <p>
+ * Every sent message gets a sequence number and stays in a {@link ReplayBuffer} until the server acknowledges it. When
+ * the connection drops a new one is made in the background, waiting longer between attempts while they keep failing.
+ * After connecting both sides tell each other the last sequence number they received, and only the messages after it
+ * are sent again. Messages sent while there is no connection wait in the buffer. Received messages are passed to the
+ * handlers exactly once and in order, repeated ones are dropped.
+ * <p>
+ * Every message of the protocol is a binary message that starts with its type:
+ * <ul>
+ *     <li>DATA (0): the sequence number as a long, 1 byte of flags with bit 1 for text, then the payload</li>
+ *     <li>ACK (1): the highest sequence number received so far, as a long</li>
+ *     <li>RESUME (2): the session id as 2 longs and the highest sequence number received so far. The client sends it
+ *     first on every connection, the server answers with its own</li>
+ * </ul>
+ * Sequence numbers start at 1, 0 means nothing was received yet.
+ */
+public class ResumableSession implements Closeable {
+
+    public static final String PROTOCOL = "resume.v1";
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 1024 * 1024;
+
+    static final byte DATA = 0;
+    static final byte ACK = 1;
+    static final byte RESUME = 2;
+
+    static final int DATA_HEADER_SIZE = 1 + Long.BYTES + 1;
+    static final int FLAG_TEXT = 2;
+
+    //Received messages are acknowledged after this many, or after the delay when less arrived
+    private static final int ACK_EVERY = 32;
+    private static final long ACK_DELAY_MILLIS = 20;
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+    private static final AtomicInteger SESSION_IDS = new AtomicInteger();
+
+    private final URI host;
+    private final ClientOptions options;
+    private final UUID id = UUID.randomUUID();
+    private final List<Consumer<Message>> handlers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+
+    //Never taken on the thread the client dispatches on and never held while writing to the socket, a sender blocked on
+    //a full socket would otherwise stop the reader, and with it the acknowledgements that make room
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition roomAvailable = lock.newCondition();
+    //Guarded by lock
+    private final ReplayBuffer buffer;
+    private volatile long lastSent;
+    private long lastReleased;
+    //The last message written to the current client, the next one is written after it
+    private long lastWritten;
+    //Whether a thread is writing the messages after lastWritten, only one does so they stay in order
+    private boolean writing;
+    //The message that is being written, it can't be released until the write is done
+    private long writingSequence;
+
+    //Set by the thread the client dispatches on, the buffer is released up to it under the lock later
+    private final AtomicLong lastAcknowledged = new AtomicLong();
+    private final AtomicBoolean releaseScheduled = new AtomicBoolean();
+
+    private volatile Client client;
+    //Whether the server answered the resume of the current client, before that nothing is sent
+    private volatile boolean resumed;
+    private volatile boolean closed;
+    //Written by the thread the client dispatches on, read by the scheduler when it acknowledges
+    private volatile long lastReceived;
+    private volatile long lastReceivedAcknowledged;
+    private final AtomicBoolean ackScheduled = new AtomicBoolean();
+    //Only used by the close handlers and the scheduler, one at a time
+    private volatile long connectedAt;
+    private volatile int failures;
+
+    /**
+     * Create a session with the default options and buffer capacity.
+     *
+     * @param host The uri to connect to
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     */
+    public ResumableSession(URI host) throws ProtocolException {
+        this(host, ClientOptions.defaults(), DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param host           The uri to connect to
+     * @param options        The options every connection is created with
+     * @param bufferCapacity The bytes of direct memory that hold the messages that are not acknowledged yet
+     * @throws ProtocolException When the scheme of the uri is not ws, wss or ws+unix
+     */
+    public ResumableSession(URI host, ClientOptions options, int bufferCapacity) throws ProtocolException {
+        if (bufferCapacity < ReplayBuffer.recordSize(0)) {
+            throw new IllegalArgumentException("Buffer capacity is too small: " + bufferCapacity);
+        }
+
+        this.host = host;
+        this.options = options;
+        this.buffer = new ReplayBuffer(bufferCapacity);
+        //Checks the uri
+        this.client = createClient();
+
+        int number = SESSION_IDS.incrementAndGet();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resumable-session-" + number);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Register a handler for the received messages, called on the thread the client dispatches on.
+     *
+     * @param handler The handler
+     */
+    public void registerMessageHandler(Consumer<Message> handler) {
+        handlers.add(handler);
+    }
+
+    /**
+     * Make the first connection, later ones are made in the background.
+     *
+     * @throws IOException When the first connection could not be made
+     */
+    public void start() throws IOException {
+        connectedAt = System.nanoTime();
+        client.start();
+        scheduler.execute(() -> awaitOpen(client));
+    }
+
+    /**
+     * Send a binary message. It is sent right away when connected, otherwise after the next reconnect.
+     *
+     * @param bytes The payload
+     * @throws IllegalStateException When the session is closed, or the message is bigger than the buffer
+     * @see #send(ByteBuffer)
+     */
+    public void send(byte[] bytes) {
+        send(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Send the bytes between position and limit of the buffer as a binary message, the position is advanced to the
+     * limit. The payload is copied into the replay buffer. When the replay buffer is full this waits until the server
+     * acknowledges enough messages, also while reconnecting.
+     *
+     * @param payload The payload
+     * @throws IllegalStateException When the session is closed, or the message is bigger than the buffer
+     */
+    public void send(ByteBuffer payload) {
+        send(payload, (byte) 0);
+    }
+
+    /**
+     * Send a text message, encoded as UTF-8. See {@link #send(ByteBuffer)}.
+     *
+     * @param text The text to send
+     * @throws IllegalStateException When the session is closed, or the message is bigger than the buffer
+     */
+    public void send(CharSequence text) {
+        send(StandardCharsets.UTF_8.encode(text.toString()), (byte) FLAG_TEXT);
+    }
+
+    private void send(ByteBuffer payload, byte flags) {
+        int length = payload.remaining();
+        if (ReplayBuffer.recordSize(length) > buffer.getCapacity()) {
+            throw new IllegalStateException(
+                    String.format("Message of %d bytes does not fit in the replay buffer of %d bytes", length, buffer.getCapacity()));
+        }
+
+        lock.lock();
+        try {
+            release();
+            while (!buffer.hasRoom(length)) {
+                ensureNotClosed();
+                //Checked again after the timeout, closing does not signal
+                roomAvailable.await(100, TimeUnit.MILLISECONDS);
+                release();
+            }
+            ensureNotClosed();
+
+            buffer.add(lastSent + 1, flags, payload);
+            lastSent++;
+            payload.position(payload.limit());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for room in the replay buffer", e);
+        } finally {
+            lock.unlock();
+        }
+
+        flush();
+    }
+
+    /**
+     * @return The sequence number of the last sent message
+     */
+    public long getLastSent() {
+        return lastSent;
+    }
+
+    /**
+     * @return The sequence number of the last message the server acknowledged
+     */
+    public long getLastAcknowledged() {
+        return Math.min(lastAcknowledged.get(), lastSent);
+    }
+
+    /**
+     * @return true if connected and the server resumed the session, so messages are sent right away
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return The client of the current connection, replaced on every reconnect
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Stop the connection and stop reconnecting. Messages that have not been acknowledged are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        resumed = false;
+        scheduler.shutdownNow();
+
+        Client current = client;
+        if (current.getState() == State.OPEN) current.stop(Constants.StatusCode.GOING_AWAY, true);
+    }
+
+    private void ensureNotClosed() {
+        if (closed) throw new IllegalStateException("The session is closed");
+    }
+
+    private Client createClient() throws ProtocolException {
+        Client created = new Client(host, options);
+        created.registerMessageHandler(PROTOCOL, message -> onMessage(created, message));
+        created.registerCloseHandler(this::onClosed);
+        return created;
+    }
+
+    /**
+     * Send the resume once the handshake is done, runs on the scheduler.
+     */
+    private void awaitOpen(Client connecting) {
+        if (closed || connecting != client) return;
+
+        switch (connecting.getState()) {
+            case HANDSHAKE:
+                schedule(() -> awaitOpen(connecting), 1);
+                break;
+            case OPEN:
+                if (!PROTOCOL.equals(connecting.getProtocol())) {
+                    System.out.printf("Server at %s did not agree on the %s protocol%n", host, PROTOCOL);
+                    connecting.stop(Constants.StatusCode.PROTOCOL_ERROR, true);
+                    return;
+                }
+
+                ByteBuffer resume = ByteBuffer.allocate(1 + 3 * Long.BYTES);
+                resume.put(RESUME).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits())
+                      .putLong(lastReceivedAcknowledged).flip();
+                write(connecting, resume);
+                break;
+            default:
+                //The close handler schedules the next attempt
+                break;
+        }
+    }
+
+    private void onMessage(Client from, Message message) {
+        ByteBuffer payload = message.getPayload();
+        if (from != client || !payload.hasRemaining()) return;
+
+        switch (payload.get()) {
+            case DATA:
+                received(from, payload);
+                break;
+            case ACK:
+                if (payload.remaining() >= Long.BYTES) acknowledged(payload.getLong());
+                break;
+            case RESUME:
+                if (payload.remaining() >= 3 * Long.BYTES) {
+                    payload.position(payload.position() + 2 * Long.BYTES);
+                    long serverReceived = payload.getLong();
+                    //Replaying can take a while, the read thread should not write it
+                    execute(() -> resume(from, serverReceived));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void received(Client from, ByteBuffer payload) {
+        if (payload.remaining() < Long.BYTES + 1) return;
+
+        long sequence = payload.getLong();
+        boolean text = (payload.get() & FLAG_TEXT) != 0;
+
+        //Repeated by a replay, the handlers already had it
+        if (sequence <= lastReceived) return;
+
+        if (sequence != lastReceived + 1) {
+            //A message went missing, the resume of the next connection asks for it again
+            System.out.printf("Expected message %d but got %d, reconnecting%n", lastReceived + 1, sequence);
+            from.stop(Constants.StatusCode.PROTOCOL_ERROR, true);
+            return;
+        }
+
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        Message message = new Message(text ? Fragment.OpCode.TEXT_FRAME : Fragment.OpCode.BINARY_FRAME, bytes);
+
+        for (Consumer<Message> handler : handlers) handler.accept(message);
+        lastReceived = sequence;
+
+        if (sequence - lastReceivedAcknowledged >= ACK_EVERY) {
+            execute(this::acknowledge);
+        } else if (ackScheduled.compareAndSet(false, true)) {
+            schedule(this::acknowledge, ACK_DELAY_MILLIS);
+        }
+    }
+
+    private void acknowledge() {
+        ackScheduled.set(false);
+
+        long received = lastReceived;
+        Client current = client;
+        if (received == lastReceivedAcknowledged || !resumed) return;
+
+        ByteBuffer ack = ByteBuffer.allocate(1 + Long.BYTES);
+        ack.put(ACK).putLong(received).flip();
+        if (write(current, ack)) lastReceivedAcknowledged = received;
+    }
+
+    /**
+     * Called on the thread the client dispatches on, so the buffer is released on the scheduler.
+     */
+    private void acknowledged(long sequence) {
+        long previous = lastAcknowledged.getAndAccumulate(sequence, Math::max);
+        if (sequence > previous && releaseScheduled.compareAndSet(false, true)) {
+            execute(() -> {
+                releaseScheduled.set(false);
+                lock.lock();
+                try {
+                    release();
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the acknowledged messages from the buffer, except the one that is being written. Called while holding the
+     * lock.
+     */
+    private void release() {
+        long upTo = Math.min(lastAcknowledged.get(), lastSent);
+        if (writing) upTo = Math.min(upTo, writingSequence - 1);
+        if (upTo <= lastReleased) return;
+
+        buffer.release(upTo);
+        lastReleased = upTo;
+        roomAvailable.signalAll();
+    }
+
+    /**
+     * Replay the messages the server did not receive, runs on the scheduler.
+     */
+    private void resume(Client resuming, long serverReceived) {
+        acknowledged(serverReceived);
+
+        lock.lock();
+        try {
+            if (closed || resuming != client) return;
+
+            lastWritten = Math.max(serverReceived, lastReleased);
+            resumed = true;
+        } finally {
+            lock.unlock();
+        }
+
+        flush();
+
+        //Reset only once the connection is usable, so a server that keeps failing the resume still gets backed off from
+        failures = 0;
+        acknowledge();
+    }
+
+    /**
+     * Write the messages after {@link #lastWritten} to the current client, in order and without holding the lock while
+     * writing. When another thread is already writing it also writes the new messages, and this returns right away.
+     */
+    private void flush() {
+        lock.lock();
+        try {
+            if (writing) return;
+            writing = true;
+        } finally {
+            lock.unlock();
+        }
+
+        while (true) {
+            Client to;
+            long sequence;
+            ByteBuffer message;
+
+            lock.lock();
+            try {
+                //Nothing is being written, so everything acknowledged can go
+                writingSequence = 0;
+                writing = false;
+                release();
+
+                //Acknowledged while replaying, no need to write it again
+                lastWritten = Math.max(lastWritten, lastReleased);
+                if (closed || !resumed || lastWritten >= lastSent) return;
+
+                to = client;
+                sequence = lastWritten + 1;
+                message = buffer.get(sequence);
+                writing = true;
+                writingSequence = sequence;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean written = write(to, message);
+
+            lock.lock();
+            try {
+                //A resume in the meantime starts over from what the new connection received
+                if (to == client && lastWritten == sequence - 1) {
+                    if (written) {
+                        lastWritten = sequence;
+                    } else {
+                        //The client closed, the resume after reconnecting writes the rest
+                        writingSequence = 0;
+                        writing = false;
+                        release();
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return false if the client closed or writing failed, which closes the client. The message is sent again after
+     * reconnecting
+     */
+    private boolean write(Client to, ByteBuffer message) {
+        try {
+            to.send(message.duplicate());
+            return true;
+        } catch (IllegalStateException | UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    private void onClosed(Client closedClient) {
+        if (closed || closedClient != client) return;
+        resumed = false;
+
+        //A connection that stayed up for a while starts over with the shortest delay
+        if (System.nanoTime() - connectedAt > TimeUnit.MILLISECONDS.toNanos(MAX_RECONNECT_DELAY_MILLIS)) failures = 0;
+
+        long delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, MIN_RECONNECT_DELAY_MILLIS << Math.min(failures, 6));
+        failures++;
+        schedule(this::reconnect, delay);
+    }
+
+    private void reconnect() {
+        if (closed) return;
+
+        Client replacement;
+        try {
+            replacement = createClient();
+        } catch (ProtocolException e) {
+            //The uri was valid for the first client, so it is for this one
+            throw new IllegalStateException(e);
+        }
+        client = replacement;
+
+        connectedAt = System.nanoTime();
+        try {
+            replacement.start();
+            awaitOpen(replacement);
+        } catch (IOException e) {
+            //Starting closed the client, which scheduled the next attempt
+            System.out.printf("Could not reconnect to %s: %s%n", host, e.getMessage());
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            //The session was closed in the meantime
+        }
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //The session was closed in the meantime
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.suppergerrie2.websocket.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Two transports connected to each other in memory, without going through the kernel.
+ * What is written to one end can be read from the other end. Each direction has its own bounded ring buffer, a write
+ * blocks while the ring buffer is full just like a socket with a full send buffer.
+ * <p>
+ * This makes it possible to test and benchmark the client without the network, give {@link #client()} to the client and
+ * let a test play the server on {@link #server()}.
+ */
+public final class MemoryPipe {
+
+    private final Endpoint client;
+    private final Endpoint server;
+
+    /**
+     * @param capacity The size of the ring buffer of each direction in bytes
+     */
+    public MemoryPipe(int capacity) {
+        RingBuffer toServer = new RingBuffer(capacity);
+        RingBuffer toClient = new RingBuffer(capacity);
+
+        client = new Endpoint(toClient, toServer);
+        server = new Endpoint(toServer, toClient);
+    }
+
+    /**
+     * @return The end to give to the client
+     */
+    public Transport client() {
+        return client;
+    }
+
+    /**
+     * @return The end that plays the server
+     */
+    public Transport server() {
+        return server;
+    }
+
+    private static final class Endpoint implements Transport {
+
+        private final RingBuffer in;
+        private final RingBuffer out;
+
+        Endpoint(RingBuffer in, RingBuffer out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * The ends are connected from the start, so this only checks that the pipe has not been closed.
+         * A closed pipe can't be connected again.
+         */
+        @Override
+        public void connect(URI uri) throws IOException {
+            if (!isOpen()) throw new IOException("Pipe is closed");
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return in.read(destination);
+        }
+
+        @Override
+        public void write(ByteBuffer source) throws IOException {
+            out.write(source);
+        }
+
+        @Override
+        public void write(ByteBuffer[] sources) throws IOException {
+            for (ByteBuffer source : sources) {
+                out.write(source);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isReadable() && out.isWritable();
+        }
+
+        /**
+         * Close this end. The other end can still read what was written before, after that it reads the end of the stream.
+         */
+        @Override
+        public void close() {
+            in.closeReading();
+            out.closeWriting();
+        }
+    }
+
+    /**
+     * A bounded byte ring buffer with 1 reading and 1 writing side.
+     */
+    private static final class RingBuffer {
+
+        private final byte[] bytes;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        //Total amount of bytes read and written, the index in the array is the count modulo the capacity
+        private long readCount;
+        private long writeCount;
+        private boolean readingClosed;
+        private boolean writingClosed;
+
+        RingBuffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        int read(ByteBuffer destination) throws IOException {
+            if (!destination.hasRemaining()) return 0;
+
+            lock.lock();
+            try {
+                while (writeCount == readCount && !readingClosed && !writingClosed) {
+                    await(notEmpty);
+                }
+
+                if (readingClosed) throw new IOException("Pipe is closed");
+
+                int available = (int) (writeCount - readCount);
+                if (available == 0) return -1;
+
+                int length = Math.min(available, destination.remaining());
+                int start = (int) (readCount % bytes.length);
+                int first = Math.min(length, bytes.length - start);
+
+                destination.put(bytes, start, first);
+                destination.put(bytes, 0, length - first);
+
+                readCount += length;
+                notFull.signal();
+                return length;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void write(ByteBuffer source) throws IOException {
+            lock.lock();
+            try {
+                while (source.hasRemaining()) {
+                    while (writeCount - readCount == bytes.length && !readingClosed && !writingClosed) {
+                        await(notFull);
+                    }
+
+                    if (readingClosed || writingClosed) throw new IOException("Pipe is closed");
+
+                    int free = bytes.length - (int) (writeCount - readCount);
+                    int length = Math.min(free, source.remaining());
+                    int start = (int) (writeCount % bytes.length);
+                    int first = Math.min(length, bytes.length - start);
+
+                    source.get(bytes, start, first);
+                    source.get(bytes, 0, length - first);
+
+                    writeCount += length;
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isReadable() {
+            lock.lock();
+            try {
+                return !readingClosed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isWritable() {
+            lock.lock();
+            try {
+                return !readingClosed && !writingClosed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeReading() {
+            lock.lock();
+            try {
+                readingClosed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeWriting() {
+            lock.lock();
+            try {
+                writingClosed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static void await(Condition condition) throws InterruptedIOException {
+            try {
+                condition.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on the pipe");
+            }
+        }
+    }
+}
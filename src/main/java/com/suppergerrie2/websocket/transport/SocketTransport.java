@@ -0,0 +1,120 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Plain tcp transport on a blocking {@link SocketChannel}, used for ws uris.
+ * <p>
+ * Like every interruptible channel, the connection is closed when a thread blocked in a read or write is interrupted.
+ */
+public class SocketTransport implements Transport {
+
+    final ClientOptions options;
+    private volatile SocketChannel channel;
+
+    public SocketTransport() {
+        this(ClientOptions.defaults());
+    }
+
+    /**
+     * @param options The socket settings to apply before connecting
+     */
+    public SocketTransport(ClientOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public void connect(URI uri) throws IOException {
+        channel = open(uri);
+    }
+
+    /**
+     * Open a connected channel to the host of the uri.
+     *
+     * @param uri The uri to connect to
+     * @return The connected channel
+     * @throws IOException When the connection could not be made
+     */
+    protected SocketChannel open(URI uri) throws IOException {
+        int port = uri.getPort();
+        InetSocketAddress address = new InetSocketAddress(uri.getHost(), port == -1 ? 80 : port);
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, options.isTcpNoDelay());
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, options.isKeepAlive());
+            setBufferSizes(channel);
+
+            //The channel can't connect with a timeout, but its socket can while the channel is blocking
+            channel.socket().connect(address, options.getConnectTimeoutMillis());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Set the socket buffer sizes of the options. Done before connecting, as the receive buffer size decides the tcp window scale.
+     *
+     * @param channel The channel that is not connected yet
+     * @throws IOException When the sizes could not be set
+     */
+    void setBufferSizes(SocketChannel channel) throws IOException {
+        if (options.getSendBufferSize() > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, options.getSendBufferSize());
+        if (options.getReceiveBufferSize() > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize());
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        return channel().read(destination);
+    }
+
+    @Override
+    public void write(ByteBuffer source) throws IOException {
+        SocketChannel channel = channel();
+
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] sources) throws IOException {
+        SocketChannel channel = channel();
+
+        long remaining = 0;
+        for (ByteBuffer source : sources) remaining += source.remaining();
+
+        while (remaining > 0) {
+            remaining -= channel.write(sources);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        SocketChannel channel = this.channel;
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        SocketChannel channel = this.channel;
+        if (channel != null) channel.close();
+    }
+
+    SocketChannel channel() throws IOException {
+        SocketChannel channel = this.channel;
+        if (channel == null) throw new IOException("Transport is not connected");
+
+        return channel;
+    }
+}
@@ -0,0 +1,142 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * Tls transport on a {@link SSLSocket} from the default {@link SSLSocketFactory}, used for wss uris.
+ * <p>
+ * Writes are collected in a buffer of the size of a tls record, so the buffers of one write call end up in as few records as possible.
+ */
+public class TlsTransport implements Transport {
+
+    //Maximum plaintext size of a tls record
+    private static final int RECORD_SIZE = 16 * 1024;
+
+    private final SSLSocketFactory socketFactory;
+    private final ClientOptions options;
+    private volatile SSLSocket socket;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    //Used to move bytes from and to buffers without a backing array
+    private byte[] readScratch;
+    private byte[] writeScratch;
+
+    public TlsTransport() {
+        this(ClientOptions.defaults());
+    }
+
+    /**
+     * @param options The socket settings to apply before connecting
+     */
+    public TlsTransport(ClientOptions options) {
+        this((SSLSocketFactory) SSLSocketFactory.getDefault(), options);
+    }
+
+    /**
+     * @param socketFactory The factory to create the socket with, for example to use different trust settings
+     */
+    public TlsTransport(SSLSocketFactory socketFactory) {
+        this(socketFactory, ClientOptions.defaults());
+    }
+
+    /**
+     * @param socketFactory The factory to create the socket with, for example to use different trust settings
+     * @param options       The socket settings to apply before connecting
+     */
+    public TlsTransport(SSLSocketFactory socketFactory, ClientOptions options) {
+        this.socketFactory = socketFactory;
+        this.options = options;
+    }
+
+    @Override
+    public void connect(URI uri) throws IOException {
+        int port = uri.getPort();
+        SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket();
+        try {
+            sslSocket.setTcpNoDelay(options.isTcpNoDelay());
+            sslSocket.setKeepAlive(options.isKeepAlive());
+            if (options.getSendBufferSize() > 0) sslSocket.setSendBufferSize(options.getSendBufferSize());
+            if (options.getReceiveBufferSize() > 0) sslSocket.setReceiveBufferSize(options.getReceiveBufferSize());
+
+            //The address remembers the host name it was resolved from, the socket uses that for server name indication
+            sslSocket.connect(new InetSocketAddress(uri.getHost(), port == -1 ? 443 : port), options.getConnectTimeoutMillis());
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+
+        inputStream = sslSocket.getInputStream();
+        outputStream = new BufferedOutputStream(sslSocket.getOutputStream(), RECORD_SIZE);
+        socket = sslSocket;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (destination.hasArray()) {
+            int read = inputStream.read(destination.array(), destination.arrayOffset() + destination.position(),
+                                        destination.remaining());
+            if (read > 0) destination.position(destination.position() + read);
+            return read;
+        }
+
+        if (readScratch == null) readScratch = new byte[RECORD_SIZE];
+
+        int read = inputStream.read(readScratch, 0, Math.min(readScratch.length, destination.remaining()));
+        if (read > 0) destination.put(readScratch, 0, read);
+        return read;
+    }
+
+    @Override
+    public void write(ByteBuffer source) throws IOException {
+        writeBuffer(source);
+        outputStream.flush();
+    }
+
+    @Override
+    public void write(ByteBuffer[] sources) throws IOException {
+        for (ByteBuffer source : sources) {
+            writeBuffer(source);
+        }
+
+        outputStream.flush();
+    }
+
+    private void writeBuffer(ByteBuffer source) throws IOException {
+        if (source.hasArray()) {
+            outputStream.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            source.position(source.limit());
+            return;
+        }
+
+        if (writeScratch == null) writeScratch = new byte[RECORD_SIZE];
+
+        while (source.hasRemaining()) {
+            int length = Math.min(writeScratch.length, source.remaining());
+            source.get(writeScratch, 0, length);
+            outputStream.write(writeScratch, 0, length);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        SSLSocket socket = this.socket;
+        return socket != null && !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        SSLSocket socket = this.socket;
+        if (socket != null) socket.close();
+    }
+}
@@ -0,0 +1,81 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte stream a websocket connection runs on, for example a tcp socket.
+ * <p>
+ * Reads happen on one thread and writes on one thread at a time, the client makes sure of that.
+ * {@link #close()} can be called from any thread and makes blocked reads and writes fail.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Create the default transport for the scheme of the uri, a {@link TlsTransport} for wss, a {@link UnixSocketTransport}
+     * for ws+unix and a {@link SocketTransport} for ws.
+     *
+     * @param uri The uri that will be connected to
+     * @return A new, not yet connected, transport
+     */
+    static Transport forUri(URI uri) {
+        return forUri(uri, ClientOptions.defaults());
+    }
+
+    /**
+     * Create the default transport for the scheme of the uri, see {@link #forUri(URI)}.
+     *
+     * @param uri     The uri that will be connected to
+     * @param options The socket settings of the transport
+     * @return A new, not yet connected, transport
+     */
+    static Transport forUri(URI uri, ClientOptions options) {
+        if ("wss".equals(uri.getScheme())) return new TlsTransport(options);
+        if (UnixSocketTransport.SCHEME.equals(uri.getScheme())) return new UnixSocketTransport(null, options);
+
+        return new SocketTransport(options);
+    }
+
+    /**
+     * Connect to the host of the uri. Can be called again after the transport has been closed, if the transport supports reconnecting.
+     *
+     * @param uri The uri to connect to
+     * @throws IOException When the connection could not be made
+     */
+    void connect(URI uri) throws IOException;
+
+    /**
+     * Read bytes into the buffer, blocking until at least 1 byte is available.
+     *
+     * @param destination The buffer to read into, starting at its position
+     * @return The amount of bytes read, or -1 when the end of the stream has been reached
+     * @throws IOException When reading fails, or the transport was closed
+     */
+    int read(ByteBuffer destination) throws IOException;
+
+    /**
+     * Write all remaining bytes of the buffer, blocking until they are written.
+     *
+     * @param source The buffer to write
+     * @throws IOException When writing fails, or the transport was closed
+     */
+    void write(ByteBuffer source) throws IOException;
+
+    /**
+     * Write all remaining bytes of the buffers in order, blocking until they are written.
+     * Transports write them together where they can, instead of one buffer at a time.
+     *
+     * @param sources The buffers to write
+     * @throws IOException When writing fails, or the transport was closed
+     */
+    void write(ByteBuffer[] sources) throws IOException;
+
+    /**
+     * @return true if the transport is connected and not closed
+     */
+    boolean isOpen();
+}
@@ -0,0 +1,87 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Transport over a unix domain socket, for servers on the same host. This skips the tcp stack, the handshake and frames
+ * are the same as over tcp.
+ * <p>
+ * The socket is taken from a ws+unix uri, where the path is the socket path followed by a : and the request path, for
+ * example {@code ws+unix:///run/app.sock:/chat}. When the socket path is given to the constructor any ws uri can be used.
+ */
+public class UnixSocketTransport extends SocketTransport {
+
+    public static final String SCHEME = "ws+unix";
+
+    private final Path socketPath;
+
+    /**
+     * Create a transport that connects to the socket in the ws+unix uri.
+     */
+    public UnixSocketTransport() {
+        this(null, ClientOptions.defaults());
+    }
+
+    /**
+     * @param socketPath The socket to connect to, the uri is then only used for the handshake
+     */
+    public UnixSocketTransport(Path socketPath) {
+        this(socketPath, ClientOptions.defaults());
+    }
+
+    /**
+     * @param socketPath The socket to connect to, or null to take it from the ws+unix uri
+     * @param options    The options to take the socket buffer sizes from, the tcp settings don't apply
+     */
+    public UnixSocketTransport(Path socketPath, ClientOptions options) {
+        super(options);
+        this.socketPath = socketPath;
+    }
+
+    @Override
+    protected SocketChannel open(URI uri) throws IOException {
+        Path path = socketPath != null ? socketPath : Paths.get(socketPath(uri));
+
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            setBufferSizes(channel);
+            channel.connect(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * @param uri A ws+unix uri
+     * @return The path of the socket, the part of the path before the :
+     */
+    public static String socketPath(URI uri) {
+        String path = uri.getPath();
+        int separator = path.indexOf(':');
+
+        return separator == -1 ? path : path.substring(0, separator);
+    }
+
+    /**
+     * @param uri A ws+unix uri
+     * @return The path to request in the handshake, the part of the path after the : with the query, or / if there is none
+     */
+    public static String requestPath(URI uri) {
+        String path = uri.getRawPath();
+        int separator = path.indexOf(':');
+        String requestPath = separator == -1 || separator == path.length() - 1 ? "/" : path.substring(separator + 1);
+
+        return uri.getRawQuery() == null ? requestPath : requestPath + "?" + uri.getRawQuery();
+    }
+}
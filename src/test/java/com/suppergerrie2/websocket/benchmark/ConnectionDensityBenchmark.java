@@ -0,0 +1,311 @@
+package com.suppergerrie2.websocket.benchmark;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.ClientOptions;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how many idle {@link Client}s fit in one jvm, by opening an increasing amount of loopback connections and
+ * reporting per scale:
+ * <ul>
+ *     <li>the heap that is still in use after a gc, divided by the amount of connections</li>
+ *     <li>the most threads the clients added, also while answering the pings</li>
+ *     <li>the handshake rate, the amount of connections divided by the time it took to open all of them</li>
+ *     <li>the round trip time of pings while the connections are idle</li>
+ * </ul>
+ * The stand-in endpoint runs in its own jvm, so its connection state is not counted as client heap. It sends the pings
+ * and measures the time until the pong arrives, which includes the time the read thread of the client needs to wake up.
+ * <p>
+ * Every client has its own read thread and 2 file descriptors are used per connection on the loopback address, so the
+ * larger scales need a raised open file limit (ulimit -n) and max user processes (ulimit -u). A smaller thread stack
+ * (-Xss256k) lowers the memory the threads reserve. A scale that can't be opened is reported as failed and the larger
+ * scales are skipped.
+ * <p>
+ * Options are passed as --name=value:
+ * <ul>
+ *     <li>scales: The amounts of connections to measure (default 1000,10000,50000)</li>
+ *     <li>lean: Whether the clients lease their buffers while idle, see {@link ClientOptions.Builder#leaseBuffers(boolean)} (default true)</li>
+ *     <li>pingInterval: The milliseconds between pings to every connection (default 1000)</li>
+ *     <li>duration: The amount of seconds to keep the connections idle per scale (default 10)</li>
+ *     <li>handshakeTimeout: The amount of seconds to wait for all handshakes of a scale (default 60)</li>
+ * </ul>
+ */
+public class ConnectionDensityBenchmark {
+
+    private final int[] scales;
+    private final boolean lean;
+    private final long pingIntervalMillis;
+    private final long durationNanos;
+    private final long handshakeTimeoutNanos;
+
+    private ConnectionDensityBenchmark(Map<String, String> options) {
+        String[] scaleList = options.getOrDefault("scales", "1000,10000,50000").split(",");
+        scales = new int[scaleList.length];
+        for (int i = 0; i < scaleList.length; i++) scales[i] = Integer.parseInt(scaleList[i].trim());
+
+        lean = Boolean.parseBoolean(options.getOrDefault("lean", "true"));
+        pingIntervalMillis = Long.parseLong(options.getOrDefault("pingInterval", "1000"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        handshakeTimeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("handshakeTimeout", "60")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options should be passed as --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        if (options.containsKey("endpoint")) {
+            Endpoint.run();
+        } else {
+            new ConnectionDensityBenchmark(options).run();
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        System.out.printf("Idle connections, %s buffers, ping every %d ms for %d s%n", lean ? "leased" : "own",
+                          pingIntervalMillis, TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        System.out.println();
+        System.out.printf("%-11s %14s %9s %14s %11s %11s %11s%n", "connections", "heap/conn (B)", "threads",
+                          "handshakes/s", "rtt p50 us", "rtt p99 us", "rtt max us");
+
+        for (int scale : scales) {
+            if (!measure(scale)) break;
+        }
+    }
+
+    /**
+     * @return false if the scale could not be opened, then the larger scales are skipped
+     */
+    private boolean measure(int scale) throws IOException, InterruptedException {
+        ClientOptions options = ClientOptions.builder().leaseBuffers(lean).build();
+        List<Client> clients = new ArrayList<>(scale);
+
+        try (EndpointProcess endpoint = EndpointProcess.start()) {
+            try {
+                return measure(endpoint, options, clients, scale);
+            } finally {
+                //Clients that are still in the handshake are closed when the endpoint exits
+                for (Client client : clients) {
+                    if (client.getState() == State.OPEN) client.stop(Constants.StatusCode.GOING_AWAY, true);
+                }
+            }
+        }
+    }
+
+    private boolean measure(EndpointProcess endpoint, ClientOptions options, List<Client> clients, int scale)
+            throws IOException, InterruptedException {
+        long baselineHeap = usedHeapAfterGc();
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long start = System.nanoTime();
+        String failure = open(endpoint.uri, options, clients, scale);
+        long handshakeNanos = System.nanoTime() - start;
+
+        if (failure != null) {
+            System.out.printf("%-11d failed after %d connections: %s%n", scale, clients.size(), failure);
+            return false;
+        }
+
+        long heapPerConnection = (usedHeapAfterGc() - baselineHeap) / scale;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads;
+
+        //The endpoint keeps measuring between commands, only the pings of this scale are reported
+        endpoint.command("reset");
+        long end = System.nanoTime() + durationNanos;
+        while (System.nanoTime() < end) {
+            endpoint.command("ping");
+            Thread.sleep(pingIntervalMillis);
+        }
+
+        //Answering the pings can start threads too
+        threads = Math.max(threads, ManagementFactory.getThreadMXBean().getPeakThreadCount() - baselineThreads);
+
+        String[] rtt = endpoint.command("stats").split(" ");
+        int open = 0;
+        for (Client client : clients) {
+            if (client.getState() == State.OPEN) open++;
+        }
+
+        System.out.printf("%-11d %14d %9d %14.0f %11s %11s %11s%n", scale, heapPerConnection, threads,
+                          scale / (handshakeNanos / 1e9), rtt[1], rtt[2], rtt[3]);
+        if (open < scale || Long.parseLong(rtt[0]) == 0) {
+            System.out.printf("%-11s %d connections closed while idle, %s pongs received%n", "", scale - open, rtt[0]);
+        }
+        return true;
+    }
+
+    /**
+     * Open the clients one after another and wait for all handshakes.
+     *
+     * @return Why the connections could not be opened, or null if they all are open
+     */
+    private String open(URI uri, ClientOptions options, List<Client> clients, int scale) throws InterruptedException {
+        try {
+            for (int i = 0; i < scale; i++) {
+                Client client = new Client(uri, options);
+                client.start();
+                clients.add(client);
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            //Running out of file descriptors or threads is what limits the scale
+            return e.toString();
+        }
+
+        long deadline = System.nanoTime() + handshakeTimeoutNanos;
+        for (Client client : clients) {
+            while (client.getState() == State.HANDSHAKE && System.nanoTime() < deadline) Thread.sleep(1);
+
+            if (client.getState() != State.OPEN) return "handshake did not complete, state is " + client.getState();
+        }
+
+        return null;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        //A single gc does not always collect everything, repeat until the used heap stops going down
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+
+            long now = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            if (now >= used) break;
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * The stand-in endpoint in a separate jvm, controlled with one command per line on its standard input.
+     */
+    private static final class EndpointProcess implements AutoCloseable {
+
+        final Process process;
+        final BufferedReader output;
+        final PrintStream input;
+        final URI uri;
+
+        private EndpointProcess(Process process) throws IOException {
+            this.process = process;
+            this.output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            this.input = new PrintStream(process.getOutputStream(), true, StandardCharsets.UTF_8);
+
+            String line = output.readLine();
+            if (line == null) throw new IOException("The endpoint exited before it was started");
+            this.uri = URI.create(line);
+        }
+
+        static EndpointProcess start() throws IOException {
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                 ConnectionDensityBenchmark.class.getName(), "--endpoint=true")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            return new EndpointProcess(process);
+        }
+
+        String command(String command) throws IOException {
+            input.println(command);
+
+            String reply = output.readLine();
+            if (reply == null) throw new IOException("The endpoint exited while running " + command);
+            return reply;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            input.close();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Runs in the endpoint jvm: accepts the clients, pings them on command and measures the round trips.
+     */
+    private static final class Endpoint {
+
+        static void run() throws IOException {
+            Set<StandInServer.Connection> connections = ConcurrentHashMap.newKeySet();
+            AtomicReference<LatencyHistogram> rtt = new AtomicReference<>(new LatencyHistogram());
+
+            StandInServer server = StandInServer.start(new StandInServer.Listener() {
+                @Override
+                public void onOpen(StandInServer.Connection connection) {
+                    connections.add(connection);
+                }
+
+                @Override
+                public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                    if (opcode == 0xA && payload.remaining() == Long.BYTES) {
+                        rtt.get().record(System.nanoTime() - payload.getLong());
+                    } else {
+                        StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+                    }
+                }
+
+                @Override
+                public void onClose(StandInServer.Connection connection) {
+                    connections.remove(connection);
+                }
+            });
+
+            System.out.println(server.uri("/density"));
+
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String command;
+            while ((command = commands.readLine()) != null) {
+                switch (command) {
+                    case "ping":
+                        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+                        for (StandInServer.Connection connection : connections) {
+                            payload.clear();
+                            payload.putLong(System.nanoTime()).flip();
+                            connection.sendFrame(true, 0x9, payload);
+                        }
+                        System.out.println("ok");
+                        break;
+                    case "reset":
+                        rtt.set(new LatencyHistogram());
+                        System.out.println("ok");
+                        break;
+                    case "stats":
+                        LatencyHistogram histogram = rtt.get();
+                        System.out.printf("%d %.1f %.1f %.1f%n", histogram.getCount(),
+                                          histogram.getValueAtPercentile(50) / 1000.0,
+                                          histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0);
+                        break;
+                    default:
+                        System.out.println("unknown command " + command);
+                        break;
+                }
+            }
+
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.suppergerrie2.websocket.benchmark;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.DispatchMetrics;
+import com.suppergerrie2.websocket.client.MessageDispatcher;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.testserver.PipePeer;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a number of {@link Client}s at a fixed message rate and reports throughput and round trip latency.
+ * <p>
+ * Unless a uri is given a {@link StandInServer} is started on the loopback address, or on a unix domain socket. In the echo mode every client sends
+ * messages that are echoed back, in the produce mode the server pushes messages to the clients.
+ * <p>
+ * Latency is measured from the time a message was scheduled to be sent, not from the time it actually was sent. A
+ * sender that stalls will therefore still see the latency of all messages it should have sent in the meantime, which
+ * corrects for coordinated omission. The uncorrected latency is reported next to it.
+ * <p>
+ * Options are passed as --name=value:
+ * <ul>
+ *     <li>connections: The amount of clients (default 4)</li>
+ *     <li>rate: The total amount of messages per second across all clients (default 10000)</li>
+ *     <li>sizes: The message size mix as size:weight pairs (default 64:80,1024:15,65536:5)</li>
+ *     <li>duration: The amount of seconds to measure (default 10)</li>
+ *     <li>warmup: The amount of seconds to run before measuring (default 2)</li>
+ *     <li>mode: echo or produce (default echo)</li>
+ *     <li>dispatch: inline, ordered or parallel, how the clients dispatch messages to the handler (default inline)</li>
+ *     <li>uri: An external echo endpoint to use instead of the stand-in server</li>
+ *     <li>transport: tcp, unix or pipe (default tcp). unix runs the stand-in server on a unix domain socket, to compare
+ *     against the loopback address with the same settings. pipe connects every client to an in-memory echo peer to
+ *     measure without the kernel</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    //Every payload starts with the intended send time, the actual send time and whether it should be measured
+    private static final int HEADER_SIZE = 17;
+
+    private final int connections;
+    private final int rate;
+    private final int[] sizes;
+    private final int[] weights;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final boolean produce;
+    private final String dispatch;
+    private final URI externalUri;
+    private final boolean pipe;
+    private final boolean unix;
+
+    private final LatencyHistogram corrected = new LatencyHistogram();
+    private final LatencyHistogram uncorrected = new LatencyHistogram();
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder receivedMessages = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+
+    private LoadGenerator(Map<String, String> options) {
+        connections = Integer.parseInt(options.getOrDefault("connections", "4"));
+        rate = Integer.parseInt(options.getOrDefault("rate", "10000"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "2")));
+        produce = options.getOrDefault("mode", "echo").equals("produce");
+        dispatch = options.getOrDefault("dispatch", "inline");
+        externalUri = options.containsKey("uri") ? URI.create(options.get("uri")) : null;
+        pipe = options.getOrDefault("transport", "tcp").equals("pipe");
+        unix = options.getOrDefault("transport", "tcp").equals("unix");
+
+        String[] mix = options.getOrDefault("sizes", "64:80,1024:15,65536:5").split(",");
+        sizes = new int[mix.length];
+        weights = new int[mix.length];
+        for (int i = 0; i < mix.length; i++) {
+            String[] sizeWeight = mix[i].split(":");
+            sizes[i] = Math.max(HEADER_SIZE, Integer.parseInt(sizeWeight[0]));
+            weights[i] = sizeWeight.length > 1 ? Integer.parseInt(sizeWeight[1]) : 1;
+        }
+
+        if (produce && externalUri != null) {
+            throw new IllegalArgumentException("The produce mode needs the stand-in server, it can't be used with a uri");
+        }
+
+        if (pipe && (produce || externalUri != null)) {
+            throw new IllegalArgumentException("The pipe transport only supports the echo mode without a uri");
+        }
+
+        if (unix && externalUri != null) {
+            throw new IllegalArgumentException("The unix transport starts its own server, pass a ws+unix uri with the tcp transport instead");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options should be passed as --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        List<StandInServer.Connection> serverConnections = new CopyOnWriteArrayList<>();
+        StandInServer server = null;
+        Path socketDirectory = null;
+        URI uri = externalUri;
+
+        if (pipe) {
+            uri = URI.create("ws://pipe/load");
+        } else if (uri == null) {
+            StandInServer.Listener listener = produce ? new StandInServer.Listener() {
+                @Override
+                public void onOpen(StandInServer.Connection connection) {
+                    serverConnections.add(connection);
+                }
+
+                @Override
+                public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                    StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+                }
+            } : StandInServer.ECHO;
+
+            if (unix) {
+                socketDirectory = Files.createTempDirectory("load-generator");
+                server = StandInServer.startUnix(listener, socketDirectory.resolve("load.sock"));
+            } else {
+                server = StandInServer.start(listener);
+            }
+            uri = server.uri("/load");
+        }
+
+        ExecutorService handlerPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        System.out.printf("Connecting %d clients to %s, dispatching %s%n", connections, uri, dispatch);
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Client client;
+            if (pipe) {
+                MemoryPipe memoryPipe = new MemoryPipe(256 * 1024);
+                PipePeer.echo(memoryPipe.server());
+                client = new Client(uri, createDispatcher(handlerPool), memoryPipe.client());
+            } else {
+                client = new Client(uri, createDispatcher(handlerPool));
+            }
+            client.registerMessageHandler("", message -> onMessage(message.getPayloadData()));
+            client.start();
+            clients.add(client);
+        }
+
+        for (Client client : clients) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (client.getState() == State.HANDSHAKE && System.nanoTime() < deadline) Thread.sleep(1);
+
+            if (client.getState() != State.OPEN) {
+                throw new IOException("Client did not connect, state is " + client.getState());
+            }
+        }
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+
+        System.out.printf("Sending %d msg/s for %d s (+%d s warmup), sizes %s%n", rate,
+                          TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                          describeSizes());
+
+        List<Thread> senders = new ArrayList<>();
+        if (produce) {
+            while (serverConnections.size() < connections) Thread.sleep(1);
+
+            senders.add(new Thread(() -> produce(serverConnections, start, measureStart, end), "load-producer"));
+        } else {
+            for (int i = 0; i < connections; i++) {
+                Client client = clients.get(i);
+                long seed = i;
+                senders.add(new Thread(() -> send(client, seed, start, measureStart, end), "load-sender-" + i));
+            }
+        }
+
+        senders.forEach(Thread::start);
+        for (Thread sender : senders) sender.join();
+
+        //Give the last messages some time to arrive
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (receivedMessages.sum() < sentMessages.sum() && System.nanoTime() < drainDeadline) Thread.sleep(10);
+
+        report(clients);
+
+        for (Client client : clients) {
+            if (client.getState() == State.OPEN) client.stop();
+        }
+        handlerPool.shutdown();
+        if (server != null) server.close();
+        if (socketDirectory != null) Files.delete(socketDirectory);
+    }
+
+    private MessageDispatcher createDispatcher(ExecutorService handlerPool) {
+        switch (dispatch) {
+            case "inline":
+                return MessageDispatcher.inline();
+            case "ordered":
+                return MessageDispatcher.ordered(handlerPool);
+            case "parallel":
+                return MessageDispatcher.parallel(handlerPool);
+            default:
+                throw new IllegalArgumentException("Unknown dispatch " + dispatch);
+        }
+    }
+
+    private void send(Client client, long seed, long start, long measureStart, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) * connections / rate;
+        Random random = new Random(seed);
+        byte[][] payloads = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) payloads[i] = new byte[sizes[i]];
+
+        for (long intended = start; intended < end; intended += interval) {
+            waitUntil(intended);
+
+            byte[] payload = payloads[pickSize(random)];
+            ByteBuffer header = ByteBuffer.wrap(payload);
+            header.putLong(intended).putLong(System.nanoTime()).put((byte) (intended >= measureStart ? 1 : 0));
+
+            if (client.getState() != State.OPEN) {
+                System.err.println("Client closed while sending");
+                return;
+            }
+
+            client.send(payload);
+            sentMessages.increment();
+        }
+    }
+
+    private void produce(List<StandInServer.Connection> connections, long start, long measureStart, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        Random random = new Random(0);
+        int next = 0;
+
+        for (long intended = start; intended < end; intended += interval) {
+            waitUntil(intended);
+
+            ByteBuffer payload = ByteBuffer.allocate(sizes[pickSize(random)]);
+            payload.putLong(intended).putLong(System.nanoTime()).put((byte) (intended >= measureStart ? 1 : 0));
+            payload.clear();
+
+            connections.get(next++ % connections.size()).sendFrame(true, Fragment.OpCode.BINARY_FRAME.bits, payload);
+            sentMessages.increment();
+        }
+    }
+
+    private void onMessage(byte[] payload) {
+        long now = System.nanoTime();
+        receivedMessages.increment();
+
+        ByteBuffer header = ByteBuffer.wrap(payload);
+        long intended = header.getLong();
+        long sent = header.getLong();
+
+        if (header.get() == 1) {
+            receivedBytes.add(payload.length);
+            corrected.record(now - intended);
+            uncorrected.record(now - sent);
+        }
+    }
+
+    private int pickSize(Random random) {
+        int total = 0;
+        for (int weight : weights) total += weight;
+
+        int pick = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0) return i;
+        }
+        return weights.length - 1;
+    }
+
+    private static void waitUntil(long time) {
+        long remaining;
+        while ((remaining = time - System.nanoTime()) > 0) {
+            //Parking is not precise enough for short waits, so spin for the last bit
+            if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+    }
+
+    private String describeSizes() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(sizes[i]).append(" B x").append(weights[i]);
+        }
+        return builder.toString();
+    }
+
+    private void report(List<Client> clients) {
+        double seconds = durationNanos / 1e9;
+
+        System.out.println();
+        System.out.printf("sent %d, received %d messages%n", sentMessages.sum(), receivedMessages.sum());
+        System.out.printf("throughput: %.1f msg/s, %.2f MB/s%n", corrected.getCount() / seconds,
+                          receivedBytes.sum() / seconds / (1024 * 1024));
+        System.out.println();
+        System.out.printf("%-14s %10s %10s %10s %10s %10s%n", "latency (us)", "mean", "p50", "p99", "p99.9", "max");
+        printLatency("corrected", corrected);
+        printLatency("uncorrected", uncorrected);
+
+        double meanDelay = 0;
+        long maxDelay = 0;
+        for (Client client : clients) {
+            DispatchMetrics metrics = client.getDispatchMetrics();
+            meanDelay += metrics.getMeanDelayNanos() / clients.size();
+            maxDelay = Math.max(maxDelay, metrics.getMaxDelayNanos());
+        }
+        System.out.printf("%-14s %10.1f %10s %10s %10s %10.1f%n", "dispatch delay", meanDelay / 1000, "", "", "",
+                          maxDelay / 1000.0);
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-14s %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.getMean() / 1000,
+                          histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                          histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,229 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.common.messages.FrameView;
+import com.suppergerrie2.websocket.testserver.PipePeer;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+import com.suppergerrie2.websocket.transport.Transport;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+/**
+ * Pushes a steady stream of messages through the decoding, encoding, sending and receiving paths and fails when a path
+ * allocates more bytes per message than its budget. The jvm counts the allocated bytes per thread, so the measured
+ * thread has to do all the work of the path. Every path is warmed up first, so the jit has compiled it.
+ * <p>
+ * Decoding should not allocate at all, encoding and sending only for the masking keys. Receiving hands every message
+ * to the handlers as a new {@link com.suppergerrie2.websocket.common.messages.Message} that owns its payload, so it has
+ * a budget on top of the payload array.
+ */
+@Tag("allocation")
+@SuppressWarnings("BusyWait")
+class AllocationTest {
+
+    private static final int WARM_UP_MESSAGES = 50_000;
+    private static final int MEASURED_MESSAGES = 100_000;
+
+    //Less than a byte per message, so nothing is allocated for every message
+    private static final double NO_ALLOCATION = 1;
+    //Every frame takes a masking key from a DRBG, which allocates while it generates a batch. Measured at 3.9 bytes a key
+    private static final double MASK_BUDGET = 5;
+    //The fragment, the message with its list of fragments and the task passed to the dispatcher. Measured at 136 bytes.
+    private static final double RECEIVE_BUDGET = 160;
+
+    private static final byte[] BINARY = new byte[100];
+    private static final String ASCII = "Hello world, this is a text message";
+    private static final String UNICODE = "Hello w\u00f6rld \u4e2d \uD83D\uDE00";
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    static void checkSupport() {
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                               "This jvm can't count allocated bytes");
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(), "This jvm can't count allocated bytes");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void decodingDoesNotAllocate() throws Exception {
+        FrameView view = new FrameView();
+        ByteBuffer frames = ByteBuffer.allocate(1024);
+        frames.put(frame(0x82, BINARY)).put(frame(0x81, ASCII.getBytes(StandardCharsets.UTF_8))).flip();
+
+        assertBudget("decoding", NO_ALLOCATION, () -> {
+            frames.position(0);
+            while (view.wrap(frames)) {
+                view.unmask();
+                //Unmask again, so the next round decodes the same masked payload
+                view.unmask();
+                frames.position(view.payloadOffset() + (int) view.payloadLength());
+            }
+        });
+    }
+
+    @Test
+    void encodingDoesNotAllocate() throws Exception {
+        FrameWriter writer = new FrameWriter(new DiscardingTransport(), Client.STREAM_FRAME_SIZE + FrameWriter.MAX_HEADER_SIZE);
+        ByteBuffer direct = ByteBuffer.allocateDirect(BINARY.length);
+        int asciiLength = (int) FrameWriter.encodedLength(ASCII);
+        int unicodeLength = (int) FrameWriter.encodedLength(UNICODE);
+
+        assertBudget("encoding binary", NO_ALLOCATION + MASK_BUDGET,
+                     () -> writer.writeFrame(true, Fragment.OpCode.BINARY_FRAME, BINARY, 0, BINARY.length));
+        assertBudget("encoding direct binary", NO_ALLOCATION + MASK_BUDGET, () -> {
+            direct.clear();
+            writer.writeFrame(true, Fragment.OpCode.BINARY_FRAME, direct, direct.remaining());
+        });
+        assertBudget("encoding text", NO_ALLOCATION + MASK_BUDGET, () -> writer.writeTextFrame(ASCII, asciiLength));
+        assertBudget("encoding non ascii text", NO_ALLOCATION + MASK_BUDGET, () -> writer.writeTextFrame(UNICODE, unicodeLength));
+    }
+
+    @Test
+    void sendingAndReceivingStayWithinBudget() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(256 * 1024);
+        PipePeer.echo(pipe.server());
+
+        Client client = new Client(URI.create("ws://pipe/"), MessageDispatcher.inline(), pipe.client());
+        AtomicReference<Thread> readThread = new AtomicReference<>();
+        AtomicInteger received = new AtomicInteger();
+        client.registerMessageHandler("", message -> {
+            readThread.set(Thread.currentThread());
+            received.incrementAndGet();
+        });
+        client.start();
+
+        awaitOpen(client);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(BINARY.length);
+        ByteBuffer heap = ByteBuffer.allocate(BINARY.length);
+        int textLength = ASCII.getBytes(StandardCharsets.UTF_8).length;
+
+        try {
+            assertSendBudget(client, received, readThread, "binary", BINARY.length, () -> client.send(BINARY));
+            assertSendBudget(client, received, readThread, "heap buffer", BINARY.length, () -> {
+                heap.clear();
+                client.send(heap);
+            });
+            assertSendBudget(client, received, readThread, "direct buffer", BINARY.length, () -> {
+                direct.clear();
+                client.send(direct);
+            });
+            assertSendBudget(client, received, readThread, "text", textLength, () -> client.send(ASCII));
+        } finally {
+            client.stop();
+        }
+    }
+
+    /**
+     * Send messages that are echoed back, and check the sending thread and the read thread of the client. The read
+     * thread decodes the echoed message and passes it to the handler inline.
+     */
+    private static void assertSendBudget(Client client, AtomicInteger received, AtomicReference<Thread> readThread,
+                                         String name, int payloadLength, ThrowingRunnable send) throws Exception {
+        for (int i = 0; i < WARM_UP_MESSAGES; i++) send.run();
+        awaitReceived(received, WARM_UP_MESSAGES);
+        received.set(0);
+
+        long readId = readThread.get().getId();
+        long readBefore = threads.getThreadAllocatedBytes(readId);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_MESSAGES; i++) send.run();
+        long after = threads.getCurrentThreadAllocatedBytes();
+
+        awaitReceived(received, MEASURED_MESSAGES);
+        long readAfter = threads.getThreadAllocatedBytes(readId);
+        received.set(0);
+        Assertions.assertEquals(State.OPEN, client.getState());
+
+        check("sending " + name, NO_ALLOCATION + MASK_BUDGET, (double) (after - before) / MEASURED_MESSAGES);
+        //The payload is copied into an array of its own, with a 16 byte header and padded to 8 bytes
+        long payloadArray = (16 + payloadLength + 7) & ~7;
+        check("receiving " + name, payloadArray + RECEIVE_BUDGET, (double) (readAfter - readBefore) / MEASURED_MESSAGES);
+    }
+
+    private static void awaitReceived(AtomicInteger received, int messages) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received.get() < messages && System.nanoTime() < deadline) Thread.sleep(1);
+        Assertions.assertEquals(messages, received.get(), "Not all messages were echoed");
+    }
+
+    private static void assertBudget(String name, double budget, ThrowingRunnable message) throws Exception {
+        for (int i = 0; i < WARM_UP_MESSAGES; i++) message.run();
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_MESSAGES; i++) message.run();
+        long after = threads.getCurrentThreadAllocatedBytes();
+
+        check(name, budget, (double) (after - before) / MEASURED_MESSAGES);
+    }
+
+    private static void check(String name, double budget, double bytesPerMessage) {
+        System.out.printf("%s: %.2f bytes per message, budget %.0f%n", name, bytesPerMessage, budget);
+        Assertions.assertTrue(bytesPerMessage < budget,
+                              String.format("%s allocated %.2f bytes per message, the budget is %.0f", name, bytesPerMessage, budget));
+    }
+
+    /**
+     * @return A masked frame with the given first byte and payload
+     */
+    private static ByteBuffer frame(int first, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + 4 + payload.length);
+        frame.put((byte) first).put((byte) (0x80 | payload.length)).putInt(0x12345678);
+        for (int i = 0; i < payload.length; i++) frame.put((byte) (payload[i] ^ frame.get(2 + i % 4)));
+        return frame.flip();
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    /**
+     * Drops everything written to it, so only the allocations of the writer are counted.
+     */
+    private static final class DiscardingTransport implements Transport {
+        @Override
+        public void connect(URI uri) {
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            return -1;
+        }
+
+        @Override
+        public void write(ByteBuffer source) {
+            source.position(source.limit());
+        }
+
+        @Override
+        public void write(ByteBuffer[] sources) {
+            for (ByteBuffer source : sources) write(source);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.testserver.Clients;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.ReceivedFrame;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.joinPayload;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.receiveMessage;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.recorder;
+
+@SuppressWarnings("BusyWait")
+class ClientOptionsTest {
+
+    @Test
+    void defaults() {
+        ClientOptions options = ClientOptions.defaults();
+        Assertions.assertTrue(options.isTcpNoDelay());
+        Assertions.assertEquals(0, options.getSendBufferSize());
+        Assertions.assertEquals(0, options.getConnectTimeoutMillis());
+        Assertions.assertEquals(ClientOptions.DEFAULT_READ_BUFFER_SIZE, options.getReadBufferSize());
+        Assertions.assertEquals(Client.STREAM_FRAME_SIZE, options.getMaxFragmentPayloadSize());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClientOptions.builder().readBufferSize(100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClientOptions.builder().maxFragmentPayloadSize(0));
+
+        Assertions.assertFalse(options.isAdaptiveFragmentSize());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClientOptions.builder().adaptiveFragmentSize(0, 10));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ClientOptions.builder().adaptiveFragmentSize(10, 5));
+    }
+
+    @Test
+    void messagesAreSplitAtTheMaxFragmentSize() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = Clients.start(new Client(server.uri("/"), ClientOptions.builder().maxFragmentPayloadSize(4).build()));
+
+            client.send(new byte[10]);
+            assertFrameSizes(receiveMessage(frames), 0x2, 4, 4, 2);
+
+            client.send("Hello world");
+            assertFrameSizes(receiveMessage(frames), 0x1, 4, 4, 3);
+
+            //Small text is still sent as a single frame
+            client.send("Hey");
+            assertFrameSizes(receiveMessage(frames), 0x1, 3);
+
+            //Frames of text end at the last whole character that fits, a surrogate pair is never split
+            client.send("a\u00e9\u00e9\uD83D\uDE00b");
+            List<ReceivedFrame> message = receiveMessage(frames);
+            assertFrameSizes(message, 0x1, 3, 2, 4, 1);
+            Assertions.assertEquals("a\u00e9\u00e9\uD83D\uDE00b", new String(joinPayload(0x1, message), StandardCharsets.UTF_8));
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void smallReadBuffer() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"), ClientOptions.builder().readBufferSize(1024).build());
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getText()));
+            Clients.start(client);
+
+            char[] text = new char[100_000];
+            Arrays.fill(text, 'a');
+            client.send(new String(text));
+            client.send("Hello");
+
+            Assertions.assertEquals(new String(text), received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("Hello", received.poll(5, TimeUnit.SECONDS));
+            client.stop();
+        }
+    }
+
+    private static void assertFrameSizes(List<ReceivedFrame> message, int opcode, int... sizes) {
+        Assertions.assertEquals(sizes.length, message.size());
+        Assertions.assertEquals(opcode, message.get(0).opcode);
+
+        for (int i = 0; i < sizes.length; i++) {
+            Assertions.assertEquals(sizes[i], message.get(i).payload.length);
+            if (i > 0) Assertions.assertEquals(0x0, message.get(i).opcode);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("BusyWait")
+class ClientPoolTest {
+
+    /**
+     * Echoes every frame and remembers the text of the messages per connection.
+     */
+    private static final class RecordingServer implements StandInServer.Listener {
+        final Map<StandInServer.Connection, List<String>> received = new ConcurrentHashMap<>();
+
+        @Override
+        public void onOpen(StandInServer.Connection connection) {
+            received.put(connection, new CopyOnWriteArrayList<>());
+        }
+
+        @Override
+        public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+            if (opcode == 0x1) received.get(connection).add(StandardCharsets.UTF_8.decode(payload.duplicate()).toString());
+            StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+        }
+    }
+
+    @Test
+    void spreadsSendsAndMergesReplies() throws Exception {
+        for (ClientPool.Balancing balancing : ClientPool.Balancing.values()) {
+            RecordingServer listener = new RecordingServer();
+
+            try (StandInServer server = StandInServer.start(listener);
+                 ClientPool pool = new ClientPool(server.uri("/"), 3, ClientOptions.defaults(), balancing)) {
+                BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+                pool.registerMessageHandler("", message -> replies.add(message.getText()));
+                pool.start();
+                Assertions.assertTrue(pool.awaitOpen(5, TimeUnit.SECONDS));
+
+                for (int i = 0; i < 30; i++) pool.send("message " + i);
+
+                List<String> merged = new ArrayList<>();
+                for (int i = 0; i < 30; i++) merged.add(replies.poll(5, TimeUnit.SECONDS));
+                for (int i = 0; i < 30; i++) Assertions.assertTrue(merged.contains("message " + i), balancing.name());
+
+                Assertions.assertEquals(3, listener.received.size());
+                for (List<String> messages : listener.received.values()) {
+                    Assertions.assertEquals(10, messages.size(), balancing.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    void keysStayOnOneConnection() throws Exception {
+        RecordingServer listener = new RecordingServer();
+
+        try (StandInServer server = StandInServer.start(listener);
+             ClientPool pool = new ClientPool(server.uri("/"), 4)) {
+            pool.start();
+            Assertions.assertTrue(pool.awaitOpen(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 20; i++) {
+                for (String key : new String[]{"a", "b", "c"}) pool.send(key, key + i);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (total(listener) < 60 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(60, total(listener));
+
+            //Every key is received by one connection, in the order it was sent in
+            for (String key : new String[]{"a", "b", "c"}) {
+                int connections = 0;
+                for (List<String> messages : listener.received.values()) {
+                    List<String> ofKey = new ArrayList<>();
+                    for (String message : messages) if (message.startsWith(key)) ofKey.add(message);
+                    if (ofKey.isEmpty()) continue;
+
+                    connections++;
+                    for (int i = 0; i < 20; i++) Assertions.assertEquals(key + i, ofKey.get(i));
+                }
+                Assertions.assertEquals(1, connections);
+            }
+        }
+    }
+
+    @Test
+    void replacesClosedConnections() throws Exception {
+        RecordingServer listener = new RecordingServer();
+
+        try (StandInServer server = StandInServer.start(listener);
+             ClientPool pool = new ClientPool(server.uri("/"), 3)) {
+            pool.start();
+            Assertions.assertTrue(pool.awaitOpen(5, TimeUnit.SECONDS));
+
+            //Drop a connection without a close handshake
+            listener.received.keySet().iterator().next().close();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getOpenConnections() == 3 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(2, pool.getOpenConnections());
+
+            //Sends keep working on the other connections while it is replaced
+            pool.send("while replacing");
+
+            Assertions.assertTrue(pool.awaitOpen(5, TimeUnit.SECONDS));
+            //The server reports the connection after writing the handshake, so the client can see it open first
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (listener.received.size() < 4 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(4, listener.received.size());
+            Assertions.assertEquals(3, server.getOpenConnections());
+        }
+
+        Assertions.assertEquals(1, total(listener));
+    }
+
+    @Test
+    void connectionsGetTheirOwnOrderedDispatcher() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ClientOptions shared = ClientOptions.builder().dispatcher(MessageDispatcher.ordered(executor)).build();
+        ClientOptions perClient = ClientOptions.builder().dispatcherPerClient(() -> MessageDispatcher.ordered(executor)).build();
+
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Assertions.assertThrows(IllegalArgumentException.class,
+                                    () -> new ClientPool(server.uri("/"), 2, shared, ClientPool.Balancing.ROUND_ROBIN));
+
+            try (ClientPool pool = new ClientPool(server.uri("/"), 2, perClient, ClientPool.Balancing.ROUND_ROBIN)) {
+                CountDownLatch release = new CountDownLatch(1);
+                BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+                pool.registerMessageHandler("", message -> {
+                    try {
+                        if (message.getText().equals("blocked")) release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.add(message.getText());
+                });
+                pool.start();
+                Assertions.assertTrue(pool.awaitOpen(5, TimeUnit.SECONDS));
+
+                //The keys go to different connections, the handler that waits only holds up its own connection
+                pool.send(0, "blocked");
+                pool.send(1, "free");
+                Assertions.assertEquals("free", handled.poll(5, TimeUnit.SECONDS));
+
+                release.countDown();
+                Assertions.assertEquals("blocked", handled.poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int total(RecordingServer listener) {
+        int total = 0;
+        for (List<String> messages : listener.received.values()) total += messages.size();
+        return total;
+    }
+}
@@ -0,0 +1,93 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class ClientStateTest {
+
+    @Test
+    void transitions() {
+        Assertions.assertTrue(State.CLOSED.canTransitionTo(State.HANDSHAKE));
+        Assertions.assertTrue(State.HANDSHAKE.canTransitionTo(State.OPEN));
+        Assertions.assertTrue(State.OPEN.canTransitionTo(State.CLOSING));
+        Assertions.assertTrue(State.CLOSING.canTransitionTo(State.CLOSED));
+        Assertions.assertTrue(State.OPEN.canTransitionTo(State.CLOSED));
+
+        Assertions.assertFalse(State.CLOSED.canTransitionTo(State.CLOSED));
+        Assertions.assertFalse(State.CLOSED.canTransitionTo(State.OPEN));
+        Assertions.assertFalse(State.CLOSING.canTransitionTo(State.OPEN));
+        Assertions.assertFalse(State.OPEN.canTransitionTo(State.HANDSHAKE));
+    }
+
+    @Test
+    void closeHandlersRunOnceWhenStoppedConcurrently() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"));
+            AtomicInteger closed = new AtomicInteger();
+            client.registerCloseHandler(c -> closed.incrementAndGet());
+            client.start();
+            awaitOpen(client);
+
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> stoppers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        go.await();
+                        client.stop(1000, true);
+                    } catch (InterruptedException | IllegalStateException ignored) {
+                        //Losing the race to an other thread is fine
+                    }
+                });
+                thread.start();
+                stoppers.add(thread);
+            }
+
+            go.countDown();
+            for (Thread thread : stoppers) thread.join();
+
+            Assertions.assertEquals(State.CLOSED, client.getState());
+            Assertions.assertEquals(1, closed.get());
+        }
+    }
+
+    @Test
+    void registerHandlersWhileReceiving() throws Exception {
+        int messages = 2000;
+
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"));
+            CountDownLatch received = new CountDownLatch(messages);
+            client.registerMessageHandler("", message -> received.countDown());
+            client.start();
+            awaitOpen(client);
+
+            Thread sender = new Thread(() -> {
+                for (int i = 0; i < messages; i++) client.send(new byte[]{(byte) i});
+            });
+            sender.start();
+
+            //Registering while the read thread is dispatching used to throw ConcurrentModificationExceptions
+            AtomicInteger extraCalls = new AtomicInteger();
+            for (int i = 0; i < 100; i++) {
+                client.registerMessageHandler("", message -> extraCalls.incrementAndGet());
+                client.registerMessageHandler("other" + i, message -> Assertions.fail("Wrong protocol"));
+            }
+
+            sender.join();
+            Assertions.assertTrue(received.await(10, TimeUnit.SECONDS), "Not all messages were received");
+            client.stop();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.ProtocolErrorException;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.startClient;
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class CodecTest {
+
+    private static final Codec<Point> POINTS = new Codec<Point>() {
+        @Override
+        public Fragment.OpCode messageType() {
+            return Fragment.OpCode.BINARY_FRAME;
+        }
+
+        @Override
+        public Point decode(ByteBuffer payload) throws ProtocolErrorException {
+            if (payload.remaining() != 8) throw new ProtocolErrorException("A point is 8 bytes");
+            return new Point(payload.getInt(), payload.getInt());
+        }
+
+        @Override
+        public void encode(Point value, ByteBuffer destination) {
+            destination.putInt(value.x).putInt(value.y);
+        }
+    };
+
+    @Test
+    void negotiatedProtocolSelectsTheCodec() throws Exception {
+        BlockingQueue<String> offered = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(new StandInServer.Listener() {
+            @Override
+            public void onOpen(StandInServer.Connection connection) {
+                offered.add(connection.getHeader("sec-websocket-protocol"));
+            }
+
+            @Override
+            public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+            }
+        })) {
+            server.setProtocol("points");
+
+            BlockingQueue<Point> received = new LinkedBlockingQueue<>();
+            Client client = new Client(server.uri("/"));
+            client.registerMessageHandler("points", POINTS, received::add);
+            client.registerMessageHandler("", message -> Assertions.fail("No protocol handler called"));
+            client.registerMessageHandler("other", Codec.text(), text -> Assertions.fail("Other protocol handler called"));
+            client.start();
+
+            awaitOpen(client);
+
+            String protocols = offered.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(protocols);
+            String[] protocolList = protocols.split(",");
+            Arrays.sort(protocolList);
+            Assertions.assertArrayEquals(new String[]{"other", "points"}, protocolList);
+
+            for (int i = 0; i < 100; i++) client.send(POINTS, new Point(i, -i));
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals(new Point(i, -i), received.poll(5, TimeUnit.SECONDS));
+            }
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void valuesBiggerThanTheFrameBuffer() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"));
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", Codec.text(), received::add);
+            client.start();
+
+            awaitOpen(client);
+
+            char[] text = new char[Client.STREAM_FRAME_SIZE * 5];
+            Arrays.fill(text, '\u00e9');
+            client.send(Codec.text(), new String(text));
+            client.send(Codec.text(), "small");
+
+            Assertions.assertEquals(new String(text), received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("small", received.poll(5, TimeUnit.SECONDS));
+            client.stop();
+        }
+    }
+
+    @Test
+    void textIsDecodedAcrossFragments() throws Exception {
+        String text = "a\u00e9\u4e2d\uD83D\uDE00b";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        //Every split into 2 fragments, and a fragment for every byte
+        for (int split = 0; split <= bytes.length; split++) {
+            Assertions.assertEquals(text, Codec.text().decode(fragments(bytes, split)));
+        }
+        ByteBuffer[] single = new ByteBuffer[bytes.length];
+        for (int i = 0; i < bytes.length; i++) single[i] = ByteBuffer.wrap(bytes, i, 1);
+        Assertions.assertEquals(text, Codec.text().decode(single));
+
+        //A character that is cut off by the end, or one that is broken across the fragments
+        byte[] cutOff = Arrays.copyOf(bytes, bytes.length - 2);
+        Assertions.assertThrows(ProtocolErrorException.class, () -> Codec.text().decode(fragments(cutOff, 3)));
+        byte[] broken = {'a', (byte) 0xE4, 'b'};
+        Assertions.assertThrows(ProtocolErrorException.class, () -> Codec.text().decode(fragments(broken, 2)));
+
+        //Codecs that don't decode across the fragments get them joined
+        ByteBuffer point = ByteBuffer.allocate(8).putInt(3).putInt(-4).flip();
+        Assertions.assertEquals(new Point(3, -4), POINTS.decode(fragments(point.array(), 5)));
+    }
+
+    private static ByteBuffer[] fragments(byte[] bytes, int split) {
+        return new ByteBuffer[]{ByteBuffer.wrap(bytes, 0, split), ByteBuffer.wrap(bytes, split, bytes.length - split)};
+    }
+
+    @Test
+    void messageOfTheWrongTypeClosesTheConnection() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = startClient(server);
+            client.registerMessageHandler("", POINTS, point -> Assertions.fail("Text should not be decoded as a point"));
+
+            client.send("not a point");
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (client.getState() != State.CLOSED && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(State.CLOSED, client.getState());
+        }
+    }
+
+    private static final class Point {
+        final int x;
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + x + ", " + y + ")";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.ConformanceCase;
+import com.suppergerrie2.websocket.testserver.ConformanceCases;
+import com.suppergerrie2.websocket.testserver.ConformanceServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the Autobahn style cases of {@link ConformanceCases} against the client, without needing an external server.
+ * <p>
+ * The results are written to build/reports/conformance (or the directory in the conformance.reports system property),
+ * one line per case, so the reports of 2 builds can be compared with diff.
+ */
+@SuppressWarnings("BusyWait")
+class ConformanceSuiteTest {
+
+    @Test
+    void runProtocolCases() throws IOException {
+        run("protocol.txt", ConformanceCases.protocol());
+    }
+
+    @Test
+    @Tag("limits")
+    void runLimitsCases() throws IOException {
+        run("limits.txt", ConformanceCases.limits());
+    }
+
+    private static void run(String reportName, List<ConformanceCase> cases) throws IOException {
+        List<ConformanceCase.Result> results = new ArrayList<>();
+
+        try (ConformanceServer server = ConformanceServer.start()) {
+            for (ConformanceCase conformanceCase : cases) {
+                List<Client> started = new ArrayList<>();
+
+                ConformanceCase.Result result = server.run(conformanceCase, uri -> {
+                    Client client = new Client(uri);
+                    registerEchoHandler(client);
+                    started.add(client);
+                    client.start();
+                });
+
+                //Make sure the client is gone before starting the next case
+                for (Client client : started) awaitClosed(client);
+
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+
+        writeReport(reportName, results);
+
+        List<String> failed = results.stream().filter(result -> !result.passed()).map(Object::toString)
+                                      .collect(Collectors.toList());
+        Assertions.assertTrue(failed.isEmpty(), () -> "Failed cases:\n" + String.join("\n", failed));
+    }
+
+    private static void registerEchoHandler(Client client) {
+        client.registerMessageHandler("", message -> {
+            switch (message.getMessageType()) {
+                case TEXT_FRAME:
+                    client.send(message.getText());
+                    break;
+                default:
+                case BINARY_FRAME:
+                    client.send(message.getPayload());
+                    break;
+            }
+        });
+    }
+
+    private static void awaitClosed(Client client) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        try {
+            while (client.getState() != State.CLOSED && System.nanoTime() < deadline) Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeReport(String name, List<ConformanceCase.Result> results) throws IOException {
+        Path report = Paths.get(System.getProperty("conformance.reports", "build/reports/conformance"), name);
+        Files.createDirectories(report.toAbsolutePath().getParent());
+
+        long passed = results.stream().filter(ConformanceCase.Result::passed).count();
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%d of %d cases passed", passed, results.size()));
+        lines.add("");
+        for (ConformanceCase.Result result : results) lines.add(result.toString());
+
+        Files.write(report, lines, StandardCharsets.UTF_8);
+        System.out.println("Conformance report written to " + report.toAbsolutePath());
+    }
+}
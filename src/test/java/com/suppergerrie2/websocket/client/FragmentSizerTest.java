@@ -0,0 +1,145 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.ReceivedFrame;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.receiveMessage;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.recorder;
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class FragmentSizerTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void fixedSizeIgnoresMeasurements() {
+        FragmentSizer sizer = new FragmentSizer(1000);
+        sizer.onWrite(1_000_000, MILLIS);
+
+        Assertions.assertFalse(sizer.isAdaptive());
+        Assertions.assertEquals(1000, sizer.getFragmentSize());
+        Assertions.assertEquals(0.0, sizer.getWriteThroughput());
+        Assertions.assertFalse(sizer.startPing(System.nanoTime()));
+    }
+
+    @Test
+    void sizeFollowsThroughputAndRoundTrip() {
+        FragmentSizer sizer = new FragmentSizer(1024, 16 * 1024 * 1024);
+        Assertions.assertEquals(FragmentSizer.INITIAL_FRAGMENT_SIZE, sizer.getFragmentSize());
+
+        //Too small to say anything about the throughput
+        sizer.onWrite(100, 1);
+        Assertions.assertEquals(0.0, sizer.getWriteThroughput());
+
+        //100 MB/s and no round trip time yet, so a fragment takes 10 ms
+        sizer.onWrite(100_000, MILLIS);
+        Assertions.assertEquals(100e6, sizer.getWriteThroughput(), 1.0);
+        Assertions.assertEquals(1_000_000, sizer.getFragmentSize());
+
+        //With a round trip of 2 ms a fragment takes 1 ms
+        long now = System.nanoTime();
+        Assertions.assertTrue(sizer.startPing(now));
+        sizer.onPong(ping(now), now + 2 * MILLIS);
+        Assertions.assertEquals(2 * MILLIS, sizer.getRoundTripNanos());
+        Assertions.assertEquals(100_000, sizer.getFragmentSize());
+
+        //A slower connection gets smaller fragments, down to the min
+        for (int i = 0; i < 100; i++) sizer.onWrite(1024, 100 * MILLIS);
+        Assertions.assertEquals(1024, sizer.getFragmentSize());
+
+        //And a fast one bigger ones, up to the max
+        for (int i = 0; i < 100; i++) sizer.onWrite(1_000_000, 1);
+        Assertions.assertEquals(16 * 1024 * 1024, sizer.getFragmentSize());
+    }
+
+    @Test
+    void oneOutstandingPingAtATime() {
+        FragmentSizer sizer = new FragmentSizer(1024, 1024 * 1024);
+        long now = System.nanoTime();
+
+        Assertions.assertTrue(sizer.startPing(now));
+        Assertions.assertFalse(sizer.startPing(now + MILLIS), "A ping is outstanding");
+
+        //Pongs that don't answer the ping are ignored
+        sizer.onPong(ping(now - 1), now + MILLIS);
+        sizer.onPong(ByteBuffer.allocate(3), now + MILLIS);
+        Assertions.assertEquals(-1, sizer.getRoundTripNanos());
+
+        sizer.onPong(ping(now), now + 4 * MILLIS);
+        Assertions.assertEquals(4 * MILLIS, sizer.getRoundTripNanos());
+
+        //The next ping is due a second after the last one
+        Assertions.assertFalse(sizer.startPing(now + 5 * MILLIS));
+        long next = now + FragmentSizer.PING_INTERVAL_NANOS;
+        Assertions.assertTrue(sizer.startPing(next));
+
+        //A ping that is never answered is given up on
+        Assertions.assertFalse(sizer.startPing(next + FragmentSizer.PING_INTERVAL_NANOS));
+        Assertions.assertTrue(sizer.startPing(next + FragmentSizer.PING_TIMEOUT_NANOS));
+
+        //The round trip time is smoothed
+        sizer.onPong(ping(next + FragmentSizer.PING_TIMEOUT_NANOS), next + FragmentSizer.PING_TIMEOUT_NANOS + 12 * MILLIS);
+        Assertions.assertEquals(5 * MILLIS, sizer.getRoundTripNanos());
+    }
+
+    @Test
+    void clientSplitsAtTheAdaptiveSize() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+        StandInServer.Listener recorder = recorder(frames);
+
+        try (StandInServer server = StandInServer.start((connection, fin, rsv, opcode, payload) -> {
+            if (opcode == 0x9) {
+                connection.sendFrame(true, 0xA, payload);
+            } else {
+                recorder.onFrame(connection, fin, rsv, opcode, payload);
+            }
+        })) {
+            int min = 1024;
+            int max = 64 * 1024;
+            Client client = new Client(server.uri("/"), ClientOptions.builder().adaptiveFragmentSize(min, max).build());
+            client.start();
+
+            awaitOpen(client);
+
+            FragmentSizer sizer = client.getFragmentSizer();
+            byte[] payload = new byte[max * 4];
+            for (int i = 0; i < 10; i++) {
+                client.send(payload);
+
+                //The size can change between the fragments of a message, but stays between the min and the max
+                List<ReceivedFrame> message = receiveMessage(frames);
+                int received = 0;
+                for (int j = 0; j < message.size(); j++) {
+                    int length = message.get(j).payload.length;
+                    Assertions.assertTrue(length <= max, length + " bytes in a frame");
+                    if (j < message.size() - 1) Assertions.assertTrue(length >= min, length + " bytes in a frame");
+                    received += length;
+                }
+                Assertions.assertEquals(payload.length, received);
+                Assertions.assertTrue(message.size() >= 4);
+            }
+
+            //The first message sent a ping
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (sizer.getRoundTripNanos() < 0 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertTrue(sizer.getRoundTripNanos() >= 0);
+            Assertions.assertTrue(sizer.getWriteThroughput() > 0);
+            Assertions.assertTrue(sizer.getFragmentSize() >= min && sizer.getFragmentSize() <= max);
+
+            client.stop();
+        }
+    }
+
+    private static ByteBuffer ping(long sentAt) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, sentAt);
+    }
+}
@@ -0,0 +1,211 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.messages.Fragment;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+import com.suppergerrie2.websocket.transport.Transport;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@SuppressWarnings("BusyWait")
+class FrameWriterTest {
+
+    @Test
+    void pongsGoBetweenFragmentsAndCollapse() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(16 * 1024);
+        FrameWriter writer = new FrameWriter(pipe.client(), Client.STREAM_FRAME_SIZE + FrameWriter.MAX_HEADER_SIZE);
+
+        //The first fragment is bigger than the pipe, so its write blocks until the other end reads
+        Thread sender = new Thread(() -> {
+            try {
+                writer.writeFrame(false, Fragment.OpCode.BINARY_FRAME, new byte[256 * 1024], 0, 256 * 1024);
+                writer.writeFrame(true, Fragment.OpCode.CONTINUATION, new byte[10], 0, 10);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        //Queueing returns right away although a frame is being written
+        long start = System.nanoTime();
+        for (byte i = 1; i <= 3; i++) writer.queuePong(new byte[]{i});
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        List<ReadFrame> frames = readFrames(pipe.server(), 3);
+        sender.join(5000);
+
+        Assertions.assertEquals(Fragment.OpCode.BINARY_FRAME.bits, frames.get(0).opcode);
+        Assertions.assertFalse(frames.get(0).fin);
+        Assertions.assertEquals(256 * 1024, frames.get(0).payload.length);
+
+        //Only the most recent ping is answered, before the rest of the message
+        Assertions.assertEquals(Fragment.OpCode.PONG.bits, frames.get(1).opcode);
+        Assertions.assertArrayEquals(new byte[]{3}, frames.get(1).payload);
+
+        Assertions.assertEquals(Fragment.OpCode.CONTINUATION.bits, frames.get(2).opcode);
+        Assertions.assertTrue(frames.get(2).fin);
+    }
+
+    @Test
+    void pongIsWrittenAfterTheLastFrame() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(16 * 1024);
+        FrameWriter writer = new FrameWriter(pipe.client(), Client.STREAM_FRAME_SIZE + FrameWriter.MAX_HEADER_SIZE);
+
+        //A single frame, so there is no next frame to write the pong before
+        Thread sender = new Thread(() -> {
+            try {
+                writer.writeFrame(true, Fragment.OpCode.BINARY_FRAME, new byte[256 * 1024], 0, 256 * 1024);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        writer.queuePong(new byte[]{7});
+
+        List<ReadFrame> frames = readFrames(pipe.server(), 2);
+        sender.join(5000);
+
+        Assertions.assertEquals(Fragment.OpCode.BINARY_FRAME.bits, frames.get(0).opcode);
+        Assertions.assertEquals(Fragment.OpCode.PONG.bits, frames.get(1).opcode);
+        Assertions.assertArrayEquals(new byte[]{7}, frames.get(1).payload);
+    }
+
+    @Test
+    void nothingFollowsTheCloseFrame() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(16 * 1024);
+        FrameWriter writer = new FrameWriter(pipe.client(), Client.STREAM_FRAME_SIZE + FrameWriter.MAX_HEADER_SIZE);
+        CountDownLatch closed = new CountDownLatch(1);
+        AtomicBoolean rest = new AtomicBoolean();
+
+        Thread sender = new Thread(() -> {
+            try {
+                writer.writeFrame(false, Fragment.OpCode.BINARY_FRAME, new byte[256 * 1024], 0, 256 * 1024);
+                writer.writeFrame(true, Fragment.OpCode.CONTINUATION, new byte[10], 0, 10);
+                rest.set(true);
+            } catch (IOException e) {
+                //The close frame was written in between
+            }
+        });
+        sender.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        //Queueing returns right away although a frame is being written
+        long start = System.nanoTime();
+        writer.queueClose(new byte[]{0x03, (byte) 0xE8}, closed::countDown);
+        writer.queuePong(new byte[]{1});
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        List<ReadFrame> frames = readFrames(pipe.server(), 3);
+        sender.join(5000);
+
+        Assertions.assertEquals(Fragment.OpCode.BINARY_FRAME.bits, frames.get(0).opcode);
+        Assertions.assertEquals(Fragment.OpCode.PONG.bits, frames.get(1).opcode);
+        Assertions.assertEquals(Fragment.OpCode.CONNECTION_CLOSE.bits, frames.get(2).opcode);
+        Assertions.assertArrayEquals(new byte[]{0x03, (byte) 0xE8}, frames.get(2).payload);
+
+        Assertions.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(rest.get(), "The rest of the message should not be written after the close frame");
+        Assertions.assertThrows(IOException.class, () -> writer.writeFrame(true, Fragment.OpCode.TEXT_FRAME, new byte[1], 0, 1));
+    }
+
+    @Test
+    void pongIsWrittenWhenIdle() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(16 * 1024);
+        FrameWriter writer = new FrameWriter(pipe.client(), 1024);
+
+        writer.queuePong(new byte[]{42});
+
+        List<ReadFrame> frames = readFrames(pipe.server(), 1);
+        Assertions.assertEquals(Fragment.OpCode.PONG.bits, frames.get(0).opcode);
+        Assertions.assertArrayEquals(new byte[]{42}, frames.get(0).payload);
+    }
+
+    @Test
+    void framesAreMaskedWithTheGeneratedKeys() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(16 * 1024);
+        FrameWriter writer = new FrameWriter(pipe.client(), 1024, () -> 0x01020304);
+
+        writer.writeFrame(true, Fragment.OpCode.BINARY_FRAME, new byte[]{0, 0, 0, 0, 0}, 0, 5);
+
+        ByteBuffer frame = readFully(pipe.server(), 2 + 4 + 5);
+        byte[] bytes = frame.array();
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3, 4}, Arrays.copyOfRange(bytes, 2, 6));
+        //Masking zeros gives the key itself
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3, 4, 1}, Arrays.copyOfRange(bytes, 6, 11));
+    }
+
+    /**
+     * Read and unmask the given amount of frames.
+     */
+    private static List<ReadFrame> readFrames(Transport transport, int count) throws IOException {
+        List<ReadFrame> frames = new ArrayList<>();
+
+        while (frames.size() < count) {
+            ByteBuffer header = readFully(transport, 2);
+            boolean fin = (header.get(0) & 0x80) != 0;
+            int opcode = header.get(0) & 0xF;
+            int length = header.get(1) & 0x7F;
+
+            if (length == 126) {
+                length = readFully(transport, 2).getShort() & 0xFFFF;
+            } else if (length == 127) {
+                length = (int) readFully(transport, 8).getLong();
+            }
+
+            byte[] mask = readFully(transport, 4).array();
+            byte[] payload = readFully(transport, length).array();
+            for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i % 4];
+
+            frames.add(new ReadFrame(fin, opcode, payload));
+        }
+
+        return frames;
+    }
+
+    private static ByteBuffer readFully(Transport transport, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (transport.read(buffer) == -1) throw new IOException("Reached end of stream");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static final class ReadFrame {
+        final boolean fin;
+        final int opcode;
+        final byte[] payload;
+
+        ReadFrame(boolean fin, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.Helpers;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+/**
+ * Measures the heap an idle connection takes, the server keeps only the bare socket per connection so nearly all of it
+ * is the client.
+ */
+@SuppressWarnings("BusyWait")
+class IdleMemoryTest {
+
+    private static final int CONNECTIONS = 300;
+    //Heap bytes an idle connection with leased buffers may take, including its socket. Measured at about 3.4 KB.
+    private static final long TARGET_BYTES_PER_CONNECTION = 6 * 1024;
+
+    @Test
+    void idleConnectionsHoldNoBuffers() throws Exception {
+        long lean = bytesPerIdleConnection(true);
+        long eager = bytesPerIdleConnection(false);
+        System.out.printf("Heap per idle connection: %d bytes with leased buffers, %d bytes without%n", lean, eager);
+
+        Assertions.assertTrue(lean < TARGET_BYTES_PER_CONNECTION, lean + " bytes per idle connection");
+        Assertions.assertTrue(lean + 2 * ClientOptions.DEFAULT_READ_BUFFER_SIZE <= eager + 4 * 1024);
+    }
+
+    @Test
+    void leasedBuffersStillReadEverything() throws Exception {
+        try (BareServer server = new BareServer()) {
+            Client client = new Client(server.uri(), ClientOptions.builder().leaseBuffers(true).readBufferSize(1024).build());
+            BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getPayloadData()));
+            client.start();
+            SocketChannel channel = server.accept();
+            awaitOpen(client);
+
+            //A small message fits the idle buffer, the big ones need the leased buffer and a large frame read
+            for (int size : new int[]{5, MessageReadThread.IDLE_BUFFER_SIZE + 1, 1000, 5000}) {
+                byte[] payload = new byte[size];
+                for (int i = 0; i < size; i++) payload[i] = (byte) i;
+                server.sendFrame(channel, payload);
+                Assertions.assertArrayEquals(payload, received.poll(5, TimeUnit.SECONDS));
+            }
+
+            client.stop(1000, true);
+        }
+    }
+
+    @Test
+    void leasedBuffersEcho() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"), ClientOptions.builder().leaseBuffers(true).build());
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getText()));
+            client.start();
+            awaitOpen(client);
+
+            char[] big = new char[Client.STREAM_FRAME_SIZE * 3];
+            Arrays.fill(big, 'x');
+            client.send("small");
+            client.send(new String(big));
+            try (Writer writer = client.openTextWriter()) {
+                writer.write(big);
+            }
+
+            Assertions.assertEquals("small", received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(new String(big), received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(new String(big), received.poll(5, TimeUnit.SECONDS));
+            client.stop();
+        }
+    }
+
+    private static long bytesPerIdleConnection(boolean leaseBuffers) throws Exception {
+        ClientOptions options = ClientOptions.builder().leaseBuffers(leaseBuffers).build();
+        List<Client> clients = new ArrayList<>();
+
+        try (BareServer server = new BareServer()) {
+            //Warm up the classes and pools so they are not counted
+            Client warmUp = new Client(server.uri(), options);
+            warmUp.start();
+            server.accept();
+            awaitOpen(warmUp);
+
+            long before = usedHeap();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Client client = new Client(server.uri(), options);
+                client.start();
+                server.accept();
+                clients.add(client);
+            }
+            for (Client client : clients) awaitOpen(client);
+
+            long after = usedHeap();
+
+            for (Client client : clients) client.stop(1000, true);
+            warmUp.stop(1000, true);
+            return (after - before) / CONNECTIONS;
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+
+        //Take the lowest of a few tries, a collection is not guaranteed to clean up everything at once
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        return used;
+    }
+
+    /**
+     * Accepts connections and answers the handshake on the thread of the test, then only keeps the socket.
+     */
+    private static final class BareServer implements AutoCloseable {
+        private final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        private final List<SocketChannel> connections = new ArrayList<>();
+
+        BareServer() throws IOException {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        }
+
+        URI uri() throws IOException {
+            return URI.create("ws://127.0.0.1:" + ((InetSocketAddress) serverChannel.getLocalAddress()).getPort() + "/");
+        }
+
+        SocketChannel accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            connections.add(channel);
+
+            ByteBuffer request = ByteBuffer.allocate(4096);
+            String text;
+            do {
+                if (channel.read(request) == -1) throw new IOException("Client closed during the handshake");
+                text = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+            } while (!text.contains("\r\n\r\n"));
+
+            String key = "";
+            for (String line : text.split("\r\n")) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) key = line.substring(line.indexOf(':') + 1).trim();
+            }
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Accept: " + Helpers.getSecWebsocket(key) + "\r\n\r\n";
+            write(channel, ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            return channel;
+        }
+
+        void sendFrame(SocketChannel channel, byte[] payload) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(payload.length + 4);
+            frame.put((byte) 0x82);
+            if (payload.length > 125) {
+                frame.put((byte) 126).putShort((short) payload.length);
+            } else {
+                frame.put((byte) payload.length);
+            }
+            frame.put(payload).flip();
+            write(channel, frame);
+        }
+
+        private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (SocketChannel channel : connections) channel.close();
+            serverChannel.close();
+        }
+    }
+}
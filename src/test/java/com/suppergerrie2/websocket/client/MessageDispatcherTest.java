@@ -0,0 +1,83 @@
+package com.suppergerrie2.websocket.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class MessageDispatcherTest {
+
+    @Test
+    void inlineRunsOnCallingThread() {
+        Thread[] ranOn = new Thread[1];
+        MessageDispatcher.inline().dispatch(() -> ranOn[0] = Thread.currentThread());
+
+        Assertions.assertSame(Thread.currentThread(), ranOn[0]);
+    }
+
+    @Test
+    void orderedKeepsOrderPerDispatcher() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        int dispatchers = 8;
+        int tasks = 10_000;
+
+        List<List<Integer>> seen = new ArrayList<>();
+        AtomicInteger maxConcurrentPerDispatcher = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(dispatchers * tasks);
+
+        for (int d = 0; d < dispatchers; d++) {
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            seen.add(order);
+            MessageDispatcher dispatcher = MessageDispatcher.ordered(pool);
+            AtomicInteger running = new AtomicInteger();
+
+            for (int i = 0; i < tasks; i++) {
+                int value = i;
+                dispatcher.dispatch(() -> {
+                    maxConcurrentPerDispatcher.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    order.add(value);
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS), "Not all tasks ran");
+        pool.shutdown();
+
+        Assertions.assertEquals(1, maxConcurrentPerDispatcher.get(), "Tasks of one dispatcher ran at the same time");
+        for (List<Integer> order : seen) {
+            for (int i = 0; i < tasks; i++) {
+                Assertions.assertEquals(i, (int) order.get(i));
+            }
+        }
+    }
+
+    @Test
+    void parallelUsesTheExecutor() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+
+        MessageDispatcher dispatcher = MessageDispatcher.parallel(pool);
+        for (int i = 0; i < 2; i++) {
+            dispatcher.dispatch(() -> {
+                bothRunning.countDown();
+                try {
+                    bothRunning.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        Assertions.assertTrue(bothRunning.await(5, TimeUnit.SECONDS), "Tasks did not run at the same time");
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,165 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Message;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.startClient;
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class MessagePublisherTest {
+
+    private static final int MESSAGES = 256;
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    @Test
+    void readingPausesWithoutDemand() throws Exception {
+        AtomicReference<StandInServer.Connection> serverSide = new AtomicReference<>();
+
+        try (StandInServer server = StandInServer.start(new StandInServer.Listener() {
+            @Override
+            public void onOpen(StandInServer.Connection connection) {
+                serverSide.set(connection);
+                for (int i = 0; i < MESSAGES; i++) {
+                    ByteBuffer payload = ByteBuffer.allocate(MESSAGE_SIZE);
+                    payload.putInt(0, i);
+                    connection.sendFrame(true, 0x2, payload);
+                }
+            }
+
+            @Override
+            public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+            }
+        })) {
+            //A small socket buffer so the data the client doesn't read quickly stays queued at the server
+            Client client = new Client(server.uri("/"), ClientOptions.builder().receiveBufferSize(64 * 1024).build());
+            AtomicInteger handled = new AtomicInteger();
+            client.registerMessageHandler("", message -> handled.incrementAndGet());
+
+            RecordingSubscriber subscriber = new RecordingSubscriber(3);
+            client.messages().subscribe(subscriber);
+            client.start();
+
+            for (int i = 0; i < 3; i++) {
+                Message message = subscriber.messages.poll(5, TimeUnit.SECONDS);
+                Assertions.assertNotNull(message);
+                Assertions.assertEquals(i, message.getPayload().getInt(0));
+            }
+
+            //Nothing more is read, not even for the handlers, so the rest of the messages waits at the server
+            Thread.sleep(300);
+            Assertions.assertTrue(subscriber.messages.isEmpty());
+            Assertions.assertEquals(3, handled.get());
+            Assertions.assertTrue(serverSide.get().hasPendingWrites());
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            for (int i = 3; i < MESSAGES; i++) {
+                Message message = subscriber.messages.poll(5, TimeUnit.SECONDS);
+                Assertions.assertNotNull(message);
+                Assertions.assertEquals(i, message.getPayload().getInt(0));
+            }
+            Assertions.assertEquals(MESSAGES, handled.get());
+
+            client.stop();
+            Assertions.assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(State.CLOSED, client.getState());
+        }
+    }
+
+    @Test
+    void invalidRequestSignalsError() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"));
+            RecordingSubscriber subscriber = new RecordingSubscriber(0);
+            client.messages().subscribe(subscriber);
+            client.start();
+
+            subscriber.subscription.request(0);
+            Throwable error = subscriber.errors.poll(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(error instanceof IllegalArgumentException);
+
+            //The subscription ended, so the client reads without waiting for demand again
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getText()));
+            awaitOpen(client);
+            client.send("after error");
+            Assertions.assertEquals("after error", received.poll(5, TimeUnit.SECONDS));
+            client.stop();
+        }
+    }
+
+    @Test
+    void oneSubscriberAtATime() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = startClient(server);
+
+            RecordingSubscriber first = new RecordingSubscriber(Long.MAX_VALUE);
+            client.messages().subscribe(first);
+
+            RecordingSubscriber second = new RecordingSubscriber(Long.MAX_VALUE);
+            client.messages().subscribe(second);
+            Assertions.assertTrue(second.errors.poll(5, TimeUnit.SECONDS) instanceof IllegalStateException);
+
+            client.send("first");
+            Assertions.assertEquals("first", first.messages.poll(5, TimeUnit.SECONDS).getText());
+
+            first.subscription.cancel();
+            RecordingSubscriber third = new RecordingSubscriber(Long.MAX_VALUE);
+            client.messages().subscribe(third);
+
+            client.send("third");
+            Assertions.assertEquals("third", third.messages.poll(5, TimeUnit.SECONDS).getText());
+            Assertions.assertTrue(first.messages.isEmpty());
+
+            client.stop();
+            Assertions.assertTrue(third.completed.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<Message> {
+
+        final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        private final long initialRequest;
+        volatile Flow.Subscription subscription;
+
+        RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(Message item) {
+            messages.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.testserver.Clients;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("BusyWait")
+class MessageStreamTest {
+
+    @Test
+    void binaryStreamIsSentInFrames() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            byte[] chunk = new byte[1000];
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (OutputStream stream = client.openBinaryStream()) {
+                for (int i = 0; i < 1000; i++) {
+                    for (int j = 0; j < chunk.length; j++) chunk[j] = (byte) (i + j);
+                    stream.write(chunk);
+                    expected.write(chunk);
+                }
+            }
+
+            List<ReceivedFrame> message = receiveMessage(frames);
+            Assertions.assertEquals(0x2, message.get(0).opcode);
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            for (int i = 0; i < message.size(); i++) {
+                ReceivedFrame frame = message.get(i);
+                if (i > 0) Assertions.assertEquals(0x0, frame.opcode, "Later frames should be continuation frames");
+                Assertions.assertTrue(frame.payload.length <= Client.STREAM_FRAME_SIZE, "Frame bigger than the buffer");
+                received.write(frame.payload);
+            }
+
+            Assertions.assertArrayEquals(expected.toByteArray(), received.toByteArray());
+            client.stop();
+        }
+    }
+
+    @Test
+    void textWriter() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            StringBuilder expected = new StringBuilder();
+            try (Writer writer = client.openTextWriter()) {
+                for (int i = 0; i < 10_000; i++) {
+                    String line = i + ": \u00e9\u00e8 \u4e2d\u6587 \uD83D\uDE00\n";
+                    writer.write(line);
+                    expected.append(line);
+                }
+            }
+
+            List<ReceivedFrame> message = receiveMessage(frames);
+            Assertions.assertEquals(0x1, message.get(0).opcode);
+            Assertions.assertTrue(message.size() > 1, "Message should be sent in multiple frames");
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            for (ReceivedFrame frame : message) received.write(frame.payload);
+
+            Assertions.assertEquals(expected.toString(), new String(received.toByteArray(), StandardCharsets.UTF_8));
+            client.stop();
+        }
+    }
+
+    @Test
+    void otherMessagesWaitForTheStream() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            OutputStream stream = client.openBinaryStream();
+            stream.write(new byte[Client.STREAM_FRAME_SIZE * 3]);
+
+            Thread sender = new Thread(() -> client.send("after"));
+            sender.start();
+
+            //The sender should block until the stream is closed
+            Thread.sleep(100);
+            Assertions.assertTrue(sender.isAlive(), "Message was sent while the stream was open");
+
+            stream.write(new byte[10]);
+            stream.close();
+            sender.join();
+
+            List<ReceivedFrame> streamed = receiveMessage(frames);
+            Assertions.assertEquals(0x2, streamed.get(0).opcode);
+
+            List<ReceivedFrame> after = receiveMessage(frames);
+            Assertions.assertEquals(0x1, after.get(0).opcode);
+            Assertions.assertEquals("after", new String(after.get(0).payload, StandardCharsets.UTF_8));
+            client.stop();
+        }
+    }
+
+    static StandInServer.Listener recorder(BlockingQueue<ReceivedFrame> frames) {
+        return (connection, fin, rsv, opcode, payload) -> {
+            if (opcode == 0x8) {
+                connection.sendFrame(true, 0x8, payload);
+                connection.close();
+                return;
+            }
+
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            frames.add(new ReceivedFrame(fin, opcode, bytes));
+        };
+    }
+
+    static List<ReceivedFrame> receiveMessage(BlockingQueue<ReceivedFrame> frames) throws InterruptedException {
+        List<ReceivedFrame> message = new ArrayList<>();
+
+        ReceivedFrame frame;
+        do {
+            frame = frames.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(frame, "Message did not end");
+            message.add(frame);
+        } while (!frame.fin);
+
+        return message;
+    }
+
+    /**
+     * Check that the message starts with a frame of the opcode and continues with continuation frames.
+     *
+     * @return The payload of all frames of the message together
+     */
+    static byte[] joinPayload(int opcode, List<ReceivedFrame> message) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < message.size(); i++) {
+            Assertions.assertEquals(i == 0 ? opcode : 0x0, message.get(i).opcode, "Later frames should be continuation frames");
+            payload.writeBytes(message.get(i).payload);
+        }
+
+        return payload.toByteArray();
+    }
+
+    static Client startClient(StandInServer server) throws IOException, InterruptedException {
+        return Clients.start(new Client(server.uri("/")));
+    }
+
+    static final class ReceivedFrame {
+        final boolean fin;
+        final int opcode;
+        final byte[] payload;
+
+        ReceivedFrame(boolean fin, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.client.MessageStreamTest.ReceivedFrame;
+import com.suppergerrie2.websocket.testserver.Clients;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.receiveMessage;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.recorder;
+
+@SuppressWarnings("BusyWait")
+class RateLimiterTest {
+
+    @Test
+    void burstThenRate() {
+        RateLimiter limiter = new RateLimiter(10, 0, 1, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 10; i++) Assertions.assertEquals(0, limiter.tryAcquire(1, 1_000_000));
+
+        long wait = limiter.tryAcquire(1, 0);
+        Assertions.assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100), "Waiting " + wait);
+    }
+
+    @Test
+    void sendBiggerThanTheBucketNeedsAFullBucket() {
+        RateLimiter limiter = new RateLimiter(0, 1000, 100, TimeUnit.MILLISECONDS);
+
+        Assertions.assertEquals(0, limiter.tryAcquire(1, 500));
+
+        //The debt of the big send is paid off first
+        long wait = limiter.tryAcquire(1, 1);
+        Assertions.assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(300), "Waiting " + wait);
+    }
+
+    @Test
+    void rejectedAcquireTakesNothing() {
+        RateLimiter limiter = new RateLimiter(1, 10, 1, TimeUnit.SECONDS);
+
+        Assertions.assertEquals(0, limiter.tryAcquire(0, 10));
+        Assertions.assertTrue(limiter.tryAcquire(1, 1) > 0);
+
+        //The message token was given back when the bytes were not there
+        Assertions.assertEquals(0, limiter.tryAcquire(1, 0));
+        Assertions.assertTrue(limiter.tryAcquire(1, 0) > 0);
+    }
+
+    @Test
+    void concurrentAcquiresStayUnderTheRate() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1000, 0, 10, TimeUnit.MILLISECONDS);
+        AtomicLong acquired = new AtomicLong();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(300);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    if (limiter.tryAcquire(1, 0) == 0) acquired.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Assertions.assertTrue(acquired.get() <= 10 + 1000 * seconds + 1, acquired.get() + " acquired in " + seconds + " s");
+        Assertions.assertTrue(acquired.get() >= 200, "Only " + acquired.get() + " acquired");
+    }
+
+    @Test
+    void sendsWaitForTheLimit() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            ClientOptions options = ClientOptions.builder().rateLimit(20, 0, 100, TimeUnit.MILLISECONDS).build();
+            Client client = Clients.start(new Client(server.uri("/"), options));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 6; i++) client.send("message " + i);
+            long elapsed = System.nanoTime() - start;
+
+            //2 messages fit in the burst, the other 4 are sent 50 ms apart
+            Assertions.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(180), "Sent in " + elapsed + " ns");
+            for (int i = 0; i < 6; i++) {
+                Assertions.assertEquals("message " + i, new String(receiveMessage(frames).get(0).payload, StandardCharsets.UTF_8));
+            }
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void codecValuesAreChargedBeforeTheyAreWritten() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            ClientOptions options = ClientOptions.builder().rateLimit(0, 1000, 100, TimeUnit.MILLISECONDS).build();
+            Client client = Clients.start(new Client(server.uri("/"), options));
+            String value = "v".repeat(100);
+
+            client.send(Codec.text(), value);
+            Assertions.assertEquals(value, new String(receiveMessage(frames).get(0).payload, StandardCharsets.UTF_8));
+
+            //The first value emptied the bucket, so the second is only written once it has refilled
+            Thread sender = new Thread(() -> client.send(Codec.text(), value));
+            sender.start();
+            Assertions.assertNull(frames.poll(50, TimeUnit.MILLISECONDS));
+            Assertions.assertEquals(value, new String(receiveMessage(frames).get(0).payload, StandardCharsets.UTF_8));
+            sender.join();
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void groupLimitIsSharedAndRejects() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+        List<Long> rejected = new ArrayList<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            ClientOptions options = ClientOptions.builder()
+                                                 .rateLimitGroup(new RateLimiter(0, 100, 1, TimeUnit.SECONDS))
+                                                 .rejectWhenRateLimited((client, bytes, retryAfter) -> rejected.add(bytes))
+                                                 .build();
+            Client first = Clients.start(new Client(server.uri("/"), options));
+            Client second = Clients.start(new Client(server.uri("/"), options));
+
+            first.send(new byte[60]);
+            Assertions.assertEquals(60, receiveMessage(frames).get(0).payload.length);
+
+            //Only 40 bytes are left in the group for both clients
+            second.send(new byte[60]);
+            second.send(new byte[30]);
+            Assertions.assertEquals(30, receiveMessage(frames).get(0).payload.length);
+            first.send(new byte[30]);
+
+            Assertions.assertEquals(List.of(60L, 30L), rejected);
+            Assertions.assertNull(frames.poll(100, TimeUnit.MILLISECONDS));
+
+            first.stop();
+            second.stop();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.suppergerrie2.websocket.client;
+
+import com.suppergerrie2.websocket.client.MessageStreamTest.ReceivedFrame;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.Clients;
+import com.suppergerrie2.websocket.testserver.PipePeer;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+import com.suppergerrie2.websocket.transport.Transport;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static com.suppergerrie2.websocket.client.MessageStreamTest.joinPayload;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.receiveMessage;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.recorder;
+import static com.suppergerrie2.websocket.client.MessageStreamTest.startClient;
+
+class SendTest {
+
+    @Test
+    void directBuffer() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            //Bigger than the frame buffer, so it is masked in multiple pieces
+            byte[] expected = new byte[100_003];
+            for (int i = 0; i < expected.length; i++) expected[i] = (byte) (i * 7);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+            direct.put(expected).flip();
+            client.send(direct);
+
+            Assertions.assertFalse(direct.hasRemaining(), "The buffer should be consumed");
+
+            //Split at the default max fragment payload size
+            List<ReceivedFrame> message = receiveMessage(frames);
+            Assertions.assertEquals((expected.length + Client.STREAM_FRAME_SIZE - 1) / Client.STREAM_FRAME_SIZE, message.size());
+            Assertions.assertArrayEquals(expected, joinPayload(0x2, message));
+            client.stop();
+        }
+    }
+
+    @Test
+    void fileIsSentInWindows() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+        Path file = Files.createTempFile("send", ".bin");
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            byte[] expected = new byte[Client.FILE_WINDOW_SIZE * 2 + 1234];
+            for (int i = 0; i < expected.length; i++) expected[i] = (byte) (i * 31 + (i >> 12));
+            Files.write(file, expected);
+
+            client.sendFile(file);
+
+            //Every window is split into frames of the default max fragment payload size
+            List<ReceivedFrame> message = receiveMessage(frames);
+            Assertions.assertEquals((expected.length + Client.STREAM_FRAME_SIZE - 1) / Client.STREAM_FRAME_SIZE, message.size());
+            Assertions.assertArrayEquals(expected, joinPayload(0x2, message));
+
+            //Ranges are sent without moving the position of the channel
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                client.sendFile(channel, 1000, 5000);
+                message = receiveMessage(frames);
+                Assertions.assertEquals(1, message.size());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(expected, 1000, 6000), message.get(0).payload);
+
+                client.sendFile(channel, 10, 0);
+                message = receiveMessage(frames);
+                Assertions.assertEquals(1, message.size());
+                Assertions.assertEquals(0, message.get(0).payload.length);
+
+                Assertions.assertThrows(IllegalArgumentException.class, () -> client.sendFile(channel, expected.length - 10, 11));
+                Assertions.assertEquals(0, channel.position());
+            }
+
+            client.stop();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void charSequence() throws Exception {
+        BlockingQueue<ReceivedFrame> frames = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.start(recorder(frames))) {
+            Client client = startClient(server);
+
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 20_000; i++) text.append(i).append(" \u00e9 \u4e2d \uD83D\uDE00 ");
+
+            //Lone surrogates are replaced, just like String.getBytes does
+            String[] texts = {"", "Hello", text.toString(), "a\uD800b\uDC00"};
+            for (String expected : texts) {
+                client.send(new StringBuilder(expected));
+
+                //The long text is split over multiple frames
+                List<ReceivedFrame> message = receiveMessage(frames);
+                Assertions.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), joinPayload(0x1, message));
+            }
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void failedWriteIsThrownAndClosesTheClient() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(64 * 1024);
+        PipePeer.echo(pipe.server());
+        FailingTransport transport = new FailingTransport(pipe.client());
+        Client client = Clients.start(new Client(URI.create("ws://pipe/"), MessageDispatcher.inline(), transport));
+
+        transport.failing = true;
+        Assertions.assertThrows(UncheckedIOException.class, () -> client.send("lost"));
+        Assertions.assertNotEquals(State.OPEN, client.getState());
+        Assertions.assertThrows(IllegalStateException.class, () -> client.send("after"));
+    }
+
+    @Test
+    void encodedLength() {
+        String[] texts = {"", "abc", "\u00e9", "\u4e2d", "\uD83D\uDE00", "\uD800", "\uDC00x", "x\uD83D"};
+
+        for (String text : texts) {
+            Assertions.assertEquals(text.getBytes(StandardCharsets.UTF_8).length, FrameWriter.encodedLength(text), text);
+        }
+    }
+
+    /**
+     * Passes everything to the pipe until it is told to fail the writes.
+     */
+    private static final class FailingTransport implements Transport {
+        private final Transport pipe;
+        volatile boolean failing;
+
+        FailingTransport(Transport pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public void connect(URI uri) throws IOException {
+            pipe.connect(uri);
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return pipe.read(destination);
+        }
+
+        @Override
+        public void write(ByteBuffer source) throws IOException {
+            if (failing) throw new IOException("Broken pipe");
+            pipe.write(source);
+        }
+
+        @Override
+        public void write(ByteBuffer[] sources) throws IOException {
+            if (failing) throw new IOException("Broken pipe");
+            pipe.write(sources);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return pipe.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            pipe.close();
+        }
+    }
+}
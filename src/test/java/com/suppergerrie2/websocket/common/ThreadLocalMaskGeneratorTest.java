@@ -0,0 +1,42 @@
+package com.suppergerrie2.websocket.common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+class ThreadLocalMaskGeneratorTest {
+
+    @Test
+    void masksKeepChangingAcrossBatches() {
+        MaskGenerator masks = MaskGenerator.secure();
+        int count = 1 << 17;
+
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < count; i++) seen.add(masks.nextMask());
+
+        //Collisions between 2^17 random ints are expected, but only a handful
+        Assertions.assertTrue(seen.size() > count - 100);
+    }
+
+    @Test
+    void threadsGetTheirOwnSequence() throws InterruptedException {
+        int[] first = new int[16];
+        int[] second = new int[16];
+
+        Thread a = new Thread(() -> fill(first));
+        Thread b = new Thread(() -> fill(second));
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+
+        Assertions.assertFalse(Arrays.equals(first, second));
+    }
+
+    private static void fill(int[] masks) {
+        for (int i = 0; i < masks.length; i++) masks[i] = MaskGenerator.secure().nextMask();
+    }
+}
@@ -0,0 +1,43 @@
+package com.suppergerrie2.websocket.common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+class Utf8ValidatorTest {
+
+    @Test
+    void characterSplitAcrossCalls() {
+        byte[] bytes = "Hello-\u00b5@\u00df\u00f6\u00e4\u00fc\u00e0\u00e1-UTF-8!! \uD83D\uDE00".getBytes(StandardCharsets.UTF_8);
+
+        //Split the data at every possible place
+        for (int split = 0; split <= bytes.length; split++) {
+            Utf8Validator validator = new Utf8Validator();
+
+            Assertions.assertTrue(validator.validate(bytes, 0, split));
+            Assertions.assertTrue(validator.validate(bytes, split, bytes.length - split));
+            Assertions.assertTrue(validator.isComplete(), "Split at " + split);
+        }
+    }
+
+    @Test
+    void incompleteCharacter() {
+        Utf8Validator validator = new Utf8Validator();
+
+        Assertions.assertTrue(validator.validate(new byte[]{(byte) 0xF0, (byte) 0x9F}, 0, 2));
+        Assertions.assertFalse(validator.isComplete());
+    }
+
+    @Test
+    void failsFast() {
+        Utf8Validator validator = new Utf8Validator();
+
+        //0xF4 0x90 can only start a codepoint bigger than 0x10FFFF, so it is invalid before the character is complete
+        Assertions.assertFalse(validator.validate(new byte[]{(byte) 0xF4, (byte) 0x90}, 0, 2));
+
+        validator.reset();
+        Assertions.assertTrue(validator.validate(new byte[]{'a'}, 0, 1));
+        Assertions.assertTrue(validator.isComplete());
+    }
+}
@@ -0,0 +1,82 @@
+package com.suppergerrie2.websocket.common.messages;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class FrameViewTest {
+
+    @Test
+    void opcodeTable() {
+        for (Fragment.OpCode opCode : new Fragment.OpCode[]{Fragment.OpCode.CONTINUATION, Fragment.OpCode.TEXT_FRAME, Fragment.OpCode.BINARY_FRAME, Fragment.OpCode.CONNECTION_CLOSE, Fragment.OpCode.PING, Fragment.OpCode.PONG}) {
+            Assertions.assertEquals(opCode, Fragment.OpCode.fromBits(opCode.bits));
+            //Only the last 4 bits matter
+            Assertions.assertEquals(opCode, Fragment.OpCode.getOpcode((byte) (0b1111_0000 | opCode.bits)));
+        }
+
+        for (int bits = 0x3; bits <= 0x7; bits++) {
+            Assertions.assertEquals(Fragment.OpCode.RESERVED_NON_CONTROL, Fragment.OpCode.fromBits(bits));
+        }
+        for (int bits = 0xB; bits <= 0xF; bits++) {
+            Assertions.assertEquals(Fragment.OpCode.RESERVED_CONTROL, Fragment.OpCode.fromBits(bits));
+        }
+    }
+
+    @Test
+    void readsWhatFragmentWrites() {
+        for (int size : new int[]{0, 5, 125, 126, 65535, 65536}) {
+            byte[] payload = new byte[size];
+            for (int i = 0; i < size; i++) payload[i] = (byte) (i * 31);
+
+            Fragment fragment = Fragment.withData(Fragment.OpCode.BINARY_FRAME, payload).get(0);
+            ByteBuffer buffer = ByteBuffer.wrap(fragment.toBytes());
+
+            FrameView view = new FrameView();
+            Assertions.assertTrue(view.wrap(buffer));
+            Assertions.assertTrue(view.fin());
+            Assertions.assertEquals(0, view.rsv());
+            Assertions.assertEquals(Fragment.OpCode.BINARY_FRAME, view.opCode());
+            Assertions.assertTrue(view.isMasked());
+            Assertions.assertEquals(size, view.payloadLength());
+            Assertions.assertTrue(view.isComplete());
+
+            view.unmask();
+            for (int i = 0; i < size; i++) {
+                Assertions.assertEquals(payload[i], buffer.get(view.payloadOffset() + i), "Byte " + i + " of " + size);
+            }
+        }
+    }
+
+    @Test
+    void incompleteHeader() {
+        byte[] frame = Fragment.withData(Fragment.OpCode.TEXT_FRAME, "Hello".getBytes(StandardCharsets.UTF_8)).get(0)
+                               .toBytes();
+
+        FrameView view = new FrameView();
+        for (int available = 0; available < 6; available++) {
+            Assertions.assertFalse(view.wrap(ByteBuffer.wrap(frame, 0, available)));
+        }
+
+        ByteBuffer partial = ByteBuffer.wrap(frame, 0, frame.length - 1);
+        Assertions.assertTrue(view.wrap(partial));
+        Assertions.assertFalse(view.isComplete());
+    }
+
+    @Test
+    void unmaskFromOffset() {
+        byte[] payload = new byte[23];
+        byte[] masked = payload.clone();
+        int key = 0x12345678;
+
+        FrameView.unmask(ByteBuffer.wrap(masked), 0, masked.length, key, 0);
+
+        //Unmasking in 2 pieces with the right offset gives the original back
+        ByteBuffer buffer = ByteBuffer.wrap(masked);
+        FrameView.unmask(buffer, 0, 7, key, 0);
+        FrameView.unmask(buffer, 7, masked.length, key, 7);
+
+        Assertions.assertArrayEquals(payload, masked);
+    }
+}
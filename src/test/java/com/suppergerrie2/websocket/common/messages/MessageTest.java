@@ -0,0 +1,70 @@
+package com.suppergerrie2.websocket.common.messages;
+
+import com.suppergerrie2.websocket.ProtocolErrorException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+class MessageTest {
+
+    @Test
+    void fragmentedPayloadIsAggregatedOnce() throws ProtocolErrorException {
+        Message message = fragmented("Hello ", "fragmented ");
+
+        byte[] payload = message.getPayloadData();
+        Assertions.assertArrayEquals("Hello fragmented ".getBytes(StandardCharsets.UTF_8), payload);
+        Assertions.assertSame(payload, message.getPayloadData());
+
+        //Adding a fragment clears the cache
+        message.addFragment(fragment(Fragment.OpCode.CONTINUATION, "world", true));
+        Assertions.assertArrayEquals("Hello fragmented world".getBytes(StandardCharsets.UTF_8), message.getPayloadData());
+    }
+
+    @Test
+    void payloadBuffersAreReadOnlyViews() throws ProtocolErrorException {
+        Message message = fragmented("abc", "de");
+
+        ByteBuffer[] buffers = message.getPayloadBuffers();
+        Assertions.assertEquals(2, buffers.length);
+        Assertions.assertEquals(3, buffers[0].remaining());
+        Assertions.assertEquals(2, buffers[1].remaining());
+        Assertions.assertEquals(5, message.getPayloadLength());
+        Assertions.assertThrows(ReadOnlyBufferException.class, () -> buffers[0].put(0, (byte) 'x'));
+
+        //Every call gets its own buffer, so reading one doesn't move the other
+        ByteBuffer payload = message.getPayload();
+        payload.get(new byte[payload.remaining()]);
+        Assertions.assertEquals(5, message.getPayload().remaining());
+    }
+
+    @Test
+    void textIsDecodedOnce() throws ProtocolErrorException {
+        //The 2 byte character is split across the fragments
+        byte[] text = "caf\u00e9!".getBytes(StandardCharsets.UTF_8);
+        Fragment first = Fragment.withData(Fragment.OpCode.TEXT_FRAME, new byte[]{text[0], text[1], text[2], text[3]}).get(0);
+        first.fin = false;
+
+        Message message = new Message(first);
+        message.addFragment(Fragment.withData(Fragment.OpCode.CONTINUATION, new byte[]{text[4], text[5]}).get(0));
+
+        String decoded = message.getText();
+        Assertions.assertEquals("caf\u00e9!", decoded);
+        Assertions.assertSame(decoded, message.getText());
+        Assertions.assertSame(decoded, message.asCharSequence());
+    }
+
+    private static Message fragmented(String first, String second) throws ProtocolErrorException {
+        Message message = new Message(fragment(Fragment.OpCode.TEXT_FRAME, first, false));
+        message.addFragment(fragment(Fragment.OpCode.CONTINUATION, second, false));
+        return message;
+    }
+
+    private static Fragment fragment(Fragment.OpCode opCode, String data, boolean fin) {
+        Fragment fragment = Fragment.withData(opCode, data.getBytes(StandardCharsets.UTF_8)).get(0);
+        fragment.fin = fin;
+        return fragment;
+    }
+}
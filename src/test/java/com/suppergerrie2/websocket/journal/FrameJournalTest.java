@@ -0,0 +1,197 @@
+package com.suppergerrie2.websocket.journal;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.ClientOptions;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class FrameJournalTest {
+
+    @Test
+    void recordsReceivedFrames() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            FrameJournal journal = new FrameJournal(directory);
+            Client client = new Client(server.uri("/"), ClientOptions.builder().frameTap(journal).build());
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getText()));
+            client.start();
+
+            awaitOpen(client);
+
+            client.send("first");
+            client.send("second");
+            Assertions.assertEquals("first", received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("second", received.poll(5, TimeUnit.SECONDS));
+            client.stop();
+            journal.close();
+
+            JournalReader reader = JournalReader.open(directory);
+            for (String expected : new String[]{"first", "second"}) {
+                Assertions.assertTrue(reader.next());
+                Assertions.assertEquals(client.getConnectionId(), reader.connectionId());
+                Assertions.assertEquals(0x1, reader.opcode());
+                Assertions.assertTrue(reader.fin());
+                Assertions.assertEquals(expected, StandardCharsets.UTF_8.decode(reader.payload()).toString());
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void rollsOverSegments() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+
+        try {
+            FrameJournal journal = new FrameJournal(directory, 64 * 1024);
+            byte[] payload = new byte[1000];
+            int frames = 1000;
+
+            for (int i = 0; i < frames; i++) {
+                ByteBuffer.wrap(payload).putInt(i);
+                journal.onFrame(1, i, true, 0, 0x2, payload, 0, 4 + i % 900);
+            }
+            journal.close();
+
+            //Frames that are dropped because the roller fell behind are left out, the rest is read back in order
+            Assertions.assertEquals(frames, journal.getRecordedFrames() + journal.getDroppedFrames());
+            Assertions.assertTrue(JournalReader.segments(directory).size() > 1);
+
+            JournalReader reader = JournalReader.open(directory);
+            int read = 0;
+            int last = -1;
+            while (reader.next()) {
+                int sequence = reader.payload().getInt();
+                Assertions.assertTrue(sequence > last);
+                Assertions.assertEquals(4 + sequence % 900, reader.payload().remaining());
+                Assertions.assertEquals(sequence, reader.timestamp());
+                last = sequence;
+                read++;
+            }
+            Assertions.assertEquals(journal.getRecordedFrames(), read);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void deletesTheOldestSegments() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+
+        try {
+            FrameJournal journal = new FrameJournal(directory, 64 * 1024, 2);
+            byte[] payload = new byte[1000];
+
+            for (int i = 0; i < 1000; i++) {
+                ByteBuffer.wrap(payload).putInt(i);
+                journal.onFrame(1, i, true, 0, 0x2, payload, 0, payload.length);
+                //Give the roller time to map the next segments
+                if (i % 50 == 0) Thread.sleep(5);
+            }
+            journal.close();
+
+            //The current and the previous segment are kept, and the one that was mapped ahead
+            List<Path> segments = JournalReader.segments(directory);
+            Assertions.assertTrue(segments.size() <= 3, "Kept " + segments);
+            Assertions.assertTrue(FrameJournal.segmentIndex(segments.get(0)) > 0, "The first segment was not deleted");
+
+            //The frames in the kept segments are still read back in order
+            JournalReader reader = JournalReader.open(directory);
+            int last = -1;
+            while (reader.next()) {
+                int sequence = reader.payload().getInt();
+                Assertions.assertTrue(sequence > last);
+                last = sequence;
+            }
+            Assertions.assertTrue(last > 900, "Last frame read is " + last);
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> new FrameJournal(directory, 64 * 1024, 1));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void replay() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+
+        try {
+            FrameJournal journal = new FrameJournal(directory, 64 * 1024);
+            long millis = TimeUnit.MILLISECONDS.toNanos(1);
+            record(journal, 7, 0, true, 0x1, "a");
+            record(journal, 8, 10 * millis, true, 0x1, "other connection");
+            record(journal, 7, 100 * millis, false, 0x1, "b");
+            record(journal, 7, 150 * millis, true, 0x9, "ping");
+            record(journal, 7, 200 * millis, true, 0x0, "c");
+            journal.close();
+
+            List<String> expected = List.of("a", "bc");
+            Assertions.assertEquals(expected, replay(directory, JournalReplay.Speed.MAXIMUM, 0));
+            Assertions.assertEquals(expected, replay(directory, JournalReplay.Speed.ORIGINAL, 200));
+
+            //The protocol the recorded connection agreed on is agreed on again, so its handlers get the messages
+            JournalReplay replay = new JournalReplay(directory, 7, JournalReplay.Speed.MAXIMUM, "chat");
+            Client client = replay.createClient(ClientOptions.defaults());
+            List<String> messages = new ArrayList<>();
+            client.registerMessageHandler("chat", message -> messages.add(message.getText()));
+            client.registerMessageHandler("", message -> Assertions.fail("No protocol handler called"));
+            Assertions.assertEquals(4, replay.run());
+            Assertions.assertEquals("chat", client.getProtocol());
+            Assertions.assertEquals(expected, messages);
+
+            //A client that does not offer the protocol can't replay it
+            JournalReplay unoffered = new JournalReplay(directory, 7, JournalReplay.Speed.MAXIMUM, "chat");
+            unoffered.createClient(ClientOptions.defaults());
+            Assertions.assertThrows(IOException.class, unoffered::run);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static List<String> replay(Path directory, JournalReplay.Speed speed, long minimumMillis) throws Exception {
+        JournalReplay replay = new JournalReplay(directory, 7, speed);
+        Client client = replay.createClient(ClientOptions.defaults());
+        List<String> messages = new ArrayList<>();
+        client.registerMessageHandler("", message -> messages.add(message.getText()));
+
+        long start = System.nanoTime();
+        Assertions.assertEquals(4, replay.run());
+        Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(minimumMillis));
+        Assertions.assertEquals(State.CLOSED, client.getState());
+
+        return messages;
+    }
+
+    private static void record(FrameJournal journal, long connection, long timestamp, boolean fin, int opcode, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        journal.onFrame(connection, timestamp, fin, 0, opcode, payload, 0, payload.length);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.suppergerrie2.websocket.mux;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.common.Constants;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.common.messages.Message;
+import com.suppergerrie2.websocket.testserver.Clients;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stand-in server echoes every message of the protocol, so the data, credit and close messages of a channel all come
+ * back to the same channel. The credit a channel gives back for its received messages is therefore what lets it send more.
+ */
+@SuppressWarnings("BusyWait")
+class MultiplexerTest {
+
+    @Test
+    void channelsHaveTheirOwnHandlers() throws Exception {
+        try (StandInServer server = startServer()) {
+            Client client = new Client(server.uri("/"));
+            Multiplexer multiplexer = new Multiplexer(client);
+            BlockingQueue<String> first = new LinkedBlockingQueue<>();
+            BlockingQueue<String> second = new LinkedBlockingQueue<>();
+            Channel firstChannel = multiplexer.openChannel(1, message -> first.add(message.getText()));
+            Channel secondChannel = multiplexer.openChannel(2, message -> second.add(message.getText()));
+            Clients.start(client);
+
+            Assertions.assertTrue(multiplexer.isNegotiated());
+            for (int i = 0; i < 100; i++) {
+                firstChannel.send("first " + i);
+                secondChannel.send("second " + i);
+            }
+            firstChannel.send(new byte[0]);
+
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals("first " + i, first.poll(5, TimeUnit.SECONDS));
+                Assertions.assertEquals("second " + i, second.poll(5, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals("", first.poll(5, TimeUnit.SECONDS));
+
+            Assertions.assertThrows(IllegalStateException.class, () -> multiplexer.openChannel(1, message -> {
+            }));
+
+            firstChannel.close();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!firstChannel.isClosed() && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertTrue(firstChannel.isClosed());
+            Assertions.assertThrows(IllegalStateException.class, () -> firstChannel.send("closed"));
+
+            //The id can be used again once the channel is closed
+            multiplexer.openChannel(1, message -> {
+            });
+
+            client.stop();
+        }
+    }
+
+    @Test
+    void bigMessageDoesNotStarveOtherChannels() throws Exception {
+        try (StandInServer server = startServer()) {
+            Client client = new Client(server.uri("/"));
+            Multiplexer multiplexer = new Multiplexer(client);
+            List<String> order = new CopyOnWriteArrayList<>();
+            CountDownLatch received = new CountDownLatch(2);
+
+            byte[] big = new byte[Multiplexer.DEFAULT_WINDOW * 8];
+            for (int i = 0; i < big.length; i++) big[i] = (byte) (i * 13);
+
+            Channel bulk = multiplexer.openChannel(1, message -> {
+                Assertions.assertArrayEquals(big, message.getPayloadData());
+                order.add("bulk");
+                received.countDown();
+            });
+            Channel small = multiplexer.openChannel(2, message -> {
+                order.add(message.getText());
+                received.countDown();
+            });
+            Clients.start(client);
+
+            bulk.send(big);
+            small.send("small");
+
+            Assertions.assertTrue(received.await(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(List.of("small", "bulk"), order);
+            client.stop();
+        }
+    }
+
+    @Test
+    void slowChannelRunsOutOfCreditWithoutBlockingOthers() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try (StandInServer server = startServer()) {
+            Client client = new Client(server.uri("/"));
+            Multiplexer multiplexer = new Multiplexer(client, 64 * 1024);
+            CountDownLatch release = new CountDownLatch(1);
+            BlockingQueue<Message> slowMessages = new LinkedBlockingQueue<>();
+            BlockingQueue<String> fastMessages = new LinkedBlockingQueue<>();
+
+            Channel slow = multiplexer.openChannel(1, message -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                slowMessages.add(message);
+            }, executor);
+            Channel fast = multiplexer.openChannel(2, message -> fastMessages.add(message.getText()));
+            Clients.start(client);
+
+            //The handler holds on to the credit of everything after the first message
+            for (int i = 0; i < 64; i++) slow.send(new byte[4096]);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (slow.getSendCredit() > 0 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(0, slow.getSendCredit());
+            Assertions.assertTrue(slow.getQueuedBytes() > 0, "The slow channel should be waiting for credit");
+
+            for (int i = 0; i < 10; i++) fast.send("fast " + i);
+            for (int i = 0; i < 10; i++) Assertions.assertEquals("fast " + i, fastMessages.poll(5, TimeUnit.SECONDS));
+
+            release.countDown();
+            for (int i = 0; i < 64; i++) Assertions.assertNotNull(slowMessages.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, slow.getQueuedBytes());
+
+            client.stop();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void slowHandlerHoldsTheCreditOfMessagesBiggerThanAChunk() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        int window = 64 * 1024;
+        int size = Multiplexer.CHUNK_SIZE + 1;
+
+        try (StandInServer server = startServer()) {
+            Client client = new Client(server.uri("/"));
+            Multiplexer multiplexer = new Multiplexer(client, window);
+            CountDownLatch release = new CountDownLatch(1);
+            BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+
+            Channel slow = multiplexer.openChannel(1, message -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                messages.add(message);
+            }, executor);
+            Clients.start(client);
+
+            //Only the first message can pass its chunks through, the others wait for it and count against the window
+            int count = 64;
+            for (int i = 0; i < count; i++) slow.send(new byte[size]);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (slow.getSendCredit() > 0 && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(0, slow.getSendCredit());
+
+            Thread.sleep(100);
+            Assertions.assertEquals(0, slow.getSendCredit());
+            long sent = (long) count * size - slow.getQueuedBytes();
+            Assertions.assertTrue(sent <= window + size, sent + " bytes were sent to a handler that is stuck");
+
+            release.countDown();
+            for (int i = 0; i < count; i++) {
+                Message message = messages.poll(5, TimeUnit.SECONDS);
+                Assertions.assertNotNull(message);
+                Assertions.assertEquals(size, message.getPayloadData().length);
+            }
+            Assertions.assertEquals(0, slow.getQueuedBytes());
+
+            client.stop();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void channelsCannotSendWithoutTheProtocol() throws Exception {
+        try (StandInServer server = StandInServer.start(StandInServer.ECHO)) {
+            Client client = new Client(server.uri("/"));
+            Multiplexer multiplexer = new Multiplexer(client);
+            Channel channel = multiplexer.openChannel(1, message -> {
+            });
+            Clients.start(client);
+
+            Assertions.assertFalse(multiplexer.isNegotiated());
+            Assertions.assertThrows(IllegalStateException.class, () -> channel.send("not multiplexed"));
+            client.stop();
+        }
+    }
+
+    @Test
+    void dataForUnknownChannelsIsAnsweredWithAClose() throws Exception {
+        ByteBuffer data = ByteBuffer.allocate(Multiplexer.HEADER_SIZE + 2);
+        data.put(Multiplexer.DATA).putInt(7).put((byte) Multiplexer.FLAG_FIN).put((byte) 'x').flip();
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = startSendingServer(data.array(), received)) {
+            Client client = new Client(server.uri("/"));
+            new Multiplexer(client);
+            Clients.start(client);
+
+            byte[] close = received.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(close, "The unknown channel was not closed");
+            Assertions.assertEquals(Multiplexer.CLOSE, close[0]);
+            Assertions.assertEquals(7, ByteBuffer.wrap(close, 1, Integer.BYTES).getInt());
+            Assertions.assertEquals(State.OPEN, client.getState());
+            client.stop();
+        }
+    }
+
+    @Test
+    void malformedMessagesStopTheClient() throws Exception {
+        byte[][] malformed = {
+                {Multiplexer.DATA, 0, 0},
+                {Multiplexer.DATA, 0, 0, 0, 1},
+                {Multiplexer.CREDIT, 0, 0, 0, 1, 0},
+                {9, 0, 0, 0, 1},
+        };
+
+        for (byte[] message : malformed) {
+            assertClosedWith(message, Constants.StatusCode.PROTOCOL_ERROR);
+        }
+    }
+
+    @Test
+    void invalidTextStopsTheClient() throws Exception {
+        //An overlong encoding of '/'
+        byte[] message = {Multiplexer.DATA, 0, 0, 0, 1, Multiplexer.FLAG_FIN | Multiplexer.FLAG_TEXT, (byte) 0xC0, (byte) 0xAF};
+        assertClosedWith(message, Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+
+        //A character cut off by the end of the message
+        message = new byte[]{Multiplexer.DATA, 0, 0, 0, 1, Multiplexer.FLAG_FIN | Multiplexer.FLAG_TEXT, (byte) 0xE4, (byte) 0xB8};
+        assertClosedWith(message, Constants.StatusCode.INCONSISTENT_DATA_TYPE);
+    }
+
+    private static void assertClosedWith(byte[] message, Constants.StatusCode statusCode) throws Exception {
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = startSendingServer(message, received)) {
+            Client client = new Client(server.uri("/"));
+            List<Message> delivered = new CopyOnWriteArrayList<>();
+            new Multiplexer(client).openChannel(1, delivered::add);
+            //Not waiting for the handshake, the client can already be closing by the time it is seen open
+            client.start();
+
+            byte[] close = received.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(close, "The client did not close");
+            Assertions.assertEquals(statusCode.value, ByteBuffer.wrap(close).getShort() & 0xFFFF);
+            Assertions.assertTrue(delivered.isEmpty());
+        }
+    }
+
+    /**
+     * Start a server that agrees on the protocol, sends the message as soon as a client connected and puts the payloads
+     * of the binary and close frames it receives in the queue.
+     */
+    private static StandInServer startSendingServer(byte[] message, BlockingQueue<byte[]> received) throws IOException {
+        StandInServer server = StandInServer.start(new StandInServer.Listener() {
+            @Override
+            public void onOpen(StandInServer.Connection connection) {
+                connection.sendFrame(true, 0x2, message);
+            }
+
+            @Override
+            public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                if (opcode != 0x2 && opcode != 0x8) return;
+
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                received.add(bytes);
+
+                if (opcode == 0x8) {
+                    connection.sendFrame(true, 0x8, bytes);
+                    connection.close();
+                }
+            }
+        });
+        server.setProtocol(Multiplexer.PROTOCOL);
+        return server;
+    }
+
+    private static StandInServer startServer() throws IOException {
+        StandInServer server = StandInServer.start(StandInServer.ECHO);
+        server.setProtocol(Multiplexer.PROTOCOL);
+        return server;
+    }
+}
@@ -0,0 +1,110 @@
+package com.suppergerrie2.websocket.session;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class ReplayBufferTest {
+
+    @Test
+    void recordsAreSentAsTheyAreStored() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        ByteBuffer payload = ByteBuffer.wrap(new byte[]{1, 2, 3});
+
+        ByteBuffer message = buffer.add(7, (byte) 2, payload);
+
+        Assertions.assertEquals(0, payload.position(), "The position of the payload should not change");
+        Assertions.assertEquals(ResumableSession.DATA_HEADER_SIZE + 3, message.remaining());
+        Assertions.assertEquals(ResumableSession.DATA, message.get());
+        Assertions.assertEquals(7, message.getLong());
+        Assertions.assertEquals(2, message.get());
+        Assertions.assertEquals(1, message.get());
+        Assertions.assertEquals(2, message.get());
+        Assertions.assertEquals(3, message.get());
+    }
+
+    @Test
+    void releasingMakesRoomAcrossTheEnd() {
+        //Room for 3 records of 10 bytes, the fourth has to wrap around
+        int recordSize = ReplayBuffer.recordSize(10);
+        ReplayBuffer buffer = new ReplayBuffer(recordSize * 3 + recordSize / 2);
+
+        long sequence = 0;
+        for (int i = 0; i < 3; i++) buffer.add(++sequence, (byte) 0, payload(sequence));
+        Assertions.assertFalse(buffer.hasRoom(10));
+
+        buffer.release(1);
+        Assertions.assertTrue(buffer.hasRoom(10));
+        buffer.add(++sequence, (byte) 0, payload(sequence));
+        Assertions.assertFalse(buffer.hasRoom(10));
+
+        //Keep going around a few times
+        for (int i = 0; i < 20; i++) {
+            buffer.release(sequence - 2);
+            Assertions.assertTrue(buffer.hasRoom(10));
+            buffer.add(++sequence, (byte) 0, payload(sequence));
+            Assertions.assertEquals(3, buffer.size());
+            Assertions.assertEquals(List.of(sequence - 2, sequence - 1, sequence), sequences(buffer, 0, sequence));
+        }
+
+        Assertions.assertEquals(List.of(sequence), sequences(buffer, sequence - 1, sequence));
+
+        buffer.release(sequence);
+        Assertions.assertEquals(0, buffer.size());
+        Assertions.assertTrue(buffer.hasRoom(recordSize * 3 + recordSize / 2 - ReplayBuffer.recordSize(0)));
+    }
+
+    @Test
+    void replaysOnlyAfterTheSequence() {
+        ReplayBuffer buffer = new ReplayBuffer(4096);
+        for (long sequence = 1; sequence <= 10; sequence++) buffer.add(sequence, (byte) 0, payload(sequence));
+
+        buffer.release(4);
+        Assertions.assertEquals(List.of(5L, 6L, 7L, 8L, 9L, 10L), sequences(buffer, 0, 10));
+        Assertions.assertEquals(List.of(8L, 9L, 10L), sequences(buffer, 7, 10));
+        Assertions.assertEquals(List.of(), sequences(buffer, 10, 10));
+    }
+
+    @Test
+    void getFindsMessagesAcrossTheEnd() {
+        int recordSize = ReplayBuffer.recordSize(10);
+        ReplayBuffer buffer = new ReplayBuffer(recordSize * 3 + recordSize / 2);
+
+        long sequence = 0;
+        for (int i = 0; i < 20; i++) {
+            buffer.add(++sequence, (byte) 0, payload(sequence));
+            Assertions.assertEquals(sequence, buffer.get(sequence).getLong(1));
+            if (sequence > 2) Assertions.assertEquals(sequence - 2, buffer.get(sequence - 2).getLong(1));
+            buffer.release(sequence - 2);
+        }
+
+        Assertions.assertNull(buffer.get(sequence - 2), "Released messages are gone");
+        Assertions.assertNull(buffer.get(sequence + 1));
+        Assertions.assertEquals(sequence - 1, buffer.get(sequence - 1).getLong(1));
+    }
+
+    private static ByteBuffer payload(long sequence) {
+        byte[] bytes = new byte[10];
+        bytes[0] = (byte) sequence;
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * @return The sequence numbers after the given one up to the last that are still in the buffer
+     */
+    private static List<Long> sequences(ReplayBuffer buffer, long after, long last) {
+        List<Long> sequences = new ArrayList<>();
+        for (long sequence = after + 1; sequence <= last; sequence++) {
+            ByteBuffer message = buffer.get(sequence);
+            if (message == null) continue;
+
+            Assertions.assertEquals(sequence, message.getLong(1));
+            Assertions.assertEquals((byte) sequence, message.get(ResumableSession.DATA_HEADER_SIZE));
+            sequences.add(sequence);
+        }
+        return sequences;
+    }
+}
@@ -0,0 +1,129 @@
+package com.suppergerrie2.websocket.session;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+import com.suppergerrie2.websocket.testserver.ResumingPeer;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class ResumableSessionTest {
+
+    @Test
+    void replaysOnlyTheMissingTail() throws Exception {
+        ResumingPeer peer = new ResumingPeer();
+        try (StandInServer server = startServer(peer);
+             ResumableSession session = new ResumableSession(server.uri("/"))) {
+            start(session);
+
+            //Received and acknowledged
+            for (int i = 1; i <= 5; i++) session.send("message " + i);
+            await(() -> session.getLastAcknowledged() == 5);
+
+            //Received but the acknowledgement is lost with the connection
+            peer.setHoldAcks(true);
+            for (int i = 6; i <= 10; i++) session.send("message " + i);
+            await(() -> peer.getDataMessages() == 10);
+
+            //Lost with the connection
+            peer.setDropData(true);
+            for (int i = 11; i <= 15; i++) session.send("message " + i);
+
+            peer.disconnectAll();
+            peer.setDropData(false);
+            peer.setHoldAcks(false);
+
+            for (int i = 1; i <= 15; i++) Assertions.assertEquals("message " + i, peer.getReceived().poll(5, TimeUnit.SECONDS));
+            await(() -> session.getLastAcknowledged() == 15);
+
+            Assertions.assertEquals(2, peer.getConnections());
+            Assertions.assertEquals(15, peer.getDataMessages(), "Only the lost messages should have been sent again");
+        }
+    }
+
+    @Test
+    void messagesSentWhileDisconnectedArriveOnce() throws Exception {
+        ResumingPeer peer = new ResumingPeer();
+        try (StandInServer server = startServer(peer);
+             ResumableSession session = new ResumableSession(server.uri("/"))) {
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            session.registerMessageHandler(message -> received.add(message.getText()));
+            start(session);
+
+            peer.sendToAll("from server 1");
+            Assertions.assertEquals("from server 1", received.poll(5, TimeUnit.SECONDS));
+
+            peer.disconnectAll();
+            await(() -> !session.isResumed());
+
+            //Both sides send while there is no connection
+            peer.sendToAll("from server 2");
+            session.send("from client 1");
+            session.send(new byte[]{1, 2, 3});
+
+            Assertions.assertEquals("from server 2", received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("from client 1", peer.getReceived().poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("\u0001\u0002\u0003", peer.getReceived().poll(5, TimeUnit.SECONDS));
+
+            peer.sendToAll("from server 3");
+            Assertions.assertEquals("from server 3", received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertNull(received.poll(200, TimeUnit.MILLISECONDS), "Messages should be delivered exactly once");
+        }
+    }
+
+    @Test
+    void sendWaitsUntilTheBufferHasRoom() throws Exception {
+        ResumingPeer peer = new ResumingPeer();
+        int capacity = ReplayBuffer.recordSize(100) * 4;
+
+        try (StandInServer server = startServer(peer);
+             ResumableSession session = new ResumableSession(server.uri("/"), ClientOptions.defaults(), capacity)) {
+            start(session);
+            Assertions.assertThrows(IllegalStateException.class, () -> session.send(new byte[capacity]));
+
+            peer.setHoldAcks(true);
+            for (int i = 0; i < 4; i++) session.send(new byte[100]);
+
+            Thread sender = new Thread(() -> session.send(new byte[100]));
+            sender.start();
+            sender.join(200);
+            Assertions.assertTrue(sender.isAlive(), "Sending should wait while the buffer is full");
+
+            //The resume tells the session the server received everything
+            peer.setHoldAcks(false);
+            peer.disconnectAll();
+
+            sender.join(5000);
+            Assertions.assertFalse(sender.isAlive());
+            Assertions.assertEquals(5, session.getLastSent());
+            await(() -> peer.getReceived().size() == 5);
+        }
+    }
+
+    private static StandInServer startServer(ResumingPeer peer) throws IOException {
+        StandInServer server = StandInServer.start(peer);
+        server.setProtocol(ResumableSession.PROTOCOL);
+        return server;
+    }
+
+    private static void start(ResumableSession session) throws Exception {
+        session.start();
+        awaitOpen(session.getClient());
+        await(session::isResumed);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(1);
+
+        Assertions.assertTrue(condition.getAsBoolean(), "Timed out");
+    }
+}
@@ -0,0 +1,45 @@
+package com.suppergerrie2.websocket.testserver;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.common.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for the clients that connect to the test servers.
+ */
+public final class Clients {
+
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private Clients() {
+    }
+
+    /**
+     * Start the client and wait for the handshake.
+     *
+     * @param client The client to start
+     * @return The client, which is open
+     * @throws IOException When the client could not connect or is not open within 5 seconds
+     */
+    public static Client start(Client client) throws IOException, InterruptedException {
+        client.start();
+        awaitOpen(client);
+        return client;
+    }
+
+    /**
+     * Wait for the handshake of a client that was started.
+     *
+     * @param client The started client
+     * @throws IOException When the client is not open within 5 seconds
+     */
+    @SuppressWarnings("BusyWait")
+    public static void awaitOpen(Client client) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT_NANOS;
+        while (client.getState() == State.HANDSHAKE && System.nanoTime() < deadline) Thread.sleep(1);
+
+        if (client.getState() != State.OPEN) throw new IOException("Client did not connect, state is " + client.getState());
+    }
+}
@@ -0,0 +1,57 @@
+package com.suppergerrie2.websocket.testserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single case of the {@link ConformanceServer}, numbered after the matching case of the Autobahn test suite.
+ */
+public class ConformanceCase {
+
+    /**
+     * The server side of a case.
+     */
+    public interface Script {
+        void run(ConformanceServer.Peer peer) throws Exception;
+    }
+
+    public final String id;
+    public final String description;
+    public final long budgetMillis;
+    final Script script;
+
+    public ConformanceCase(String id, String description, long budgetMillis, Script script) {
+        this.id = id;
+        this.description = description;
+        this.budgetMillis = budgetMillis;
+        this.script = script;
+    }
+
+    /**
+     * The outcome of a case.
+     */
+    public static class Result {
+        public final ConformanceCase conformanceCase;
+        public final String failure;
+        public final long durationNanos;
+
+        Result(ConformanceCase conformanceCase, String failure, long durationNanos) {
+            this.conformanceCase = conformanceCase;
+            this.failure = failure;
+            this.durationNanos = durationNanos;
+        }
+
+        public boolean passed() {
+            return failure == null;
+        }
+
+        /**
+         * @return A single line describing the result, in a format that stays stable between builds.
+         */
+        @Override
+        public String toString() {
+            return String.format("%-8s %-4s %8d ms / %6d ms  %s%s", conformanceCase.id, passed() ? "OK" : "FAIL",
+                                 TimeUnit.NANOSECONDS.toMillis(durationNanos), conformanceCase.budgetMillis,
+                                 conformanceCase.description, passed() ? "" : " -- " + failure);
+        }
+    }
+}
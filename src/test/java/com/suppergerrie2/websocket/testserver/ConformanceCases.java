@@ -0,0 +1,397 @@
+package com.suppergerrie2.websocket.testserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The cases run by the {@link ConformanceServer}, grouped in the same families as the Autobahn test suite:
+ * <ul>
+ *     <li>1: Framing of text and binary messages</li>
+ *     <li>2: Pings and pongs</li>
+ *     <li>3: Reserved bits</li>
+ *     <li>4: Reserved opcodes</li>
+ *     <li>5: Fragmentation</li>
+ *     <li>6: UTF-8 handling</li>
+ *     <li>7: Closing</li>
+ *     <li>9: Limits and performance</li>
+ * </ul>
+ */
+public final class ConformanceCases {
+
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CONTINUATION = 0x0;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+
+    private static final int PROTOCOL_ERROR = 1002;
+    private static final int INCONSISTENT_DATA_TYPE = 1007;
+
+    private static final long DEFAULT_BUDGET = 2000;
+
+    private ConformanceCases() {
+    }
+
+    /**
+     * @return The cases of family 1 up to 7, in the order they should be run
+     */
+    public static List<ConformanceCase> protocol() {
+        List<ConformanceCase> cases = new ArrayList<>();
+        framing(cases);
+        pingPong(cases);
+        reservedBits(cases);
+        opcodes(cases);
+        fragmentation(cases);
+        utf8(cases);
+        closing(cases);
+        return Collections.unmodifiableList(cases);
+    }
+
+    /**
+     * @return The cases of family 9, in the order they should be run
+     */
+    public static List<ConformanceCase> limits() {
+        List<ConformanceCase> cases = new ArrayList<>();
+        limits(cases);
+        return Collections.unmodifiableList(cases);
+    }
+
+    private static void framing(List<ConformanceCase> cases) {
+        int[] lengths = {0, 125, 126, 127, 128, 65535, 65536};
+
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] text = text(lengths[i]);
+            cases.add(new ConformanceCase("1.1." + (i + 1), String.format("Text message with %d bytes", lengths[i]),
+                                          DEFAULT_BUDGET, echo(TEXT, text)));
+        }
+
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] binary = binary(lengths[i]);
+            cases.add(new ConformanceCase("1.2." + (i + 1), String.format("Binary message with %d bytes", lengths[i]),
+                                          DEFAULT_BUDGET, echo(BINARY, binary)));
+        }
+    }
+
+    private static void pingPong(List<ConformanceCase> cases) {
+        cases.add(new ConformanceCase("2.1", "Ping without payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PING, new byte[0]);
+            peer.expectPong(new byte[0]);
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("2.2", "Ping with text payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PING, text(20));
+            peer.expectPong(text(20));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("2.3", "Ping with binary payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PING, binary(8));
+            peer.expectPong(binary(8));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("2.4", "Ping with 125 bytes payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PING, binary(125));
+            peer.expectPong(binary(125));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("2.5", "Ping with 126 bytes payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PING, binary(126));
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+
+        cases.add(new ConformanceCase("2.6", "Unsolicited pong followed by a ping", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, PONG, text(10));
+            peer.sendFrame(true, PING, binary(10));
+            peer.expectPong(binary(10));
+            peer.closeNormally();
+        }));
+
+        //A client may answer only the last of multiple pings (RFC-6455 Section 5.5.3.), so only that one is required
+        cases.add(new ConformanceCase("2.10", "10 pings in a row", DEFAULT_BUDGET, peer -> {
+            for (int i = 0; i < 10; i++) peer.sendFrame(true, PING, ("ping " + i).getBytes(StandardCharsets.UTF_8));
+            peer.expectPong("ping 9".getBytes(StandardCharsets.UTF_8));
+            peer.closeNormally();
+        }));
+    }
+
+    private static void reservedBits(List<ConformanceCase> cases) {
+        for (int rsv = 1; rsv <= 7; rsv++) {
+            int bits = rsv;
+            cases.add(new ConformanceCase("3." + rsv, String.format("Text message with reserved bits %d%d%d set",
+                                                                    (bits >> 2) & 1, (bits >> 1) & 1, bits & 1),
+                                          DEFAULT_BUDGET, peer -> {
+                peer.sendFrame(true, bits, TEXT, text(10));
+                peer.expectFailure(PROTOCOL_ERROR);
+            }));
+        }
+
+        cases.add(new ConformanceCase("3.8", "Ping with reserved bit set", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, 0b100, PING, text(10));
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+    }
+
+    private static void opcodes(List<ConformanceCase> cases) {
+        int[] reservedData = {0x3, 0x4, 0x5, 0x6, 0x7};
+        for (int i = 0; i < reservedData.length; i++) {
+            int opcode = reservedData[i];
+            cases.add(new ConformanceCase("4.1." + (i + 1), String.format("Reserved data opcode %X", opcode),
+                                          DEFAULT_BUDGET, peer -> {
+                peer.sendFrame(true, opcode, binary(10));
+                peer.expectFailure(PROTOCOL_ERROR);
+            }));
+        }
+
+        int[] reservedControl = {0xB, 0xC, 0xD, 0xE, 0xF};
+        for (int i = 0; i < reservedControl.length; i++) {
+            int opcode = reservedControl[i];
+            cases.add(new ConformanceCase("4.2." + (i + 1), String.format("Reserved control opcode %X", opcode),
+                                          DEFAULT_BUDGET, peer -> {
+                peer.sendFrame(true, opcode, binary(10));
+                peer.expectFailure(PROTOCOL_ERROR);
+            }));
+        }
+    }
+
+    private static void fragmentation(List<ConformanceCase> cases) {
+        cases.add(new ConformanceCase("5.1", "Fragmented ping", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(false, PING, text(5));
+            peer.sendFrame(true, CONTINUATION, text(5));
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+
+        cases.add(new ConformanceCase("5.3", "Text message in 2 fragments", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(false, TEXT, text("fragment1"));
+            peer.sendFrame(true, CONTINUATION, text("fragment2"));
+            peer.expectMessage(TEXT, text("fragment1fragment2"));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("5.6", "Text message in 2 fragments with a ping in between", DEFAULT_BUDGET,
+                                      peer -> {
+            peer.sendFrame(false, TEXT, text("fragment1"));
+            peer.sendFrame(true, PING, text("ping"));
+            peer.sendFrame(true, CONTINUATION, text("fragment2"));
+            peer.expectPong(text("ping"));
+            peer.expectMessage(TEXT, text("fragment1fragment2"));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("5.9", "Continuation without a message to continue", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, CONTINUATION, text("fragment1"));
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+
+        cases.add(new ConformanceCase("5.15", "New text message while the previous one is not finished",
+                                      DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(false, TEXT, text("fragment1"));
+            peer.sendFrame(false, TEXT, text("fragment2"));
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+
+        cases.add(new ConformanceCase("5.20", "Binary message in 5 fragments", DEFAULT_BUDGET, peer -> {
+            byte[] binary = binary(500);
+            for (int i = 0; i < 5; i++) {
+                peer.sendFrame(i == 4, i == 0 ? BINARY : CONTINUATION, Arrays.copyOfRange(binary, i * 100, i * 100 + 100));
+            }
+            peer.expectMessage(BINARY, binary);
+            peer.closeNormally();
+        }));
+    }
+
+    private static void utf8(List<ConformanceCase> cases) {
+        cases.add(new ConformanceCase("6.1", "Empty text message", DEFAULT_BUDGET, echo(TEXT, new byte[0])));
+        cases.add(new ConformanceCase("6.2", "Valid multi byte text", DEFAULT_BUDGET,
+                                      echo(TEXT, text("Hello-\u00B5@\u00DF\u00F6\u00E4\u00FC\u00E0\u00E1-UTF-8!! \uD83D\uDE00"))));
+
+        byte[] split = text("\u03BA\u1F79\u03C3\u03BC\u03B5");
+        cases.add(new ConformanceCase("6.3", "Valid text fragmented inside a character", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(false, TEXT, Arrays.copyOfRange(split, 0, 2));
+            peer.sendFrame(false, CONTINUATION, Arrays.copyOfRange(split, 2, 4));
+            peer.sendFrame(true, CONTINUATION, Arrays.copyOfRange(split, 4, split.length));
+            peer.expectMessage(TEXT, split);
+            peer.closeNormally();
+        }));
+
+        byte[][] invalid = {
+                {(byte) 0xC0, (byte) 0x80}, //Overlong encoding
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80}, //Surrogate
+                {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80}, //Beyond U+10FFFF
+                {(byte) 0xFE}, //Invalid leading byte
+                {(byte) 0x80}, //Lone continuation byte
+                {(byte) 0xCE, (byte) 0xBA, (byte) 0xE1}, //Truncated character at the end
+        };
+        for (int i = 0; i < invalid.length; i++) {
+            byte[] bytes = invalid[i];
+            cases.add(new ConformanceCase("6.4." + (i + 1), "Invalid text " + hex(bytes), DEFAULT_BUDGET, peer -> {
+                peer.sendFrame(true, TEXT, bytes);
+                peer.expectFailure(INCONSISTENT_DATA_TYPE);
+            }));
+        }
+
+        cases.add(new ConformanceCase("6.5", "Invalid text in the second fragment", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(false, TEXT, text("valid"));
+            peer.sendFrame(true, CONTINUATION, new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0x80});
+            peer.expectFailure(INCONSISTENT_DATA_TYPE);
+        }));
+    }
+
+    private static void closing(List<ConformanceCase> cases) {
+        cases.add(new ConformanceCase("7.1.1", "Echo a message and close", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, TEXT, text("Hello World!"));
+            peer.expectMessage(TEXT, text("Hello World!"));
+            peer.closeNormally();
+        }));
+
+        cases.add(new ConformanceCase("7.3.1", "Close without payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, CLOSE, new byte[0]);
+            peer.expectClose(1000, 1005);
+        }));
+
+        cases.add(new ConformanceCase("7.3.2", "Close with a 1 byte payload", DEFAULT_BUDGET, peer -> {
+            peer.sendFrame(true, CLOSE, new byte[]{0x3});
+            peer.expectFailure(PROTOCOL_ERROR);
+        }));
+
+        cases.add(new ConformanceCase("7.3.3", "Close with status 1000 and a reason", DEFAULT_BUDGET, peer -> {
+            peer.sendClose(1000, text("Bye!"));
+            peer.expectClose(1000);
+        }));
+
+        cases.add(new ConformanceCase("7.5.1", "Close with an invalid UTF-8 reason", DEFAULT_BUDGET, peer -> {
+            peer.sendClose(1000, new byte[]{(byte) 0xCE, (byte) 0xBA, (byte) 0xED, (byte) 0xA0, (byte) 0x80});
+            peer.expectFailure(INCONSISTENT_DATA_TYPE);
+        }));
+
+        int[] valid = {1000, 1001, 1002, 1003, 1007, 1008, 1009, 1010, 1011, 3000, 3999, 4000, 4999};
+        for (int i = 0; i < valid.length; i++) {
+            int statusCode = valid[i];
+            cases.add(new ConformanceCase("7.7." + (i + 1), "Close with valid status " + statusCode, DEFAULT_BUDGET,
+                                          peer -> {
+                peer.sendClose(statusCode, new byte[0]);
+                peer.expectClose(statusCode, 1000);
+            }));
+        }
+
+        int[] invalid = {0, 999, 1004, 1005, 1006, 1016, 1100, 2000, 2999};
+        for (int i = 0; i < invalid.length; i++) {
+            int statusCode = invalid[i];
+            cases.add(new ConformanceCase("7.9." + (i + 1), "Close with invalid status " + statusCode,
+                                          DEFAULT_BUDGET, peer -> {
+                peer.sendClose(statusCode, new byte[0]);
+                peer.expectFailure(PROTOCOL_ERROR);
+            }));
+        }
+    }
+
+    private static void limits(List<ConformanceCase> cases) {
+        int[] sizes = {64 << 10, 256 << 10, 1 << 20, 4 << 20, 8 << 20, 16 << 20};
+        for (int i = 0; i < sizes.length; i++) {
+            cases.add(new ConformanceCase("9.1." + (i + 1), String.format("Text message with %s", size(sizes[i])),
+                                          budgetFor(sizes[i]), echo(TEXT, text(sizes[i]))));
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            cases.add(new ConformanceCase("9.2." + (i + 1), String.format("Binary message with %s", size(sizes[i])),
+                                          budgetFor(sizes[i]), echo(BINARY, binary(sizes[i]))));
+        }
+
+        int messageSize = 4 << 20;
+        int[] fragmentSizes = {64, 256, 1 << 10, 4 << 10, 16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20};
+        for (int i = 0; i < fragmentSizes.length; i++) {
+            int fragmentSize = fragmentSizes[i];
+            cases.add(new ConformanceCase("9.3." + (i + 1),
+                                          String.format("Text message with %s in fragments of %s", size(messageSize),
+                                                        size(fragmentSize)), budgetFor(messageSize),
+                                          fragmented(TEXT, text(messageSize), fragmentSize)));
+        }
+        for (int i = 0; i < fragmentSizes.length; i++) {
+            int fragmentSize = fragmentSizes[i];
+            cases.add(new ConformanceCase("9.4." + (i + 1),
+                                          String.format("Binary message with %s in fragments of %s",
+                                                        size(messageSize), size(fragmentSize)),
+                                          budgetFor(messageSize), fragmented(BINARY, binary(messageSize), fragmentSize)));
+        }
+
+        int[] messageSizes = {0, 16, 64, 256, 1 << 10, 4 << 10};
+        for (int i = 0; i < messageSizes.length; i++) {
+            int size = messageSizes[i];
+            cases.add(new ConformanceCase("9.7." + (i + 1), String.format("1000 text messages of %s", size(size)),
+                                          budgetFor(size * 1000), many(TEXT, text(size), 1000)));
+        }
+        for (int i = 0; i < messageSizes.length; i++) {
+            int size = messageSizes[i];
+            cases.add(new ConformanceCase("9.8." + (i + 1), String.format("1000 binary messages of %s", size(size)),
+                                          budgetFor(size * 1000), many(BINARY, binary(size), 1000)));
+        }
+    }
+
+    /**
+     * The time budget for a case that moves the given amount of bytes. A client should at least echo 4 MB/s.
+     */
+    private static long budgetFor(long bytes) {
+        return DEFAULT_BUDGET + bytes / (4 << 10);
+    }
+
+    private static ConformanceCase.Script echo(int opcode, byte[] payload) {
+        return peer -> {
+            peer.sendFrame(true, opcode, payload);
+            peer.expectMessage(opcode, payload);
+            peer.closeNormally();
+        };
+    }
+
+    private static ConformanceCase.Script fragmented(int opcode, byte[] payload, int fragmentSize) {
+        return peer -> {
+            for (int i = 0; i < payload.length; i += fragmentSize) {
+                int end = Math.min(payload.length, i + fragmentSize);
+                peer.sendFrame(end == payload.length, i == 0 ? opcode : CONTINUATION, Arrays.copyOfRange(payload, i, end));
+            }
+            peer.expectMessage(opcode, payload);
+            peer.closeNormally();
+        };
+    }
+
+    private static ConformanceCase.Script many(int opcode, byte[] payload, int count) {
+        return peer -> {
+            for (int i = 0; i < count; i++) peer.sendFrame(true, opcode, payload);
+            for (int i = 0; i < count; i++) peer.expectMessage(opcode, payload);
+            peer.closeNormally();
+        };
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] text(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) ('*' + i % 64);
+        return bytes;
+    }
+
+    private static byte[] binary(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String size(int bytes) {
+        if (bytes >= 1 << 20) return (bytes >> 20) + " MB";
+        if (bytes >= 1 << 10) return (bytes >> 10) + " KB";
+        return bytes + " B";
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) builder.append(String.format("%02X", b));
+        return builder.toString();
+    }
+}
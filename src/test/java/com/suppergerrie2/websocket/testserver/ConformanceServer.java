@@ -0,0 +1,281 @@
+package com.suppergerrie2.websocket.testserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for the Autobahn fuzzing server.
+ * <p>
+ * Every {@link ConformanceCase} gets its own connection on the path /case/&lt;id&gt;. The case script runs on the thread
+ * calling {@link #run(ConformanceCase, ClientStarter)} and talks to the client through a {@link Peer}, while the client
+ * under test is expected to echo every text and binary message it receives.
+ */
+public class ConformanceServer implements Closeable {
+
+    /**
+     * Starts the client under test for a case.
+     */
+    public interface ClientStarter {
+        void start(URI uri) throws Exception;
+    }
+
+    /**
+     * A case failed, the message explains what was expected.
+     */
+    public static class CaseFailedException extends Exception {
+        public CaseFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A frame as it was received from the client.
+     */
+    public static class Frame {
+        public final boolean fin;
+        public final int rsv;
+        public final int opcode;
+        public final byte[] payload;
+
+        Frame(boolean fin, int rsv, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.rsv = rsv;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{opcode %X, fin %b, %d bytes}", opcode, fin, payload.length);
+        }
+    }
+
+    //Put in the frame queue when the tcp connection is closed
+    private static final Frame DROPPED = new Frame(true, 0, -1, new byte[0]);
+
+    private final StandInServer server;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private ConformanceServer() throws IOException {
+        server = StandInServer.start(new StandInServer.Listener() {
+            @Override
+            public void onOpen(StandInServer.Connection connection) {
+                Peer peer = peers.get(connection.getPath());
+                if (peer == null) {
+                    connection.close();
+                    return;
+                }
+
+                connection.attachment = peer;
+                peer.connection = connection;
+                peer.opened.add(connection);
+            }
+
+            @Override
+            public void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                ((Peer) connection.attachment).frames.add(new Frame(fin, rsv, opcode, bytes));
+            }
+
+            @Override
+            public void onClose(StandInServer.Connection connection) {
+                if (connection.attachment != null) ((Peer) connection.attachment).frames.add(DROPPED);
+            }
+        });
+    }
+
+    public static ConformanceServer start() throws IOException {
+        return new ConformanceServer();
+    }
+
+    /**
+     * Run a single case against a new client.
+     *
+     * @param conformanceCase The case to run
+     * @param starter         Starts the client under test on the given uri
+     * @return The result of the case
+     */
+    public ConformanceCase.Result run(ConformanceCase conformanceCase, ClientStarter starter) {
+        String path = "/case/" + conformanceCase.id;
+        long budget = TimeUnit.MILLISECONDS.toNanos(conformanceCase.budgetMillis);
+        Peer peer = new Peer(System.nanoTime() + budget);
+        peers.put(path, peer);
+
+        long start = System.nanoTime();
+        String failure = null;
+        try {
+            starter.start(server.uri(path));
+
+            if (peer.opened.poll(conformanceCase.budgetMillis, TimeUnit.MILLISECONDS) == null) {
+                throw new CaseFailedException("Client did not finish the handshake");
+            }
+
+            conformanceCase.script.run(peer);
+        } catch (CaseFailedException e) {
+            failure = e.getMessage();
+        } catch (Exception e) {
+            failure = e.toString();
+        } finally {
+            peers.remove(path);
+            if (peer.connection != null) peer.connection.close();
+        }
+
+        long durationNanos = System.nanoTime() - start;
+        if (failure == null && durationNanos > budget) {
+            failure = String.format("Took %d ms but the budget is %d ms", TimeUnit.NANOSECONDS.toMillis(durationNanos),
+                                    conformanceCase.budgetMillis);
+        }
+
+        return new ConformanceCase.Result(conformanceCase, failure, durationNanos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * The server side of a single case. All methods wait at most until the budget of the case has run out.
+     */
+    public static class Peer {
+
+        private final BlockingQueue<StandInServer.Connection> opened = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        private final long deadline;
+        private volatile StandInServer.Connection connection;
+
+        Peer(long deadline) {
+            this.deadline = deadline;
+        }
+
+        public void sendFrame(boolean fin, int opcode, byte[] payload) {
+            connection.sendFrame(fin, opcode, payload);
+        }
+
+        public void sendFrame(boolean fin, int rsv, int opcode, byte[] payload) {
+            connection.sendFrame(fin, rsv, opcode, ByteBuffer.wrap(payload));
+        }
+
+        /**
+         * Send a close frame with the given status code and reason.
+         */
+        public void sendClose(int statusCode, byte[] reason) {
+            ByteBuffer payload = ByteBuffer.allocate(2 + reason.length);
+            payload.putShort((short) statusCode).put(reason).flip();
+            connection.sendFrame(true, 0x8, payload);
+        }
+
+        /**
+         * Wait for the next frame of the client.
+         *
+         * @return The frame
+         * @throws CaseFailedException When the client closed the tcp connection or the budget ran out
+         */
+        public Frame nextFrame() throws CaseFailedException, InterruptedException {
+            Frame frame = frames.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (frame == null) throw new CaseFailedException("Budget ran out while waiting for a frame");
+            if (frame == DROPPED) throw new CaseFailedException("Client dropped the connection");
+            return frame;
+        }
+
+        /**
+         * Wait for a complete message of the client and check that it equals the expected message.
+         * Fragmented messages are put together, pongs in between are skipped.
+         */
+        public void expectMessage(int opcode, byte[] expected) throws CaseFailedException, InterruptedException {
+            Frame frame = nextDataFrame();
+            if (frame.opcode != opcode) {
+                throw new CaseFailedException(String.format("Expected opcode %X but got %s", opcode, frame));
+            }
+
+            ByteBuffer message = ByteBuffer.allocate(expected.length);
+            while (true) {
+                if (frame.payload.length > message.remaining()) {
+                    throw new CaseFailedException("Received a longer message than expected");
+                }
+                message.put(frame.payload);
+
+                if (frame.fin) break;
+
+                frame = nextDataFrame();
+                if (frame.opcode != 0x0) {
+                    throw new CaseFailedException("Expected a continuation frame but got " + frame);
+                }
+            }
+
+            if (message.hasRemaining() || !Arrays.equals(message.array(), expected)) {
+                throw new CaseFailedException(
+                        String.format("Echoed message is different, expected %d bytes but got %d", expected.length,
+                                      message.position()));
+            }
+        }
+
+        /**
+         * Wait for a pong of the client with the given payload. Earlier pongs with a different payload are skipped.
+         */
+        public void expectPong(byte[] payload) throws CaseFailedException, InterruptedException {
+            while (true) {
+                Frame frame = nextFrame();
+                if (frame.opcode != 0xA) throw new CaseFailedException("Expected a pong but got " + frame);
+                if (Arrays.equals(frame.payload, payload)) return;
+            }
+        }
+
+        /**
+         * Close the connection normally: send a close frame and wait for the client to answer it.
+         */
+        public void closeNormally() throws CaseFailedException, InterruptedException {
+            sendClose(1000, new byte[0]);
+            expectClose(1000);
+        }
+
+        /**
+         * Wait for the client to send a close frame with one of the given status codes.
+         */
+        public void expectClose(int... statusCodes) throws CaseFailedException, InterruptedException {
+            Frame frame = nextFrame();
+            checkClose(frame, statusCodes);
+        }
+
+        /**
+         * Wait for the client to fail the connection, either by sending a close frame with one of the given status
+         * codes or by dropping the connection.
+         */
+        public void expectFailure(int... statusCodes) throws CaseFailedException, InterruptedException {
+            Frame frame = frames.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (frame == null) throw new CaseFailedException("Client did not fail the connection");
+            if (frame == DROPPED) return;
+
+            checkClose(frame, statusCodes);
+        }
+
+        private Frame nextDataFrame() throws CaseFailedException, InterruptedException {
+            Frame frame;
+            do {
+                frame = nextFrame();
+            } while (frame.opcode == 0xA);
+            return frame;
+        }
+
+        private static void checkClose(Frame frame, int... statusCodes) throws CaseFailedException {
+            if (frame.opcode != 0x8) throw new CaseFailedException("Expected a close frame but got " + frame);
+
+            int statusCode = frame.payload.length >= 2 ? ((frame.payload[0] & 0xFF) << 8) | (frame.payload[1] & 0xFF) : 1005;
+            for (int allowed : statusCodes) {
+                if (allowed == statusCode) return;
+            }
+
+            throw new CaseFailedException(
+                    String.format("Expected close status %s but got %d", Arrays.toString(statusCodes), statusCode));
+        }
+    }
+}
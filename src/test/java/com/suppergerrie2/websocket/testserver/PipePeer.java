@@ -0,0 +1,140 @@
+package com.suppergerrie2.websocket.testserver;
+
+import com.suppergerrie2.websocket.common.Helpers;
+import com.suppergerrie2.websocket.common.messages.FrameView;
+import com.suppergerrie2.websocket.transport.MemoryPipe;
+import com.suppergerrie2.websocket.transport.Transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plays the server on the server end of a {@link MemoryPipe}: it answers the handshake and then behaves like
+ * {@link StandInServer#ECHO}, echoing data frames, answering pings and echoing the close frame.
+ */
+public final class PipePeer {
+
+    private final Transport transport;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final FrameView frame = new FrameView();
+    private final ByteBuffer header = ByteBuffer.allocate(10);
+    private final ByteBuffer[] frameBuffers = new ByteBuffer[2];
+
+    private PipePeer(Transport transport) {
+        this.transport = transport;
+        buffer.limit(0);
+    }
+
+    /**
+     * Start echoing on a daemon thread until the pipe is closed.
+     *
+     * @param transport The server end of the pipe
+     * @return The started thread
+     */
+    public static Thread echo(Transport transport) {
+        Thread thread = new Thread(() -> new PipePeer(transport).run(), "pipe-peer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void run() {
+        try {
+            handshake();
+
+            while (transport.isOpen()) {
+                if (!frame.wrap(buffer) || !frame.isComplete()) {
+                    fill();
+                    continue;
+                }
+
+                frame.unmask();
+                int payloadEnd = frame.payloadOffset() + (int) frame.payloadLength();
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(payloadEnd).position(frame.payloadOffset());
+                buffer.position(payloadEnd);
+
+                switch (frame.opcodeBits()) {
+                    case 0x8:
+                        send(true, 0x8, payload);
+                        transport.close();
+                        break;
+                    case 0x9:
+                        send(true, 0xA, payload);
+                        break;
+                    case 0xA:
+                        break;
+                    default:
+                        send(frame.fin(), frame.opcodeBits(), payload);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            //The client closed the pipe
+        }
+    }
+
+    private void handshake() throws IOException {
+        String request;
+        while (true) {
+            String buffered = new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1);
+            int end = buffered.indexOf("\r\n\r\n");
+            if (end != -1) {
+                request = buffered.substring(0, end);
+                buffer.position(buffer.position() + end + 4);
+                break;
+            }
+            fill();
+        }
+
+        String key = "";
+        for (String line : request.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("sec-websocket-key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + Helpers.getSecWebsocket(key) + "\r\n\r\n";
+        transport.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private void fill() throws IOException {
+        //Grow the buffer when a frame doesn't fit
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            bigger.put(buffer).flip();
+            buffer = bigger;
+        }
+
+        buffer.compact();
+        try {
+            if (transport.read(buffer) == -1) throw new IOException("End of stream");
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private void send(boolean fin, int opcode, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+
+        header.clear();
+        header.put((byte) ((fin ? 0b10000000 : 0) | opcode));
+        if (length > 65535) {
+            header.put((byte) 127).putLong(length);
+        } else if (length > 125) {
+            header.put((byte) 126).putShort((short) length);
+        } else {
+            header.put((byte) length);
+        }
+        header.flip();
+
+        frameBuffers[0] = header;
+        frameBuffers[1] = payload;
+        transport.write(frameBuffers);
+    }
+}
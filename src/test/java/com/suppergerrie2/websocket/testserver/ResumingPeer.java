@@ -0,0 +1,166 @@
+package com.suppergerrie2.websocket.testserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Plays the server side of the resume.v1 protocol on a {@link StandInServer}, keeping the sessions across connections.
+ * <p>
+ * Data messages are acknowledged right away unless acknowledging is held back, and they can be dropped to act like
+ * messages that were lost when the connection broke. Messages sent to the clients are logged, and replayed after the
+ * last one the client received when it resumes.
+ */
+public final class ResumingPeer implements StandInServer.Listener {
+
+    private static final byte DATA = 0;
+    private static final byte ACK = 1;
+    private static final byte RESUME = 2;
+
+    private final Map<UUID, Session> sessions = new HashMap<>();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private int dataMessages;
+    private int connections;
+    private boolean dropData;
+    private boolean holdAcks;
+
+    /**
+     * @return The payloads of the data messages that were accepted, in order and without the repeated ones
+     */
+    public BlockingQueue<String> getReceived() {
+        return received;
+    }
+
+    /**
+     * @return Every data message that arrived and was not dropped, including the repeated ones
+     */
+    public synchronized int getDataMessages() {
+        return dataMessages;
+    }
+
+    /**
+     * @return The amount of connections that resumed or started a session
+     */
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @param dropData Whether to ignore data messages, as if they were lost on the way
+     */
+    public synchronized void setDropData(boolean dropData) {
+        this.dropData = dropData;
+    }
+
+    /**
+     * @param holdAcks Whether to stop acknowledging data messages, they are still received
+     */
+    public synchronized void setHoldAcks(boolean holdAcks) {
+        this.holdAcks = holdAcks;
+    }
+
+    /**
+     * Close the tcp connection of every session, without a close frame.
+     */
+    public synchronized void disconnectAll() {
+        for (Session session : sessions.values()) {
+            if (session.connection == null) continue;
+
+            session.connection.close();
+            session.connection = null;
+        }
+    }
+
+    /**
+     * Send a text message to every session, or log it until the client resumes.
+     *
+     * @param text The text to send
+     */
+    public synchronized void sendToAll(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        for (Session session : sessions.values()) {
+            ByteBuffer message = ByteBuffer.allocate(1 + Long.BYTES + 1 + payload.length);
+            message.put(DATA).putLong(session.sent.size() + 1).put((byte) 2).put(payload).flip();
+            session.sent.add(message);
+
+            if (session.connection != null) session.connection.sendFrame(true, 0x2, message.duplicate());
+        }
+    }
+
+    @Override
+    public synchronized void onFrame(StandInServer.Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload) {
+        if (opcode == 0x8) {
+            connection.sendFrame(true, 0x8, payload);
+            connection.close();
+            return;
+        }
+        if (opcode != 0x2 || !payload.hasRemaining()) return;
+
+        byte type = payload.get();
+        if (type == RESUME) {
+            resume(connection, new UUID(payload.getLong(), payload.getLong()), payload.getLong());
+            return;
+        }
+
+        Session session = (Session) connection.attachment;
+        //Frames that were still arriving on a connection that was disconnected
+        if (session == null || session.connection != connection) return;
+
+        if (type == ACK) {
+            session.acknowledged = payload.getLong();
+        } else if (type == DATA && !dropData) {
+            long sequence = payload.getLong();
+            payload.get();
+            dataMessages++;
+
+            if (sequence == session.lastReceived + 1) {
+                session.lastReceived = sequence;
+                received.add(StandardCharsets.UTF_8.decode(payload).toString());
+            }
+
+            if (!holdAcks) {
+                ByteBuffer ack = ByteBuffer.allocate(1 + Long.BYTES);
+                ack.put(ACK).putLong(session.lastReceived).flip();
+                connection.sendFrame(true, 0x2, ack);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onClose(StandInServer.Connection connection) {
+        Session session = (Session) connection.attachment;
+        if (session != null && session.connection == connection) session.connection = null;
+    }
+
+    private void resume(StandInServer.Connection connection, UUID id, long clientReceived) {
+        Session session = sessions.computeIfAbsent(id, key -> new Session());
+        if (session.connection != null) session.connection.close();
+
+        session.connection = connection;
+        session.acknowledged = Math.max(session.acknowledged, clientReceived);
+        connection.attachment = session;
+        connections++;
+
+        ByteBuffer answer = ByteBuffer.allocate(1 + 3 * Long.BYTES);
+        answer.put(RESUME).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits())
+              .putLong(session.lastReceived).flip();
+        connection.sendFrame(true, 0x2, answer);
+
+        for (int i = (int) clientReceived; i < session.sent.size(); i++) {
+            connection.sendFrame(true, 0x2, session.sent.get(i).duplicate());
+        }
+    }
+
+    private static final class Session {
+        final List<ByteBuffer> sent = new ArrayList<>();
+        StandInServer.Connection connection;
+        long lastReceived;
+        long acknowledged;
+    }
+}
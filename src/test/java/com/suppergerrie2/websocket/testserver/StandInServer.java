@@ -0,0 +1,580 @@
+package com.suppergerrie2.websocket.testserver;
+
+import com.suppergerrie2.websocket.common.Helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal websocket server used as a local stand-in endpoint for tests and benchmarks.
+ * <p>
+ * All connections are served by a single selector thread, so it can hold a large amount of idle connections without
+ * needing a thread per connection. Frames are parsed according to <a href="https://tools.ietf.org/html/rfc6455#section-5.2">RFC-6455 section 5.2.</a>
+ * and handed to a {@link Listener}, frames sent by the server are never masked.
+ * <p>
+ * This is not a complete websocket server, it only does what is needed to exercise the client.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StandInServer implements Closeable {
+
+    /**
+     * Receives the events of all connections of a {@link StandInServer}.
+     * Opening and frames are reported on the selector thread, so these methods should not block.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the handshake of a connection has completed.
+         *
+         * @param connection The connection that has been opened
+         */
+        default void onOpen(Connection connection) {
+        }
+
+        /**
+         * Called for every frame received from a client.
+         *
+         * @param connection The connection the frame was received on
+         * @param fin        Whether the fin bit was set
+         * @param rsv        The 3 reserved bits, shifted to the lowest bits
+         * @param opcode     The opcode of the frame
+         * @param payload    The unmasked payload, only valid during this call
+         */
+        void onFrame(Connection connection, boolean fin, int rsv, int opcode, ByteBuffer payload);
+
+        /**
+         * Called when the tcp connection has been closed.
+         *
+         * @param connection The connection that has been closed
+         */
+        default void onClose(Connection connection) {
+        }
+    }
+
+    /**
+     * Echoes every data frame back as it was received, answers pings with pongs and echoes close frames.
+     */
+    public static final Listener ECHO = (connection, fin, rsv, opcode, payload) -> {
+        switch (opcode) {
+            case 0x8:
+                connection.sendFrame(true, 0x8, payload);
+                connection.close();
+                break;
+            case 0x9:
+                connection.sendFrame(true, 0xA, payload);
+                break;
+            case 0xA:
+                break;
+            default:
+                connection.sendFrame(fin, opcode, payload);
+                break;
+        }
+    };
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final Listener listener;
+    private final ServerSocketChannel serverChannel;
+    private final Path socketPath;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile String protocol;
+    private volatile boolean running = true;
+
+    private StandInServer(Listener listener, Path socketPath) throws IOException {
+        this.listener = listener;
+        this.socketPath = socketPath;
+        this.selector = Selector.open();
+        if (socketPath == null) {
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        } else {
+            this.serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            this.serverChannel.bind(UnixDomainSocketAddress.of(socketPath), 4096);
+        }
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.selectorThread = new Thread(this::run, "stand-in-server-" + (socketPath == null ? getPort() : socketPath.getFileName()));
+        this.selectorThread.setDaemon(true);
+    }
+
+    /**
+     * Start a server on a random free port of the loopback address.
+     *
+     * @param listener The listener receiving the events of all connections
+     * @return The started server
+     * @throws IOException When the server socket could not be bound
+     */
+    public static StandInServer start(Listener listener) throws IOException {
+        StandInServer server = new StandInServer(listener, null);
+        server.selectorThread.start();
+        return server;
+    }
+
+    /**
+     * Start a server on a unix domain socket. The socket file is deleted again when the server is closed.
+     *
+     * @param listener   The listener receiving the events of all connections
+     * @param socketPath The socket file to create, it should not exist yet
+     * @return The started server
+     * @throws IOException When the server socket could not be bound
+     */
+    public static StandInServer startUnix(Listener listener, Path socketPath) throws IOException {
+        StandInServer server = new StandInServer(listener, socketPath);
+        server.selectorThread.start();
+        return server;
+    }
+
+    /**
+     * Set the protocol to answer with in the Sec-WebSocket-Protocol header, if the client offered it.
+     *
+     * @param protocol The protocol to accept, or null to never send the header
+     */
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return The port the server listens on, or -1 for a unix domain socket server
+     */
+    public int getPort() {
+        if (socketPath != null) return -1;
+
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return The amount of connections that are currently open
+     */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Create a ws uri pointing at this server, or a ws+unix uri when it listens on a unix domain socket.
+     *
+     * @param path The path of the uri, should start with a /
+     * @return The uri
+     */
+    public URI uri(String path) {
+        try {
+            if (socketPath != null) return new URI(String.format("ws+unix://%s:%s", socketPath.toAbsolutePath(), path));
+
+            return new URI(String.format("ws://127.0.0.1:%d%s", getPort(), path));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(100);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable() && connection.flush()) {
+                            connection.closeNow();
+                            continue;
+                        }
+                        if (key.isValid() && key.isReadable()) connection.read();
+                    } catch (IOException | CancelledKeyException e) {
+                        //The connection was closed, possibly from another thread
+                        connection.closeNow();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).closeNow();
+            }
+
+            try {
+                selector.close();
+                serverChannel.close();
+                if (socketPath != null) Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            if (socketPath == null) channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            openConnections.incrementAndGet();
+        }
+    }
+
+    /**
+     * A single client connection. Frames can be sent from any thread.
+     */
+    public final class Connection {
+
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(4096);
+        private boolean handshakeDone;
+        private boolean closed;
+        private String path;
+        private final Map<String, String> headers = new HashMap<>();
+
+        /**
+         * Free for the listener to store per connection state in.
+         */
+        public Object attachment;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return The path and query the client requested during the handshake
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @param name The lower case name of the header
+         * @return The value of the request header, or null if it wasn't sent
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * @return true if data was sent that has not been written to the socket yet, because the client is not reading
+         */
+        public synchronized boolean hasPendingWrites() {
+            return !outbound.isEmpty();
+        }
+
+        /**
+         * Send a single unmasked frame.
+         *
+         * @param fin     Whether to set the fin bit
+         * @param opcode  The opcode of the frame
+         * @param payload The payload, the remaining bytes are copied
+         */
+        public void sendFrame(boolean fin, int opcode, ByteBuffer payload) {
+            sendFrame(fin, 0, opcode, payload);
+        }
+
+        /**
+         * Send a single unmasked frame.
+         *
+         * @param fin     Whether to set the fin bit
+         * @param rsv     The 3 reserved bits, shifted to the lowest bits
+         * @param opcode  The opcode of the frame
+         * @param payload The payload, the remaining bytes are copied
+         */
+        public void sendFrame(boolean fin, int rsv, int opcode, ByteBuffer payload) {
+            int length = payload.remaining();
+            ByteBuffer frame = ByteBuffer.allocate(length + 10);
+            frame.put((byte) ((fin ? 0x80 : 0) | ((rsv & 0x7) << 4) | (opcode & 0xF)));
+
+            if (length > 65535) {
+                frame.put((byte) 127);
+                frame.putLong(length);
+            } else if (length > 125) {
+                frame.put((byte) 126);
+                frame.putShort((short) length);
+            } else {
+                frame.put((byte) length);
+            }
+
+            frame.put(payload.duplicate());
+            frame.flip();
+            sendRaw(frame);
+        }
+
+        /**
+         * Send a single unmasked frame.
+         *
+         * @param fin     Whether to set the fin bit
+         * @param opcode  The opcode of the frame
+         * @param payload The payload
+         */
+        public void sendFrame(boolean fin, int opcode, byte[] payload) {
+            sendFrame(fin, opcode, ByteBuffer.wrap(payload));
+        }
+
+        /**
+         * Send the bytes as they are. This allows sending invalid frames.
+         *
+         * @param bytes The bytes to send, the buffer should not be modified afterwards
+         */
+        public void sendRaw(ByteBuffer bytes) {
+            boolean close;
+            synchronized (this) {
+                if (closed) return;
+
+                outbound.add(bytes);
+                if (outbound.size() > 1) return;
+
+                try {
+                    close = flush();
+                } catch (IOException e) {
+                    close = true;
+                }
+            }
+
+            if (close) closeNow();
+        }
+
+        /**
+         * Close the tcp connection once all pending data has been written.
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+
+                if (!outbound.isEmpty() && channel.isOpen()) {
+                    //Close when the last buffer has been flushed
+                    outbound.add(CLOSE_MARKER);
+                    return;
+                }
+            }
+
+            closeNow();
+        }
+
+        private void closeNow() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                outbound.clear();
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            openConnections.decrementAndGet();
+            listener.onClose(this);
+        }
+
+        /**
+         * Write as much of the pending data as possible without blocking.
+         *
+         * @return true if a close was requested and all data before it has been written
+         */
+        private synchronized boolean flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                //Closing is left to the caller so the listener isn't called while holding the lock
+                if (buffer == CLOSE_MARKER) return true;
+
+                channel.write(buffer);
+
+                if (buffer.hasRemaining()) {
+                    if (!key.isValid()) throw new IOException("Connection has been closed");
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                    return false;
+                }
+
+                outbound.poll();
+            }
+
+            if (key.isValid()) key.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+
+        private void read() throws IOException {
+            if (!in.hasRemaining()) {
+                in = grow(in, in.capacity() * 2);
+            }
+
+            int read = channel.read(in);
+            if (read == -1) {
+                closeNow();
+                return;
+            }
+
+            in.flip();
+            if (!handshakeDone) readHandshake();
+            if (handshakeDone) readFrames();
+            in.compact();
+        }
+
+        private void readHandshake() {
+            int end = indexOf(in, HEADER_END);
+            if (end == -1) return;
+
+            byte[] headerBytes = new byte[end - in.position()];
+            in.get(headerBytes);
+            in.position(in.position() + HEADER_END.length);
+
+            String[] lines = new String(headerBytes, StandardCharsets.UTF_8).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            URI requestUri = URI.create(requestLine[1]);
+            path = requestUri.getRawQuery() == null ? requestUri.getRawPath() :
+                    requestUri.getRawPath() + "?" + requestUri.getRawQuery();
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon == -1) continue;
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+
+            StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 101 Switching Protocols\r\n");
+            response.append("Upgrade: websocket\r\n");
+            response.append("Connection: Upgrade\r\n");
+            response.append("Sec-WebSocket-Accept: ")
+                    .append(Helpers.getSecWebsocket(headers.getOrDefault("sec-websocket-key", "")))
+                    .append("\r\n");
+
+            String acceptedProtocol = protocol;
+            if (acceptedProtocol != null) {
+                for (String offered : headers.getOrDefault("sec-websocket-protocol", "").split(",")) {
+                    if (offered.trim().equals(acceptedProtocol)) {
+                        response.append("Sec-WebSocket-Protocol: ").append(acceptedProtocol).append("\r\n");
+                        break;
+                    }
+                }
+            }
+            response.append("\r\n");
+
+            sendRaw(ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8)));
+            handshakeDone = true;
+            listener.onOpen(this);
+        }
+
+        private void readFrames() {
+            while (!closed && in.remaining() >= 2) {
+                int start = in.position();
+                int b0 = in.get(start) & 0xFF;
+                int b1 = in.get(start + 1) & 0xFF;
+
+                int headerLength = 2;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    headerLength += 2;
+                    if (in.remaining() < headerLength) return;
+                    length = in.getShort(start + 2) & 0xFFFF;
+                } else if (length == 127) {
+                    headerLength += 8;
+                    if (in.remaining() < headerLength) return;
+                    length = in.getLong(start + 2);
+                }
+
+                boolean masked = (b1 & 0x80) != 0;
+                if (masked) headerLength += 4;
+
+                if (length < 0 || length > Integer.MAX_VALUE - headerLength) {
+                    closeNow();
+                    return;
+                }
+
+                int frameLength = headerLength + (int) length;
+                if (in.remaining() < frameLength) {
+                    //Make sure the complete frame fits once it has been read
+                    if (in.capacity() < frameLength) {
+                        ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+                        bigger.put(in);
+                        bigger.flip();
+                        in = bigger;
+                    }
+                    return;
+                }
+
+                int payloadStart = start + headerLength;
+                if (masked) {
+                    int maskStart = payloadStart - 4;
+                    for (int i = 0; i < length; i++) {
+                        in.put(payloadStart + i, (byte) (in.get(payloadStart + i) ^ in.get(maskStart + (i & 3))));
+                    }
+                }
+
+                ByteBuffer payload = in.duplicate();
+                payload.limit(payloadStart + (int) length).position(payloadStart);
+                in.position(start + frameLength);
+
+                listener.onFrame(this, (b0 & 0x80) != 0, (b0 >> 4) & 0x7, b0 & 0xF, payload.slice());
+            }
+        }
+    }
+
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] needle) {
+        outer:
+        for (int i = buffer.position(); i <= buffer.limit() - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (buffer.get(i + j) != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,122 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.MessageDispatcher;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.PipePeer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class MemoryPipeTest {
+
+    @Test
+    void bytesArriveInOrderAcrossTheEndOfTheRing() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(7);
+        int total = 10_000;
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < total; i += 5) {
+                    ByteBuffer chunk = ByteBuffer.allocate(5);
+                    for (int j = 0; j < 5; j++) chunk.put((byte) (i + j));
+                    chunk.flip();
+                    pipe.client().write(chunk);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+
+        ByteBuffer received = ByteBuffer.allocate(total);
+        while (received.hasRemaining()) {
+            Assertions.assertTrue(pipe.server().read(received) > 0);
+        }
+        writer.join();
+
+        for (int i = 0; i < total; i++) Assertions.assertEquals((byte) i, received.get(i));
+    }
+
+    @Test
+    void writeBlocksWhileFull() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(4);
+
+        Thread writer = new Thread(() -> {
+            try {
+                pipe.client().write(ByteBuffer.allocate(10));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+
+        Thread.sleep(50);
+        Assertions.assertTrue(writer.isAlive(), "Write should block until there is room");
+
+        ByteBuffer destination = ByteBuffer.allocate(10);
+        while (destination.hasRemaining()) pipe.server().read(destination);
+        writer.join(1000);
+        Assertions.assertFalse(writer.isAlive());
+    }
+
+    @Test
+    void closing() throws IOException {
+        MemoryPipe pipe = new MemoryPipe(16);
+        pipe.client().write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        pipe.client().close();
+
+        //The other end can still read what was written, then reaches the end of the stream
+        ByteBuffer destination = ByteBuffer.allocate(16);
+        Assertions.assertEquals(3, pipe.server().read(destination));
+        Assertions.assertEquals(-1, pipe.server().read(destination));
+
+        Assertions.assertFalse(pipe.client().isOpen());
+        Assertions.assertThrows(IOException.class, () -> pipe.client().read(destination));
+        Assertions.assertThrows(IOException.class, () -> pipe.server().write(ByteBuffer.allocate(1)));
+        Assertions.assertThrows(IOException.class, () -> pipe.client().connect(URI.create("ws://pipe/")));
+    }
+
+    @Test
+    void clientOverPipe() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(64 * 1024);
+        PipePeer.echo(pipe.server());
+
+        Client client = new Client(URI.create("ws://pipe/"), MessageDispatcher.inline(), pipe.client());
+        int messages = 1000;
+        CountDownLatch received = new CountDownLatch(messages);
+        AtomicInteger receivedBytes = new AtomicInteger();
+        client.registerMessageHandler("", message -> {
+            receivedBytes.addAndGet(message.getPayloadLength());
+            received.countDown();
+        });
+        client.start();
+
+        awaitOpen(client);
+
+        int sentBytes = 0;
+        for (int i = 0; i < messages; i++) {
+            //Some messages are bigger than the ring buffer and the read buffer
+            byte[] payload = new byte[i % 100 == 0 ? 100_000 : i];
+            client.send(payload);
+            sentBytes += payload.length;
+        }
+
+        Assertions.assertTrue(received.await(10, TimeUnit.SECONDS), "Not all messages were echoed");
+        Assertions.assertEquals(sentBytes, receivedBytes.get());
+
+        client.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getState() != State.CLOSED && System.nanoTime() < deadline) Thread.sleep(1);
+        Assertions.assertEquals(State.CLOSED, client.getState());
+    }
+}
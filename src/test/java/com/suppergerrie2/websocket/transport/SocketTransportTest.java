@@ -0,0 +1,79 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.ClientOptions;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+class SocketTransportTest {
+
+    @Test
+    void optionsAreAppliedToTheSocket() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            URI uri = URI.create("ws://127.0.0.1:" + server.socket().getLocalPort() + "/");
+
+            SocketTransport transport = new SocketTransport(ClientOptions.builder()
+                                                                          .keepAlive(true)
+                                                                          .sendBufferSize(32 * 1024)
+                                                                          .build());
+            transport.connect(uri);
+            try {
+                SocketChannel channel = transport.channel();
+                Assertions.assertTrue(channel.getOption(StandardSocketOptions.TCP_NODELAY), "TCP_NODELAY should be on by default");
+                Assertions.assertTrue(channel.getOption(StandardSocketOptions.SO_KEEPALIVE));
+                //The operating system can round the size, but it should not be left at its default
+                Assertions.assertTrue(channel.getOption(StandardSocketOptions.SO_SNDBUF) >= 32 * 1024);
+            } finally {
+                transport.close();
+            }
+
+            transport = new SocketTransport(ClientOptions.builder().tcpNoDelay(false).build());
+            transport.connect(uri);
+            try {
+                Assertions.assertFalse(transport.channel().getOption(StandardSocketOptions.TCP_NODELAY));
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    @Test
+    void connectTimeout() throws IOException {
+        List<SocketChannel> queued = new ArrayList<>();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+
+            //Connections are never accepted, once the backlog is full new connections get no answer
+            for (int i = 0; i < 8; i++) {
+                SocketChannel channel = SocketChannel.open();
+                queued.add(channel);
+                try {
+                    channel.socket().connect(address, 100);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+
+            SocketTransport transport = new SocketTransport(ClientOptions.builder().connectTimeout(200, TimeUnit.MILLISECONDS).build());
+            long start = System.nanoTime();
+            Assertions.assertThrows(IOException.class, () -> transport.connect(URI.create("ws://127.0.0.1:" + address.getPort() + "/")));
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "Connect should have timed out");
+            Assertions.assertFalse(transport.isOpen());
+        } finally {
+            for (SocketChannel channel : queued) channel.close();
+        }
+    }
+}
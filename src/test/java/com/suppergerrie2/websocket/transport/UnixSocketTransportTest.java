@@ -0,0 +1,65 @@
+package com.suppergerrie2.websocket.transport;
+
+import com.suppergerrie2.websocket.client.Client;
+import com.suppergerrie2.websocket.client.MessageDispatcher;
+import com.suppergerrie2.websocket.common.State;
+import com.suppergerrie2.websocket.testserver.StandInServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.suppergerrie2.websocket.testserver.Clients.awaitOpen;
+
+@SuppressWarnings("BusyWait")
+class UnixSocketTransportTest {
+
+    @Test
+    void uriParts() {
+        URI uri = URI.create("ws+unix:///run/app.sock:/chat/room?user=1");
+        Assertions.assertEquals("/run/app.sock", UnixSocketTransport.socketPath(uri));
+        Assertions.assertEquals("/chat/room?user=1", UnixSocketTransport.requestPath(uri));
+
+        URI withoutRequestPath = URI.create("ws+unix:///run/app.sock");
+        Assertions.assertEquals("/run/app.sock", UnixSocketTransport.socketPath(withoutRequestPath));
+        Assertions.assertEquals("/", UnixSocketTransport.requestPath(withoutRequestPath));
+
+        Assertions.assertTrue(Transport.forUri(uri) instanceof UnixSocketTransport);
+    }
+
+    @Test
+    void echoOverUnixSocket() throws Exception {
+        Path directory = Files.createTempDirectory("websocket");
+        Path socket = directory.resolve("echo.sock");
+        BlockingQueue<String> paths = new LinkedBlockingQueue<>();
+
+        try (StandInServer server = StandInServer.startUnix((connection, fin, rsv, opcode, payload) -> {
+            paths.add(connection.getPath());
+            StandInServer.ECHO.onFrame(connection, fin, rsv, opcode, payload);
+        }, socket)) {
+            Client client = new Client(server.uri("/chat?room=1"), MessageDispatcher.inline());
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            client.registerMessageHandler("", message -> received.add(message.getText()));
+            client.start();
+
+            awaitOpen(client);
+
+            client.send("Hello over a unix socket");
+            Assertions.assertEquals("Hello over a unix socket", received.poll(5, TimeUnit.SECONDS));
+            Assertions.assertEquals("/chat?room=1", paths.poll());
+
+            client.stop();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (client.getState() != State.CLOSED && System.nanoTime() < deadline) Thread.sleep(1);
+            Assertions.assertEquals(State.CLOSED, client.getState());
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.delete(directory);
+        }
+    }
+}